@@ -0,0 +1,247 @@
+package org.rahmanj.sandshrew;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpContent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Process wide budget for message bytes the proxy holds in its own queues, as opposed to in socket buffers
+ *
+ * Each upstream connection has an {@link Account}, charged when its messages are queued and credited when they
+ * leave the queue, whether they are queued by its {@link UpstreamHandler} or by the {@link DownstreamClient} it is
+ * using. Once the total passes the high watermark, every connection that queues more is paused until the total
+ * falls back below the low watermark, so the connections being paused are the ones doing the buffering. A
+ * connection that would take the total past the hard limit is closed instead, which bounds the memory held no
+ * matter how slow the downstream servers are.
+ *
+ * Accounts are only used from the event loop of their connection, only the total is shared.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class BufferBudget {
+
+    /**
+     * Construct a new {@link BufferBudget} instance
+     *
+     * @param lowWatermark Total in bytes below which paused connections resume reading
+     * @param highWatermark Total in bytes above which connections that queue more are paused
+     * @param limit Total in bytes above which connections that queue more are closed
+     */
+    public BufferBudget(long lowWatermark, long highWatermark, long limit) {
+        if (lowWatermark <= 0 || lowWatermark > highWatermark || highWatermark > limit) {
+            throw new IllegalArgumentException("Require 0 < lowWatermark <= highWatermark <= limit");
+        }
+
+        _lowWatermark = lowWatermark;
+        _highWatermark = highWatermark;
+        _limit = limit;
+        _buffered = new AtomicLong();
+        _paused = new ConcurrentLinkedQueue<Account>();
+    }
+
+    /**
+     * Open an {@link Account} for a connection
+     *
+     * @param channel The upstream {@link Channel} the account belongs to, closed if it goes over the limit
+     * @param listener {@link Listener} that pauses and resumes reads from the channel
+     * @return Returns the new {@link Account}
+     */
+    public Account newAccount(Channel channel, Listener listener) {
+        return new Account(channel, listener);
+    }
+
+    /**
+     * Get the number of bytes currently queued across all connections
+     *
+     * @return Returns the total number of bytes charged to all accounts
+     */
+    public long getBufferedBytes() {
+        return _buffered.get();
+    }
+
+    /**
+     * Resume every paused account
+     */
+    private void resumePaused() {
+        Account account;
+        while ((account = _paused.poll()) != null) {
+            account.resume();
+        }
+    }
+
+    /**
+     * Get the number of bytes a message holds
+     *
+     * @param msg {@link HttpContent}, {@link ByteBuf} or other message
+     * @return Returns the readable bytes of the message, 0 for messages without content
+     */
+    private static long sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof HttpContent) {
+            return ((HttpContent) msg).content().readableBytes();
+        }
+        return 0;
+    }
+
+    /**
+     * Listener that stops and restarts reads from a connection as the budget fills and empties
+     */
+    public interface Listener {
+
+        /**
+         * Invoked on the connection's event loop when it must stop reading
+         */
+        public void onOverBudget();
+
+        /**
+         * Invoked on the connection's event loop once it may read again
+         */
+        public void onUnderBudget();
+    }
+
+    /**
+     * Bytes queued on behalf of a single upstream connection
+     */
+    public final class Account {
+
+        private Account(Channel channel, Listener listener) {
+            _channel = channel;
+            _listener = listener;
+            _queued = 0;
+            _pausedForBudget = false;
+        }
+
+        /**
+         * Charge a message about to be queued. If the total is over the high watermark the connection is paused,
+         * if it would go over the limit the connection is closed and the message must not be queued.
+         *
+         * @param msg Message about to be queued
+         * @return Returns true if the message may be queued, false if the caller must release it instead
+         */
+        public boolean charge(Object msg) {
+            long bytes = sizeOf(msg);
+            if (bytes == 0) {
+                return true;
+            }
+
+            long total = _buffered.addAndGet(bytes);
+            if (total > _limit) {
+                _buffered.addAndGet(-bytes);
+                _logger.warning("Buffer limit of " + _limit + " bytes reached, closing " + _channel.remoteAddress() + " with " + _queued + " bytes queued");
+                _channel.close();
+                return false;
+            }
+
+            _queued += bytes;
+            if (total > _highWatermark && !_pausedForBudget) {
+                _pausedForBudget = true;
+                _listener.onOverBudget();
+                _paused.add(this);
+
+                // The total may have dropped below the low watermark before we were added, with nobody left to resume us
+                if (_buffered.get() <= _lowWatermark) {
+                    resumePaused();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Credit a message leaving the queue, resuming paused connections once the total is below the low watermark
+         *
+         * @param msg Message that was charged with {@link #charge(Object)}
+         */
+        public void credit(Object msg) {
+            long bytes = sizeOf(msg);
+            if (bytes == 0) {
+                return;
+            }
+
+            _queued -= bytes;
+            if (_buffered.addAndGet(-bytes) <= _lowWatermark && !_paused.isEmpty()) {
+                resumePaused();
+            }
+        }
+
+        /**
+         * Get the number of bytes charged to this account
+         *
+         * @return Returns the bytes queued on behalf of this connection
+         */
+        public long getQueuedBytes() {
+            return _queued;
+        }
+
+        /**
+         * Resume reading on the connection's own event loop
+         */
+        private void resume() {
+            _channel.eventLoop().execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            if (_pausedForBudget) {
+                                _pausedForBudget = false;
+                                _listener.onUnderBudget();
+                            }
+                        }
+                    }
+            );
+        }
+
+        /**
+         * Upstream {@link Channel} the account belongs to
+         */
+        private final Channel _channel;
+
+        /**
+         * {@link Listener} pausing and resuming the channel
+         */
+        private final Listener _listener;
+
+        /**
+         * Bytes currently charged to this account
+         */
+        private long _queued;
+
+        /**
+         * True if the connection is paused until the total falls below the low watermark
+         */
+        private boolean _pausedForBudget;
+    }
+
+    /**
+     * Total below which paused connections resume
+     */
+    private final long _lowWatermark;
+
+    /**
+     * Total above which connections that queue more are paused
+     */
+    private final long _highWatermark;
+
+    /**
+     * Total above which connections that queue more are closed
+     */
+    private final long _limit;
+
+    /**
+     * Bytes currently charged across all accounts
+     */
+    private final AtomicLong _buffered;
+
+    /**
+     * Accounts paused until the total falls below the low watermark
+     */
+    private final Queue<Account> _paused;
+
+    private static final Logger _logger = Logger.getLogger(
+            BufferBudget.class.getName()
+    );
+}
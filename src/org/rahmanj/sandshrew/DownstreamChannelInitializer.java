@@ -8,6 +8,7 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpContentCompressor;
 import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpRequestEncoder;
 import io.netty.handler.codec.spdy.*;
 
 /**
@@ -27,6 +28,7 @@ public class DownstreamChannelInitializer extends ChannelInitializer<SocketChann
 
         _httpHandler = null;
         _spdyHandler = spdyHandler;
+        _responsePassthrough = false;
 
         // TODO (JR) Make this configurable
         _version = version;
@@ -37,9 +39,19 @@ public class DownstreamChannelInitializer extends ChannelInitializer<SocketChann
      * @param httpHandler {@link ChannelHandler} for HTTP(S) connections
      */
     public DownstreamChannelInitializer(ChannelHandler httpHandler) {
+        this(httpHandler, false);
+    }
+
+    /**
+     * Construct a {@link DownstreamChannelInitializer} instance
+     * @param httpHandler {@link ChannelHandler} for HTTP(S) connections
+     * @param responsePassthrough True to frame responses with {@link HttpResponseFramer} instead of decoding them
+     */
+    public DownstreamChannelInitializer(ChannelHandler httpHandler, boolean responsePassthrough) {
         _httpHandler = httpHandler;
         _spdyHandler = null;
         _version = null;
+        _responsePassthrough = responsePassthrough;
     }
 
     @Override
@@ -59,10 +71,10 @@ public class DownstreamChannelInitializer extends ChannelInitializer<SocketChann
     protected void initSpdyChannel(SocketChannel ch) {
         ChannelPipeline pipeline = ch.pipeline();
 
-        pipeline.addLast("spdyFrameCodec", new SpdyFrameCodec(_version));
+        pipeline.addLast("spdyFrameCodec", new SpdyFrameCodec(_version)); // DATA frames are split into 8KB pieces by default
         pipeline.addLast("spdySessionHandler", new SpdySessionHandler(_version, false)); // TODO (JR) What does false mean?
         pipeline.addLast("spdyHttpEncoder", new SpdyHttpEncoder(_version));
-        pipeline.addLast("spdyHttpDecoder", new SpdyHttpDecoder(_version, MAX_SPDY_CONTENT_LENGTH));
+        pipeline.addLast("spdyHttpDecoder", new SpdyStreamingHttpDecoder(false)); // Each DATA frame is passed on as it arrives
         pipeline.addLast("spdyStreamIdHandler", new SpdyClientStreamIdHandler());
         pipeline.addLast("spdyClientHandler", _spdyHandler);
     }
@@ -75,6 +87,14 @@ public class DownstreamChannelInitializer extends ChannelInitializer<SocketChann
 
         ChannelPipeline pipeline = ch.pipeline();
 
+        if (_responsePassthrough) {
+            // Requests are still encoded, but responses only have their framing inspected and are passed along as bytes
+            pipeline.addLast("httpRequestEncoder", new HttpRequestEncoder());
+            pipeline.addLast("httpResponseFramer", new HttpResponseFramer(MAX_HTTP_HEADER_LENGTH));
+            pipeline.addLast("httpClientHandler", _httpHandler);
+            return;
+        }
+
         // TODO (JR) Make the first two configurable
         pipeline.addLast("httpContentCompressor", new HttpContentCompressor());
         pipeline.addLast("httpContentDecompressor", new HttpContentDecompressor());
@@ -98,14 +118,9 @@ public class DownstreamChannelInitializer extends ChannelInitializer<SocketChann
     private static final int MAX_HTTP_HEADER_LENGTH = 8 * 1024;
 
     /**
-     *
-     */
-    private static final int MAX_SPDY_CONTENT_LENGTH = 1024 * 1024; // 1MB chunks
-
-    /**
-     *
+     * Largest body chunk passed on at once, bodies are streamed in pieces no bigger than this
      */
-    private static final int MAX_HTTP_CHUNK_LENGTH = 1024 * 1024; // 1MB chunks
+    private static final int MAX_HTTP_CHUNK_LENGTH = 8 * 1024;
 
 
 
@@ -118,4 +133,9 @@ public class DownstreamChannelInitializer extends ChannelInitializer<SocketChann
     private ChannelHandler _httpHandler;
 
     private ChannelHandler _spdyHandler;
+
+    /**
+     * True if responses should be passed through as raw bytes
+     */
+    private boolean _responsePassthrough;
 }
@@ -2,19 +2,23 @@
 package org.rahmanj.sandshrew;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.spdy.SpdyVersion;
+import io.netty.util.ReferenceCountUtil;
 import org.rahmanj.sandshrew.policy.ServerInfo;
-import org.rahmanj.sandshrew.policy.ThrottleListener;
 
 import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.util.ArrayDeque;
 import java.util.Queue;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,7 +27,7 @@ import java.util.logging.Logger;
  *
  * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
  */
-public class DownstreamClient extends ChannelInboundHandlerAdapter implements ProxyChannel, ThrottleListener {
+public class DownstreamClient extends ChannelInboundHandlerAdapter implements ProxyChannel {
 
 
     /**
@@ -32,12 +36,15 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
      * @param upstreamChannel The {@link ProxyChannel} for the upstream channel
      * @param server The {@link org.rahmanj.sandshrew.policy.ServerInfo} we are connecting to
      * @param workerGroup The shared {@link EventLoopGroup} that is backing our async IO operations
+     * @param transport The {@link Transport} the worker group belongs to
      */
-    public DownstreamClient(ProxyChannel upstreamChannel, ServerInfo server, EventLoopGroup workerGroup) {
+    public DownstreamClient(ProxyChannel upstreamChannel, ServerInfo server, EventLoopGroup workerGroup, Transport transport) {
         _upstreamChannel = upstreamChannel;
         _downstreamServer = server;
         _workerGroup = workerGroup;
+        _transport = transport;
         _spdyVersion = null;
+        _responsePassthrough = false;
 
         commonInit();
     }
@@ -48,13 +55,36 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
      * @param upstreamChannel The {@link ProxyChannel} for the upstream channel
      * @param server The {@link org.rahmanj.sandshrew.policy.ServerInfo} we are connecting to
      * @param workerGroup The shared {@link EventLoopGroup} that is backing our async IO operations
+     * @param transport The {@link Transport} the worker group belongs to
+     * @param responsePassthrough True to forward response bytes upstream without decoding them, see {@link HttpResponseFramer}
+     */
+    public DownstreamClient(ProxyChannel upstreamChannel, ServerInfo server, EventLoopGroup workerGroup, Transport transport, boolean responsePassthrough) {
+        _upstreamChannel = upstreamChannel;
+        _downstreamServer = server;
+        _workerGroup = workerGroup;
+        _transport = transport;
+        _spdyVersion = null;
+        _responsePassthrough = responsePassthrough;
+
+        commonInit();
+    }
+
+    /**
+     * Construct an {@link DownstreamClient} instance
+     *
+     * @param upstreamChannel The {@link ProxyChannel} for the upstream channel
+     * @param server The {@link org.rahmanj.sandshrew.policy.ServerInfo} we are connecting to
+     * @param workerGroup The shared {@link EventLoopGroup} that is backing our async IO operations
+     * @param transport The {@link Transport} the worker group belongs to
      * @param spdyVersion The {@link SpdyVersion} to use if SPDY is requested
      */
-    public DownstreamClient(ProxyChannel upstreamChannel, ServerInfo server, EventLoopGroup workerGroup, SpdyVersion spdyVersion) {
+    public DownstreamClient(ProxyChannel upstreamChannel, ServerInfo server, EventLoopGroup workerGroup, Transport transport, SpdyVersion spdyVersion) {
         _upstreamChannel = upstreamChannel;
         _downstreamServer = server;
         _workerGroup = workerGroup;
+        _transport = transport;
         _spdyVersion = spdyVersion;
+        _responsePassthrough = false;
 
         commonInit();
     }
@@ -71,25 +101,42 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
         String hostname = _downstreamServer.getHostname();
         int port = _downstreamServer.getPort();
 
-        Class socketChannelClass = NioSocketChannel.class;
-
         // Configure the downstream client to our liking
         // TODO (JR) Are there any other options we would like to tune???
         _bootstrap = new Bootstrap();
         _bootstrap.group(_workerGroup)
-                .channel(socketChannelClass)
-                .option(ChannelOption.SO_KEEPALIVE, true);
+                .channel(_transport.socketChannelClass())
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.TCP_NODELAY, true);
 
         if (_spdyVersion == null) {
             // No SPDY
-            _bootstrap.handler(new DownstreamChannelInitializer(this));
+            _bootstrap.handler(new DownstreamChannelInitializer(this, _responsePassthrough));
         } else {
             // Use SPDY
             _bootstrap.handler(new DownstreamChannelInitializer(this, _spdyVersion));
         }
 
         // Initiate the downstream connection
-        return _bootstrap.connect(hostname, port);
+        final long connectStart = System.nanoTime();
+        ChannelFuture future = _bootstrap.connect(hostname, port);
+
+        // Hold on to the channel right away, so close() works while connecting too
+        _channel = future.channel();
+
+        // Listeners on the connect future run before channelActive(), so mark the connection usable here already,
+        // anyone handed this client by a later listener sees it connected
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (future.isSuccess()) {
+                    _downstreamServer.stats().recordConnectTime(System.nanoTime() - connectStart);
+                    _connected = true;
+                    _remoteAddress = (InetSocketAddress) future.channel().remoteAddress();
+                }
+            }
+        });
+        return future;
     }
 
     /**
@@ -103,26 +150,7 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
             throw new NullPointerException("msg");
         }
 
-        _channel.eventLoop().execute(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        if (!_draindown) {
-                            if (_connected && _writable && _messageQueue.size() == 0) {
-
-                                // Immediately send the current message if possible
-                                _channel.write(msg);
-                            } else {
-
-                                // Enqueue current message and send the next message as needed
-                                _messageQueue.add(new Message(msg, null));
-                                sendNextMessage();
-                            }
-
-                        } // TODO (JR) else discard next requests
-                    }
-                }
-        );
+        send(new Message(msg, null));
     }
 
     /**
@@ -133,84 +161,186 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
      */
     public void send(final HttpObject msg, final ChannelPromise promise) {
 
-        _channel.eventLoop().execute(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        if (!_draindown) {
-                            if (_connected && _writable && _messageQueue.size() == 0) {
+        if (msg == null) {
+            throw new NullPointerException("msg");
+        }
 
-                                // Immediately send the current message if possible
-                                _channel.write(msg, promise);
-                            } else {
+        send(new Message(msg, promise));
+    }
+
+    /**
+     * Send raw, already encoded bytes over the {@link ProxyChannel}. This method is asynchronous.
+     *
+     * @param buf The {@link ByteBuf} to send over the {@link ProxyChannel}
+     * @param last True if these are the final bytes of the current exchange
+     */
+    public void sendRaw(final ByteBuf buf, boolean last) {
+
+        if (buf == null) {
+            throw new NullPointerException("buf");
+        }
+
+        // Raw bytes always belong to an exchange already under way, so they go out even when draining
+        send(new Message(buf, null));
+    }
 
-                                // Enqueue current message and send the next message as needed
-                                _messageQueue.add(new Message(msg, promise));
-                                sendNextMessage();
-                            }
+    /**
+     * Flush everything sent so far to the downstream server
+     */
+    public void flush() {
+        if (_channel.eventLoop().inEventLoop()) {
+            flushNow();
+        } else {
+            _channel.eventLoop().execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            flushNow();
                         }
                     }
+            );
+        }
+    }
+
+    /**
+     * Send a message on the event loop, directly if we are already on it
+     *
+     * @param msg {@link Message} to send
+     */
+    private void send(final Message msg) {
+        if (_channel.eventLoop().inEventLoop()) {
+            sendOnLoop(msg);
+        } else {
+            _channel.eventLoop().execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            sendOnLoop(msg);
+                        }
+                    }
+            );
+        }
+    }
+
+    /**
+     * Write a message, or queue it if the channel can't take it yet. Writes aren't flushed here, whoever triggered
+     * them flushes once the batch is done, or failing that the flush scheduled for the end of the event loop tick
+     *
+     * @param msg {@link Message} to send
+     */
+    private void sendOnLoop(Message msg) {
+        if (msg.getMessage() instanceof HttpRequest) {
+            if (_draindown) {
+                // No new exchanges once draining, the one in flight still completes
+                _logger.log(Level.FINE, "Discarding request to draining connection " + _remoteAddress);
+                ReferenceCountUtil.release(msg.getMessage());
+                if (msg.getPromise() != null) {
+                    msg.getPromise().tryFailure(new IllegalStateException("Connection draining"));
                 }
-        );
+                return;
+            }
+            requestStarted();
+        }
+
+        // Request bytes count against the exchange's window from the moment they are handed to us, queued or not
+        if (_requestWindow != null) {
+            ChannelPromise promise = _requestWindow.consume(_channel, msg.getMessage(), msg.getPromise());
+            if (promise != msg.getPromise()) {
+                msg = msg.withPromise(promise);
+            }
+        }
+
+        if (_connected && _writable && _messageQueue.size() == 0) {
+
+            // Immediately send the current message if possible
+            sendMessage(msg.getMessage(), msg.getPromise());
+            scheduleFlush();
+        } else if (_bufferAccount == null || _bufferAccount.charge(msg.getMessage())) {
+
+            // Queue behind the messages already waiting, and send whatever the channel accepts
+            _messageQueue.add(msg);
+            sendNextMessage();
+        } else {
+
+            // Over the buffer limit, the upstream connection is being closed and us along with it
+            ReferenceCountUtil.release(msg.getMessage());
+            if (msg.getPromise() != null) {
+                msg.getPromise().tryFailure(new ClosedChannelException());
+            }
+        }
     }
 
     /**
-     * Throttles automatic reading from this channel. Delegate the counting of throttles to the shared
-     * {@link org.rahmanj.sandshrew.policy.ServerStats} instance so we have globally shared throttling
+     * Flush at the end of the current event loop tick, unless something flushes before then. Tasks run after the
+     * loop has processed its IO, so every write made while handling this tick's reads goes out in one flush
      */
-    public void throttle() {
-        _downstreamServer.incrementThrottle();
+    private void scheduleFlush() {
+        if (!_flushPending) {
+            _flushPending = true;
+            _channel.eventLoop().execute(_flushTask);
+        }
     }
 
     /**
-     * Unthrottles automatic reading from this channel. Delegate the counting of throttles to the shared
-     * {@link org.rahmanj.sandshrew.policy.ServerStats} instance so we have globally shared throttling
+     * Flush now, the pending end of tick flush then has nothing left to do
      */
-    public void unthrottle() {
-        _downstreamServer.decrementThrottle();
+    private void flushNow() {
+        _flushPending = false;
+        if (_channel != null) {
+            _channel.flush();
+        }
     }
 
     /**
-     * Triggered when the downstream server becomes throttled.
-     * This callback will be invoked from a different threads (probably)
-     * so we run a Runnable inside the channel event loop for concurrency control
+     * The upstream client went away mid exchange, so the connection is left mid exchange too and can't be reused
      */
-    public void onThrottle() {
-        _channel.eventLoop().execute(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        _throttleCount++;
-                        if (_channel != null && _throttleCount > 0) {
-                            _logger.fine("Throttling channel");
-                            _channel.config().setAutoRead(false);
-                        }
-                    }
-                }
-        );
+    public void exchangeFailed() {
+        close();
     }
 
     /**
-     * Triggered when the downstream server becomes throttled
-     * This callback will be invokved from a different threads (probably)
-     * so we run a Runnable inside the channel event loop for concurrency control
+     * Don't return the connection to the pool once the current exchange completes
      */
-    public void onStopThrottle() {
-        _channel.eventLoop().execute(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        if (_throttleCount > 0) {
-                            _throttleCount--;
-                        }
+    public void closeAfterExchange() {
+        _keepAlive = false;
+    }
 
-                        if(_channel != null && _throttleCount == 0) {
-                            _logger.fine("Unthrottling channel");
-                            _channel.config().setAutoRead(true);
+    /**
+     * Stop reading the response from the downstream server, the upstream client's window is exhausted
+     */
+    public void throttle() {
+        setAutoRead(false);
+    }
+
+    /**
+     * Resume reading the response from the downstream server
+     */
+    public void unthrottle() {
+        setAutoRead(true);
+    }
+
+    /**
+     * Switch reads from the downstream server on or off, on the event loop
+     *
+     * @param autoRead True to read, false to stop reading
+     */
+    private void setAutoRead(final boolean autoRead) {
+        if (_channel == null) {
+            return;
+        }
+
+        if (_channel.eventLoop().inEventLoop()) {
+            _channel.config().setAutoRead(autoRead);
+        } else {
+            _channel.eventLoop().execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            _channel.config().setAutoRead(autoRead);
                         }
                     }
-                }
-        );
+            );
+        }
     }
 
     /**
@@ -230,6 +360,15 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
         return _draindown;
     }
 
+    /**
+     * Get the account of the upstream client this {@link DownstreamClient} is bound to, which pays for its queue
+     *
+     * @return Returns the upstream's {@link BufferBudget.Account}, null if idle
+     */
+    public BufferBudget.Account getBufferAccount() {
+        return _bufferAccount;
+    }
+
     /**
      * Get the {@link InetSocketAddress} of the downstream server connected to the {@link Channel} controlled by this {@link DownstreamClient}
      *
@@ -240,12 +379,122 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
     }
 
     /**
-     *
+     * Drain the connection. The exchange in flight, if any, runs to completion, after which the
+     * {@link DownstreamConnectionPool} closes the connection rather than reusing it. An idle connection is closed
+     * straight away.
      */
     public void shutdown() {
 
-        // TODO (JR) Complete this
-       _draindown = true;
+        if (_channel == null) {
+            // Not connected yet, it will never be handed out again
+            _draindown = true;
+            return;
+        }
+
+        _channel.eventLoop().execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        _draindown = true;
+
+                        if (!_requestInFlight && _upstreamChannel == null) {
+                            close();
+                        }
+                    }
+                }
+        );
+    }
+
+    /**
+     * Get the {@link org.rahmanj.sandshrew.policy.ServerInfo} this client is connected to
+     *
+     * @return Returns the {@link org.rahmanj.sandshrew.policy.ServerInfo} for this client
+     */
+    public ServerInfo getServer() {
+        return _downstreamServer;
+    }
+
+    /**
+     * Checks if responses are forwarded upstream as raw bytes
+     *
+     * @return Returns true if this client is in response passthrough mode, false otherwise
+     */
+    public boolean isResponsePassthrough() {
+        return _responsePassthrough;
+    }
+
+    /**
+     * Bind this client to a new upstream {@link ProxyChannel} when it is handed out by a {@link DownstreamConnectionPool}
+     *
+     * @param upstreamChannel The {@link ProxyChannel} responses should be forwarded to
+     */
+    void bind(ProxyChannel upstreamChannel) {
+        _upstreamChannel = upstreamChannel;
+        _bufferAccount = upstreamChannel.getBufferAccount();
+        _requestWindow = new FlowWindow(upstreamChannel, REQUEST_WINDOW_BYTES);
+        _remoteIdentifier = upstreamChannel.getRemoteAddress().getHostString(); // Dodge the DNS call with getHostString()
+    }
+
+    /**
+     * Detach this client from its upstream {@link ProxyChannel} when it is returned to a {@link DownstreamConnectionPool}
+     */
+    void unbind() {
+        if (!_messageQueue.isEmpty()) {
+            // The response finished before the request did, the rest of it can't go out ahead of the next request
+            discardQueuedMessages();
+            _keepAlive = false;
+        }
+
+        // Let go of the upstream if we were holding it back, and stop tracking writes still completing
+        if (_requestWindow != null) {
+            _requestWindow.close();
+            _requestWindow = null;
+        }
+
+        // Idle connections keep reading, so we notice the server closing them
+        if (_channel != null) {
+            _channel.config().setAutoRead(true);
+        }
+
+        _upstreamChannel = null;
+        _bufferAccount = null;
+        _remoteIdentifier = null;
+    }
+
+    /**
+     * Checks if the connection can be handed out again for another request
+     *
+     * @return Returns true if the connection is open, keep-alive and not draining, false otherwise
+     */
+    boolean isReusable() {
+        return _connected && _keepAlive && !_draindown && _channel.isActive();
+    }
+
+    /**
+     * Record when this client was returned idle to its {@link DownstreamConnectionPool}
+     *
+     * @param idleSince {@link System#nanoTime()} at which the client went idle
+     */
+    void markIdle(long idleSince) {
+        _idleSince = idleSince;
+    }
+
+    /**
+     * Get the time at which this client was last returned idle to its {@link DownstreamConnectionPool}
+     *
+     * @return Returns the {@link System#nanoTime()} at which the client went idle
+     */
+    long getIdleSince() {
+        return _idleSince;
+    }
+
+    /**
+     * Close the connection to the downstream server
+     */
+    void close() {
+        if (_channel != null) {
+            _channel.close();
+        }
     }
 
     /**
@@ -278,6 +527,23 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
 
         _connected = false;
 
+        // Keep the server's count balanced, see channelWritabilityChanged()
+        if (!_writable) {
+            _writable = true;
+            _downstreamServer.decrementThrottle();
+        }
+
+        // Connection died mid exchange, whether the server dropped it, a stale keep-alive connection was reused
+        // or exceptionCaught() closed it, and the upstream is still waiting on the response
+        ProxyChannel waiting = _requestInFlight ? _upstreamChannel : null;
+        if (_requestInFlight) {
+            requestFinished(false);
+        }
+        discardQueuedMessages();
+        if (waiting != null) {
+            waiting.exchangeFailed();
+        }
+
         // Forward if needed
         ctx.fireChannelInactive();
     }
@@ -292,11 +558,39 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
 
-        if (msg instanceof HttpObject) {
-            _upstreamChannel.send((HttpObject) msg);
+        if (_upstreamChannel == null) {
+            // Idle pooled connection, nobody is waiting on this data
+            _logger.log(Level.FINE, "Discarding unsolicited read from idle connection");
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+
+        _downstreamServer.stats().bytesReceived(payloadSize(msg));
+
+        if (_requestInFlight && !_firstByteReceived) {
+            _firstByteReceived = true;
+            _downstreamServer.stats().recordFirstByteTime(System.nanoTime() - _requestStartTime);
+        }
+
+        if (msg instanceof ByteBuf) {
+            // Passthrough mode, the response is already encoded
+            _upstreamChannel.sendRaw((ByteBuf) msg, false);
+
+        } else if (msg instanceof HttpObject) {
 
             if (msg instanceof  HttpResponse) {
+                // Decide now if the connection can go back to the pool once the response completes, a response
+                // that isn't kept alive may run until we close, and the client is told it closes after it
+                _keepAlive = HttpHeaders.isKeepAlive((HttpResponse) msg);
+                if (!_keepAlive) {
+                    _upstreamChannel.closeAfterExchange();
+                }
+            }
+
+            _upstreamChannel.send((HttpObject) msg);
 
+            if (msg instanceof LastHttpContent) {
+                requestFinished(true);
             }
 
         } else {
@@ -305,8 +599,48 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
     }
 
     /**
-     * Record changes in channel writability from the proxy to the server so that we can properly handle backpressure
-     * from the server to the client.
+     * Everything read in this batch has been handed upstream, so flush it there in one go
+     *
+     * @param ctx The {@link ChannelHandlerContext} for this channel
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (_upstreamChannel != null) {
+            _upstreamChannel.flush();
+        }
+
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * Handle the end of a passthrough response, as signalled by the {@link HttpResponseFramer}
+     *
+     * @param ctx The {@link ChannelHandlerContext} for this channel
+     * @param evt The user event
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+
+        if (evt instanceof HttpResponseFramer.ResponseCompleted) {
+            _keepAlive = ((HttpResponseFramer.ResponseCompleted) evt).isKeepAlive();
+            requestFinished(true);
+
+            if (_upstreamChannel != null) {
+                // The client got the response headers untouched, so it expects the connection to close after them
+                if (!_keepAlive) {
+                    _upstreamChannel.closeAfterExchange();
+                }
+                _upstreamChannel.sendRaw(Unpooled.EMPTY_BUFFER, true);
+            }
+        } else {
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+
+    /**
+     * Record changes in channel writability from the proxy to the server. Backpressure on the upstream client is
+     * handled by the exchange's {@link FlowWindow}, the server's throttle count only tells the policies how many of
+     * its connections are backed up.
      *
      * @param ctx {@link ChannelHandlerContext} for the current {@link Channel} and pipeline
      */
@@ -317,9 +651,9 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
             _writable = !_writable;
 
             if (_writable) {
-                unthrottleClient();
+                _downstreamServer.decrementThrottle();
             } else {
-                throttleClient();
+                _downstreamServer.incrementThrottle();
             }
         }
 
@@ -333,109 +667,124 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
     }
 
     /**
+     * Handle the occurrence of an exception, such as a response the codec can't parse
      *
-     * @param ctx
-     * @param cause
+     * @param ctx The {@link ChannelHandlerContext} for this channel
+     * @param cause Throwable raised by the error
      */
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        _logger.log(Level.WARNING, "Closing connection with " + _remoteAddress + " after exception", cause);
 
-        // TODO (JR) Convert this to logging framework
-        // TODO (JR) Have this do something to robustly respond
-        cause.printStackTrace();
-
-        // Have a better closure mechanism
+        // channelInactive() lets the upstream know if it was waiting on us
         ctx.close();
-
-        // TODO (JR) Is this safe?
-        // _upstreamChannelHandler.close();
     }
 
     /**
-     * Transfer the next message from the queue
+     * Drain the queue, writing as many messages as the channel accepts and flushing them as one batch. Stops once
+     * the channel becomes unwritable, channelWritabilityChanged() then picks up where this left off.
      */
     protected void sendNextMessage() {
-        Message msg = null;
-        HttpObject http = null;
-        ChannelPromise promise = null;
+        if (!_connected) {
+            // channelActive() drains the queue once connected
+            return;
+        }
 
-        if (_writable) {
-            msg = _messageQueue.remove();
-            sendMessage(http, promise);
-
-            /**
-             * If more messages are queued, send them out ASAP
-             * Note that we cooperatively use the eventLoop() event queue
-             * instead of a loop here so we cooperate with other events that
-             * may need to run on the loop, such as writablity changed events,
-             * or other types of IO event.
-             */
-            if (_messageQueue.size() > 0) {
-                _channel.eventLoop().schedule(
-                        new Runnable() {
-                            @Override
-                            public void run() {
-                                sendNextMessage();
-                            }
-                        },
-                        1,
-                        TimeUnit.MILLISECONDS
-                );
+        // Check the channel itself rather than _writable, it turns unwritable as soon as the writes below pass
+        // the high watermark, while the writability changed event only arrives later
+        int written = 0;
+        Message msg;
+        while (_channel.isWritable() && (msg = _messageQueue.poll()) != null) {
+            creditQueued(msg);
+            sendMessage(msg.getMessage(), msg.getPromise());
+            written++;
+        }
+
+        if (written > 0) {
+            flushNow();
+        }
+    }
+
+    /**
+     * Release every queued message, once the connection has closed and they can never be sent
+     */
+    protected void discardQueuedMessages() {
+        Message msg;
+        while ((msg = _messageQueue.poll()) != null) {
+            creditQueued(msg);
+            ReferenceCountUtil.release(msg.getMessage());
+            if (msg.getPromise() != null) {
+                msg.getPromise().tryFailure(new ClosedChannelException());
             }
         }
+    }
 
-        /**
-         * Don't worry about the else part here
-         * Once writability changes, the callback channelWritabilityChanged()
-         * will call sendNextMessage() and this process will kick off normally
-         */
+    /**
+     * Credit a message leaving the queue to the account it was charged to
+     *
+     * @param msg {@link Message} leaving the queue
+     */
+    private void creditQueued(Message msg) {
+        if (_bufferAccount != null) {
+            _bufferAccount.credit(msg.getMessage());
+        }
     }
 
     /**
      * Send a message to the DownstreamServer through the pipeline. Here we assume we do not need to synchronize
      *
-     * @param msg The {@link HttpObject} to send
+     * @param msg The {@link HttpObject} or {@link ByteBuf} to send
      * @param promise The {@link ChannelPromise} to notify if non-null
      */
-    protected void sendMessage(HttpObject msg, ChannelPromise promise) {
+    protected void sendMessage(Object msg, ChannelPromise promise) {
+        _downstreamServer.stats().bytesSent(payloadSize(msg));
+
         if (promise != null) {
             _channel.write(msg, promise);
         } else {
             _channel.write(msg);
         }
-
-        // TODO (JR) Handle failure to write because of _writable
-        // Or perhaps, we shouldn't even check for _writable, just assume
-        // That the rest of the class knows what it is doing
     }
 
     /**
-     * Stop throttling the remote client if the DownstreamServer allows it
-     */
-    protected void unthrottleClient() {
-
-        /** TODO (JR) Reconsider the global throttle count because
-         * the problem is that only the last DownstreamClient
-         * to unthrottle the server will see that the server
-         * is no longer experiencing backpressure, so
-         * a notification mechanism would be needed to inform all
-         * DownstreamClients connected to the DownstreamServer
-         * that the server was free again, which would be nasty
-         */
-
-        if (_downstreamServer.decrementThrottle() == 0) {
-            _logger.log(Level.FINE, "Renabling reads from upstream: " + _remoteIdentifier);
-            _upstreamChannel.unthrottle();
+     * Get the number of payload bytes in a message. Headers of decoded {@link HttpObject}s aren't counted, raw
+     * {@link ByteBuf}s are counted in full.
+     *
+     * @param msg {@link HttpObject} or {@link ByteBuf}
+     * @return Returns the number of readable bytes in the message
+     */
+    private static long payloadSize(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof HttpContent) {
+            return ((HttpContent) msg).content().readableBytes();
         }
+        return 0;
     }
 
     /**
-     * Start throttling the remote client if the DownstreamServer requires it
+     * Record the start of a request to the downstream server, so load aware policies see it as pending
      */
-    protected void throttleClient() {
-        _downstreamServer.incrementThrottle();
-        _logger.log(Level.FINE, "Disabling reads from upstream: " + _remoteIdentifier);
-        _upstreamChannel.throttle();
+    protected void requestStarted() {
+        _requestInFlight = true;
+        _requestStartTime = System.nanoTime();
+        _firstByteReceived = false;
+        _downstreamServer.stats().requestStarted();
+    }
+
+    /**
+     * Record the end of the request in flight to the downstream server
+     *
+     * @param successful True if the full response was received, false otherwise
+     */
+    protected void requestFinished(boolean successful) {
+        if (_requestInFlight) {
+            _requestInFlight = false;
+            _downstreamServer.stats().requestCompleted(successful);
+            if (successful) {
+                _downstreamServer.stats().recordLatency(System.nanoTime() - _requestStartTime);
+            }
+        }
     }
 
     /**
@@ -449,12 +798,28 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
 
         InetSocketAddress address = _upstreamChannel.getRemoteAddress();
         _remoteIdentifier = address.getHostString(); // Dodge the DNS call with getHostString()
+        _bufferAccount = _upstreamChannel.getBufferAccount();
+        _requestWindow = new FlowWindow(_upstreamChannel, REQUEST_WINDOW_BYTES);
 
         _draindown = false;
         _messageQueue = new ArrayDeque<Message>();
         _connected = false;
         _channel = null;
         _remoteAddress = null;
+        _keepAlive = true; // HTTP/1.1 default
+        _requestInFlight = false;
+        _requestStartTime = 0;
+        _firstByteReceived = false;
+        _idleSince = 0;
+        _flushPending = false;
+        _flushTask = new Runnable() {
+            @Override
+            public void run() {
+                if (_flushPending) {
+                    flushNow();
+                }
+            }
+        };
     }
 
     /**
@@ -463,11 +828,21 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
      */
     private EventLoopGroup _workerGroup;
 
+    /**
+     * {@link Transport} the worker group belongs to
+     */
+    private Transport _transport;
+
     /**
      * {@link io.netty.handler.codec.spdy.SpdyVersion} to use if SPDY is requested
      */
     private SpdyVersion _spdyVersion;
 
+    /**
+     * True if responses are forwarded upstream as raw bytes rather than decoded {@link HttpObject}s
+     */
+    private boolean _responsePassthrough;
+
     /**
      * Netty {@link Bootstrap} to use for this {@link DownstreamClient}
      */
@@ -514,15 +889,60 @@ public class DownstreamClient extends ChannelInboundHandlerAdapter implements Pr
      */
     private Queue<Message> _messageQueue;
 
+    /**
+     * {@link BufferBudget.Account} of the bound upstream client, charged for everything in the queue
+     */
+    private BufferBudget.Account _bufferAccount;
+
     /**
      * Track current connection status
      */
     private boolean _connected;
 
     /**
-     * Track the throttle requests on this given downstream connection.
+     * {@link FlowWindow} for request bytes from the bound upstream client, null while idle
+     */
+    private FlowWindow _requestWindow;
+
+    /**
+     * Track if the server will keep the connection open after the current response
+     */
+    private boolean _keepAlive;
+
+    /**
+     * Track if a request has been sent whose response has not yet completed
+     */
+    private boolean _requestInFlight;
+
+    /**
+     * {@link System#nanoTime()} at which the request in flight was sent
+     */
+    private long _requestStartTime;
+
+    /**
+     * Track if any of the response to the request in flight has arrived yet
+     */
+    private boolean _firstByteReceived;
+
+    /**
+     * {@link System#nanoTime()} at which this client was last returned idle to its {@link DownstreamConnectionPool}
+     */
+    private long _idleSince;
+
+    /**
+     * Track if there are writes waiting on the end of tick flush
+     */
+    private boolean _flushPending;
+
+    /**
+     * Task flushing at the end of the event loop tick, allocated once
+     */
+    private Runnable _flushTask;
+
+    /**
+     * Request bytes an upstream client may have written to us but not yet to the server before it is throttled
      */
-    private int _throttleCount;
+    private static final long REQUEST_WINDOW_BYTES = 256 * 1024;
 
     private static final Logger _logger = Logger.getLogger(
             DownstreamClient.class.getName()
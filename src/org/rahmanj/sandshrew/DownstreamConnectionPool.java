@@ -0,0 +1,450 @@
+
+package org.rahmanj.sandshrew;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.rahmanj.sandshrew.policy.ServerInfo;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of keep-alive {@link DownstreamClient}s owned by a single worker {@link EventLoop}.
+ * Every method must be invoked from inside the owning {@link EventLoop}, which lets us hand out and take back
+ * connections without any locking. Each pooled {@link DownstreamClient} is bound to the same {@link EventLoop}
+ * as the upstream channel borrowing it, so messages never cross threads on their way through the proxy.
+ * Connections that pass responses through as raw bytes are pooled separately from those that decode them.
+ * Connections to a server are drained once a new configuration drops it, see {@link #retainServers(Set)}.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class DownstreamConnectionPool {
+
+    /**
+     * Construct a new {@link DownstreamConnectionPool} instance
+     *
+     * @param eventLoop The {@link EventLoop} that owns this pool and all of its connections
+     * @param transport The {@link Transport} the {@link EventLoop} belongs to
+     * @param maxIdlePerServer Maximum number of idle connections kept open to each {@link ServerInfo}
+     * @param maxConnectionsPerServer Maximum number of open connections (idle or busy) to each {@link ServerInfo}
+     * @param idleTimeoutMillis Time (in milliseconds) an idle connection may sit in the pool before being closed
+     */
+    public DownstreamConnectionPool(EventLoop eventLoop, Transport transport, int maxIdlePerServer, int maxConnectionsPerServer, long idleTimeoutMillis) {
+        if (eventLoop == null) {
+            throw new NullPointerException("Null event loop");
+        }
+
+        if (transport == null) {
+            throw new NullPointerException("Null transport");
+        }
+
+        if (maxIdlePerServer < 0) {
+            throw new IllegalArgumentException("Non-negative idle connection count required");
+        }
+
+        if (maxConnectionsPerServer <= 0) {
+            throw new IllegalArgumentException("Positive connection count required");
+        }
+
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Positive idle timeout required");
+        }
+
+        _eventLoop = eventLoop;
+        _transport = transport;
+        _maxIdlePerServer = maxIdlePerServer;
+        _maxConnectionsPerServer = maxConnectionsPerServer;
+        _idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        _servers = new HashMap<ServerInfo, ServerConnections>();
+        _passthroughServers = new HashMap<ServerInfo, ServerConnections>();
+
+        // An idle connection lives at most two timeout periods before the sweep catches it
+        _evictionFuture = _eventLoop.scheduleAtFixedRate(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        evictIdleClients();
+                    }
+                },
+                idleTimeoutMillis,
+                idleTimeoutMillis,
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Borrow a connected {@link DownstreamClient} for the given {@link ServerInfo}. An idle keep-alive connection
+     * is reused if one is available, otherwise a new connection is opened as long as we are below the per server
+     * limit. If the limit has been reached, the request waits for the next connection to be released.
+     *
+     * @param server The {@link ServerInfo} to connect to
+     * @param upstreamChannel The {@link ProxyChannel} that responses should be forwarded to
+     * @param responsePassthrough True if the upstream wants responses as raw bytes, see {@link HttpResponseFramer}
+     * @return Returns a {@link Future} that completes with a connected {@link DownstreamClient}
+     */
+    public Future<DownstreamClient> acquire(ServerInfo server, ProxyChannel upstreamChannel, boolean responsePassthrough) {
+        if (server == null) {
+            throw new NullPointerException("Null server");
+        }
+
+        if (upstreamChannel == null) {
+            throw new NullPointerException("Null upstream channel");
+        }
+
+        assert _eventLoop.inEventLoop();
+
+        ServerConnections connections = connectionsFor(server, responsePassthrough);
+        Promise<DownstreamClient> promise = _eventLoop.newPromise();
+
+        // Prefer the most recently used connection, it is the least likely to have been closed by the server
+        DownstreamClient client;
+        while ((client = connections.idle.pollLast()) != null) {
+            if (client.isReusable()) {
+                client.bind(upstreamChannel);
+                promise.setSuccess(client);
+                return promise;
+            }
+
+            // Stale connection, the close listener takes care of the accounting
+            client.close();
+        }
+
+        if (connections.open < _maxConnectionsPerServer) {
+            connect(server, responsePassthrough, connections, upstreamChannel, promise);
+        } else {
+            _logger.log(Level.FINE, "Connection limit reached for " + server.getHostname() + ", waiting for release");
+            connections.waiters.add(new Waiter(upstreamChannel, promise));
+        }
+
+        return promise;
+    }
+
+    /**
+     * Return a {@link DownstreamClient} to the pool once its exchange has completed. Connections that cannot be
+     * kept alive, or that would exceed the idle limit, are closed instead.
+     *
+     * @param client The {@link DownstreamClient} being returned
+     */
+    public void release(DownstreamClient client) {
+        if (client == null) {
+            throw new NullPointerException("Null client");
+        }
+
+        assert _eventLoop.inEventLoop();
+
+        client.unbind();
+
+        // Servers dropped by a reload have no bookkeeping left, their connections close as they come back
+        Map<ServerInfo, ServerConnections> servers = client.isResponsePassthrough() ? _passthroughServers : _servers;
+        ServerConnections connections = servers.get(client.getServer());
+        if (connections == null || !client.isReusable()) {
+            client.close();
+            return;
+        }
+
+        // Hand the connection directly to anyone waiting on it
+        Waiter waiter;
+        while ((waiter = connections.waiters.poll()) != null) {
+            client.bind(waiter.upstreamChannel);
+            if (waiter.promise.trySuccess(client)) {
+                return;
+            }
+            client.unbind();
+        }
+
+        if (connections.idle.size() >= _maxIdlePerServer) {
+            client.close();
+            return;
+        }
+
+        client.markIdle(System.nanoTime());
+        connections.idle.addLast(client);
+    }
+
+    /**
+     * Drain every connection and stop the eviction task. Idle connections are closed now, connections currently
+     * in use are closed once their exchange completes.
+     */
+    public void shutdown() {
+        _eventLoop.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        _evictionFuture.cancel(false);
+                        _maxIdlePerServer = 0;
+
+                        drainServers(_servers, Collections.<ServerInfo>emptySet());
+                        drainServers(_passthroughServers, Collections.<ServerInfo>emptySet());
+                    }
+                }
+        );
+    }
+
+    /**
+     * Drain the connections to every server not in the given set and drop their bookkeeping, once a new
+     * configuration no longer refers to them. Idle connections are closed now, connections currently in use are
+     * closed once their exchange completes. Borrowers still waiting are served as connections close.
+     *
+     * @param servers {@link Set} of the {@link ServerInfo}s still in use, must not change afterwards
+     */
+    public void retainServers(final Set<ServerInfo> servers) {
+        _eventLoop.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        drainServers(_servers, servers);
+                        drainServers(_passthroughServers, servers);
+                    }
+                }
+        );
+    }
+
+    /**
+     * Get the {@link EventLoop} that owns this pool
+     *
+     * @return Returns the owning {@link EventLoop}
+     */
+    public EventLoop eventLoop() {
+        return _eventLoop;
+    }
+
+    /**
+     * Open a new connection to the given {@link ServerInfo} and complete the {@link Promise} once it is established
+     *
+     * @param server {@link ServerInfo} to connect to
+     * @param responsePassthrough True if the new client should pass responses through as raw bytes
+     * @param connections {@link ServerConnections} bookkeeping for the server
+     * @param upstreamChannel {@link ProxyChannel} the new client will forward responses to
+     * @param promise {@link Promise} to complete when the connection is established
+     */
+    protected void connect(final ServerInfo server, final boolean responsePassthrough, final ServerConnections connections, ProxyChannel upstreamChannel, final Promise<DownstreamClient> promise) {
+
+        final DownstreamClient client = new DownstreamClient(upstreamChannel, server, _eventLoop, _transport, responsePassthrough);
+        connections.open++;
+
+        ChannelFuture connectFuture = client.run();
+
+        // Single point of accounting for connections leaving the pool, whether they failed or were closed
+        connectFuture.channel().closeFuture().addListener(
+                new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        connectionClosed(server, responsePassthrough, connections, client);
+                    }
+                }
+        );
+
+        connectFuture.addListener(
+                new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        if (future.isSuccess()) {
+                            connections.connected.add(client);
+                            if (!promise.trySuccess(client)) {
+                                // Borrower went away while we were connecting, keep the connection for someone else
+                                release(client);
+                            }
+                        } else {
+                            promise.tryFailure(future.cause());
+                        }
+                    }
+                }
+        );
+    }
+
+    /**
+     * Update the bookkeeping once a connection is closed, and open a replacement if anyone is waiting
+     *
+     * @param server {@link ServerInfo} the connection was open to
+     * @param responsePassthrough True if the connection was passing responses through as raw bytes
+     * @param connections {@link ServerConnections} bookkeeping for the server
+     * @param client {@link DownstreamClient} that was closed
+     */
+    protected void connectionClosed(ServerInfo server, boolean responsePassthrough, ServerConnections connections, DownstreamClient client) {
+        connections.open--;
+        connections.connected.remove(client);
+        connections.idle.remove(client);
+
+        // Borrowers that gave up while waiting don't need a connection opened for them
+        Waiter waiter = connections.waiters.poll();
+        while (waiter != null && waiter.promise.isDone()) {
+            waiter = connections.waiters.poll();
+        }
+        if (waiter != null) {
+            connect(server, responsePassthrough, connections, waiter.upstreamChannel, waiter.promise);
+        }
+    }
+
+    /**
+     * Close any connections that have been idle longer than the idle timeout
+     */
+    protected void evictIdleClients() {
+        long now = System.nanoTime();
+        evictIdleClients(_servers, now);
+        evictIdleClients(_passthroughServers, now);
+    }
+
+    /**
+     * Close any connections in the given bookkeeping map that have been idle longer than the idle timeout
+     *
+     * @param servers {@link Map} of {@link ServerConnections} to sweep
+     * @param now Current {@link System#nanoTime()}
+     */
+    private void evictIdleClients(Map<ServerInfo, ServerConnections> servers, long now) {
+        for (ServerConnections connections : servers.values()) {
+
+            // Oldest connections sit at the head of the deque, so we can stop at the first fresh one
+            Iterator<DownstreamClient> it = connections.idle.iterator();
+            while (it.hasNext()) {
+                DownstreamClient client = it.next();
+                if (now - client.getIdleSince() < _idleTimeoutNanos) {
+                    break;
+                }
+
+                it.remove();
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Drain the connections to every server in the given bookkeeping map that isn't retained, and remove them from
+     * the map. Connections still opening aren't touched, they are handed to their borrower and closed on release.
+     *
+     * @param servers {@link Map} of {@link ServerConnections} to prune
+     * @param retained {@link Set} of {@link ServerInfo}s to keep
+     */
+    private void drainServers(Map<ServerInfo, ServerConnections> servers, Set<ServerInfo> retained) {
+        Iterator<Map.Entry<ServerInfo, ServerConnections>> it = servers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ServerInfo, ServerConnections> entry = it.next();
+            if (retained.contains(entry.getKey())) {
+                continue;
+            }
+            it.remove();
+
+            ServerConnections connections = entry.getValue();
+            connections.idle.clear();
+            for (DownstreamClient client : connections.connected) {
+                // Closes idle connections, the rest are no longer reusable once their exchange completes
+                client.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Find or create the {@link ServerConnections} for a given {@link ServerInfo}
+     *
+     * @param server {@link ServerInfo} to look up
+     * @param responsePassthrough True to look up passthrough connections, false for decoding connections
+     * @return Returns the {@link ServerConnections} for the server
+     */
+    private ServerConnections connectionsFor(ServerInfo server, boolean responsePassthrough) {
+        Map<ServerInfo, ServerConnections> servers = responsePassthrough ? _passthroughServers : _servers;
+
+        ServerConnections connections = servers.get(server);
+        if (connections == null) {
+            connections = new ServerConnections();
+            servers.put(server, connections);
+        }
+        return connections;
+    }
+
+    /**
+     * Per {@link ServerInfo} connection bookkeeping
+     */
+    private static class ServerConnections {
+
+        /**
+         * Idle connections, least recently used first
+         */
+        final Deque<DownstreamClient> idle = new ArrayDeque<DownstreamClient>();
+
+        /**
+         * Borrowers waiting for a connection to free up
+         */
+        final Queue<Waiter> waiters = new ArrayDeque<Waiter>();
+
+        /**
+         * Established connections, idle or busy
+         */
+        final Set<DownstreamClient> connected = new HashSet<DownstreamClient>();
+
+        /**
+         * Number of open or opening connections, idle or busy
+         */
+        int open;
+    }
+
+    /**
+     * Borrower waiting for a connection
+     */
+    private static class Waiter {
+
+        Waiter(ProxyChannel upstreamChannel, Promise<DownstreamClient> promise) {
+            this.upstreamChannel = upstreamChannel;
+            this.promise = promise;
+        }
+
+        final ProxyChannel upstreamChannel;
+        final Promise<DownstreamClient> promise;
+    }
+
+    /**
+     * {@link EventLoop} owning this pool
+     */
+    private final EventLoop _eventLoop;
+
+    /**
+     * {@link Transport} of {@link #_eventLoop}, used for new connections
+     */
+    private final Transport _transport;
+
+    /**
+     * Maximum number of idle connections per server
+     */
+    private int _maxIdlePerServer;
+
+    /**
+     * Maximum number of open connections per server
+     */
+    private final int _maxConnectionsPerServer;
+
+    /**
+     * Idle timeout, in nanoseconds
+     */
+    private final long _idleTimeoutNanos;
+
+    /**
+     * Connection bookkeeping for each {@link ServerInfo}, only touched from inside {@link #_eventLoop}
+     */
+    private final Map<ServerInfo, ServerConnections> _servers;
+
+    /**
+     * Connection bookkeeping for passthrough connections to each {@link ServerInfo}
+     */
+    private final Map<ServerInfo, ServerConnections> _passthroughServers;
+
+    /**
+     * Periodic idle eviction task
+     */
+    private final ScheduledFuture<?> _evictionFuture;
+
+    private static final Logger _logger = Logger.getLogger(
+            DownstreamConnectionPool.class.getName()
+    );
+}
@@ -0,0 +1,86 @@
+
+package org.rahmanj.sandshrew;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import org.rahmanj.sandshrew.policy.ServerInfo;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Set of {@link DownstreamConnectionPool}s, one for each {@link EventLoop} in the shared worker {@link EventLoopGroup}.
+ * The mapping is built once up front and never modified, so lookups are safe from any thread without locking.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class DownstreamConnectionPoolGroup {
+
+    /**
+     * Construct a new {@link DownstreamConnectionPoolGroup} instance
+     *
+     * @param workerGroup The shared worker {@link EventLoopGroup}, one pool is created for each of its {@link EventLoop}s
+     * @param transport The {@link Transport} the worker group belongs to
+     * @param maxIdlePerServer Maximum number of idle connections kept open to each server, per {@link EventLoop}
+     * @param maxConnectionsPerServer Maximum number of open connections to each server, per {@link EventLoop}
+     * @param idleTimeoutMillis Time (in milliseconds) an idle connection may sit in a pool before being closed
+     */
+    public DownstreamConnectionPoolGroup(EventLoopGroup workerGroup, Transport transport, int maxIdlePerServer, int maxConnectionsPerServer, long idleTimeoutMillis) {
+        if (workerGroup == null) {
+            throw new NullPointerException("Null worker group");
+        }
+
+        Map<EventLoop, DownstreamConnectionPool> pools = new HashMap<EventLoop, DownstreamConnectionPool>();
+
+        for (EventExecutor executor : workerGroup) {
+            EventLoop eventLoop = (EventLoop) executor;
+            pools.put(eventLoop, new DownstreamConnectionPool(eventLoop, transport, maxIdlePerServer, maxConnectionsPerServer, idleTimeoutMillis));
+        }
+
+        _pools = Collections.unmodifiableMap(pools);
+    }
+
+    /**
+     * Get the {@link DownstreamConnectionPool} owned by a given {@link EventLoop}
+     *
+     * @param eventLoop The {@link EventLoop} of the calling channel
+     * @return Returns the {@link DownstreamConnectionPool} owned by the {@link EventLoop}
+     */
+    public DownstreamConnectionPool poolFor(EventLoop eventLoop) {
+        DownstreamConnectionPool pool = _pools.get(eventLoop);
+        if (pool == null) {
+            throw new IllegalArgumentException("Event loop is not part of the worker group");
+        }
+        return pool;
+    }
+
+    /**
+     * Drain the connections of every {@link DownstreamConnectionPool} in the group to servers not in the given set
+     *
+     * @param servers {@link Set} of the {@link ServerInfo}s still in use
+     */
+    public void retainServers(Set<ServerInfo> servers) {
+        Set<ServerInfo> retained = Collections.unmodifiableSet(new HashSet<ServerInfo>(servers));
+        for (DownstreamConnectionPool pool : _pools.values()) {
+            pool.retainServers(retained);
+        }
+    }
+
+    /**
+     * Shutdown all the {@link DownstreamConnectionPool}s in the group
+     */
+    public void shutdown() {
+        for (DownstreamConnectionPool pool : _pools.values()) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Immutable mapping from each worker {@link EventLoop} to its {@link DownstreamConnectionPool}
+     */
+    private final Map<EventLoop, DownstreamConnectionPool> _pools;
+}
@@ -0,0 +1,169 @@
+package org.rahmanj.sandshrew;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpContent;
+
+/**
+ * Credit based flow control for one direction of one exchange
+ *
+ * The side writing holds the window. Every message it writes consumes credit equal to its payload, and the credit
+ * is given back once the write completes, meaning the bytes reached the socket. When the credit runs out, the
+ * {@link ProxyChannel} the bytes are coming from is throttled, and it is unthrottled once half the window is back.
+ * Since each exchange has its own windows, a slow client only ever stops reads from its own downstream connection,
+ * never from anyone else's.
+ *
+ * Both ends of an exchange share an event loop, so a window is only used from that loop.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+class FlowWindow {
+
+    /**
+     * Construct a new {@link FlowWindow} instance
+     *
+     * @param source {@link ProxyChannel} the bytes are read from, throttled while the window is exhausted
+     * @param size Number of bytes that may be written but not yet completed
+     */
+    FlowWindow(ProxyChannel source, long size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Positive window size required");
+        }
+
+        _source = source;
+        _size = size;
+        _credit = size;
+        _throttled = false;
+        _closed = false;
+    }
+
+    /**
+     * Consume credit for a message about to be written, and arrange for it to be returned once the write completes
+     *
+     * @param channel {@link Channel} the message will be written to
+     * @param msg Message about to be written
+     * @param promise {@link ChannelPromise} the caller wants notified, null for none
+     * @return Returns the {@link ChannelPromise} to write the message with, null if the message carries no payload
+     *         and the caller passed none
+     */
+    ChannelPromise consume(Channel channel, Object msg, ChannelPromise promise) {
+        int bytes = sizeOf(msg);
+        if (bytes == 0 || _closed) {
+            return promise;
+        }
+
+        _credit -= bytes;
+        if (_credit <= 0 && !_throttled) {
+            _throttled = true;
+            _source.throttle();
+        }
+
+        if (promise == null) {
+            promise = channel.newPromise();
+        }
+        promise.addListener(new Replenish(bytes));
+        return promise;
+    }
+
+    /**
+     * Stop flow control once the exchange is over, releasing the source if it is throttled. Writes still
+     * completing afterwards are ignored, so they can't affect the source once it moves on to another exchange
+     */
+    void close() {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+
+        if (_throttled) {
+            _throttled = false;
+            _source.unthrottle();
+        }
+    }
+
+    /**
+     * Get the credit left
+     *
+     * @return Returns the number of bytes that may still be written before the source is throttled
+     */
+    long getCredit() {
+        return _credit;
+    }
+
+    /**
+     * Give back credit for a completed write
+     *
+     * @param bytes Payload of the completed write
+     */
+    private void replenish(int bytes) {
+        if (_closed) {
+            return;
+        }
+
+        _credit += bytes;
+        if (_throttled && _credit >= _size / 2) {
+            _throttled = false;
+            _source.unthrottle();
+        }
+    }
+
+    /**
+     * Get the payload size of a message
+     *
+     * @param msg {@link HttpContent}, {@link ByteBuf} or other message
+     * @return Returns the readable bytes of the message, 0 for messages without content
+     */
+    private static int sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof HttpContent) {
+            return ((HttpContent) msg).content().readableBytes();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the credit of one write once it completes, successfully or not
+     */
+    private final class Replenish implements ChannelFutureListener {
+
+        Replenish(int bytes) {
+            _bytes = bytes;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            replenish(_bytes);
+        }
+
+        private final int _bytes;
+    }
+
+    /**
+     * {@link ProxyChannel} the bytes are read from
+     */
+    private final ProxyChannel _source;
+
+    /**
+     * Full size of the window
+     */
+    private final long _size;
+
+    /**
+     * Bytes that may still be written before the source is throttled, negative if overdrawn
+     */
+    private long _credit;
+
+    /**
+     * True while the source is throttled by this window
+     */
+    private boolean _throttled;
+
+    /**
+     * True once the exchange is over
+     */
+    private boolean _closed;
+}
@@ -0,0 +1,155 @@
+package org.rahmanj.sandshrew;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.CharsetUtil;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Turns away HTTP/2 clients on an HTTP/1.x connection so they fall back to HTTP/1.1
+ *
+ * A client with prior knowledge opens with the HTTP/2 connection preface, which the HTTP/1.x decoder would
+ * otherwise read as a PRI request and the proxy would route downstream. When the preface is seen, the connection is
+ * answered with an empty SETTINGS frame, as the server preface, and a GOAWAY with HTTP_1_1_REQUIRED before it is
+ * closed. Any other connection has its bytes passed on untouched and this handler removes itself.
+ *
+ * Upgrade offers are handled by {@link #ignoreUpgrade(HttpRequest)}, since they arrive as ordinary requests.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+class Http2PrefaceHandler extends ByteToMessageDecoder {
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        int length = Math.min(in.readableBytes(), PREFACE.length);
+        for (int i = 0; i < length; i++) {
+            if (in.getByte(in.readerIndex() + i) != PREFACE[i]) {
+                // Not HTTP/2, the bytes read so far go on to the HTTP/1.x decoder once we are gone
+                ctx.pipeline().remove(this);
+                return;
+            }
+        }
+
+        if (length < PREFACE.length) {
+            // Wait for the rest of the preface
+            return;
+        }
+
+        _logger.log(Level.FINE, "HTTP/2 prior knowledge from " + ctx.channel().remoteAddress() + ", requiring HTTP/1.1");
+        in.skipBytes(in.readableBytes());
+        ctx.writeAndFlush(Unpooled.wrappedBuffer(SETTINGS_AND_GOAWAY)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * Drop an h2c upgrade offer from a request so it goes downstream as plain HTTP/1.1. Servers are free to ignore
+     * the offer, and the downstream server must not accept one for a connection it doesn't own. Other protocols
+     * offered alongside h2c are left alone.
+     *
+     * @param req {@link HttpRequest} to check
+     * @return Returns true if the request offered h2c
+     */
+    static boolean ignoreUpgrade(HttpRequest req) {
+        HttpHeaders headers = req.headers();
+        String upgrade = headers.get(HttpHeaders.Names.UPGRADE);
+        if (upgrade == null || !hasToken(upgrade, H2C)) {
+            return false;
+        }
+
+        headers.remove(HTTP2_SETTINGS);
+        String others = removeToken(upgrade, H2C);
+        if (others.isEmpty()) {
+            headers.remove(HttpHeaders.Names.UPGRADE);
+        } else {
+            headers.set(HttpHeaders.Names.UPGRADE, others);
+        }
+
+        // The Connection header names the headers we just removed
+        String connection = headers.get(HttpHeaders.Names.CONNECTION);
+        if (connection != null) {
+            connection = removeToken(connection, HTTP2_SETTINGS);
+            if (others.isEmpty()) {
+                connection = removeToken(connection, HttpHeaders.Names.UPGRADE);
+            }
+
+            if (connection.isEmpty()) {
+                headers.remove(HttpHeaders.Names.CONNECTION);
+            } else {
+                headers.set(HttpHeaders.Names.CONNECTION, connection);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if a comma separated header value contains a token
+     *
+     * @param value Header value
+     * @param token Token to look for, compared ignoring case
+     * @return Returns true if the token is present
+     */
+    private static boolean hasToken(String value, String token) {
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove a token from a comma separated header value
+     *
+     * @param value Header value
+     * @param token Token to remove, compared ignoring case
+     * @return Returns the remaining tokens, empty if there are none
+     */
+    private static String removeToken(String value, String token) {
+        StringBuilder remaining = new StringBuilder();
+        for (String part : value.split(",")) {
+            part = part.trim();
+            if (!part.isEmpty() && !part.equalsIgnoreCase(token)) {
+                if (remaining.length() > 0) {
+                    remaining.append(", ");
+                }
+                remaining.append(part);
+            }
+        }
+        return remaining.toString();
+    }
+
+    /**
+     * Upgrade token for HTTP/2 over cleartext TCP
+     */
+    private static final String H2C = "h2c";
+
+    /**
+     * Header carrying the client's settings along with an h2c upgrade offer
+     */
+    private static final String HTTP2_SETTINGS = "HTTP2-Settings";
+
+    /**
+     * HTTP/2 client connection preface
+     */
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(CharsetUtil.US_ASCII);
+
+    /**
+     * Empty SETTINGS frame followed by a GOAWAY frame with last stream 0 and error HTTP_1_1_REQUIRED
+     */
+    private static final byte[] SETTINGS_AND_GOAWAY = {
+            0x00, 0x00, 0x00, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x08, 0x07, 0x00, 0x00, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x0d
+    };
+
+    private static final Logger _logger = Logger.getLogger(
+            Http2PrefaceHandler.class.getName()
+    );
+}
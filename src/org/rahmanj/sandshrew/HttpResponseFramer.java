@@ -0,0 +1,438 @@
+
+package org.rahmanj.sandshrew;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Frames HTTP/1.x responses from a downstream server without decoding them. Only the response head, and the
+ * chunk size lines of chunked bodies, are inspected to find where each response ends. All bytes are forwarded
+ * onward as retained slices of the buffers read from the socket, so the body is never copied, decoded or re-encoded.
+ *
+ * A {@link ResponseCompleted} user event is fired once the final byte of each response has been forwarded.
+ * Outgoing {@link HttpRequest}s are observed so responses to HEAD requests are framed correctly.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class HttpResponseFramer extends ChannelDuplexHandler {
+
+    /**
+     * Construct a new {@link HttpResponseFramer} instance
+     *
+     * @param maxLineLength Maximum length of the status line, each header line and each chunk size line
+     */
+    public HttpResponseFramer(int maxLineLength) {
+        if (maxLineLength <= 0) {
+            throw new IllegalArgumentException("Positive line length required");
+        }
+
+        _maxLineLength = maxLineLength;
+        _line = new StringBuilder(128);
+        _requestMethods = new ArrayDeque<HttpMethod>();
+        resetResponse();
+    }
+
+    /**
+     * Record the method of each outgoing request so the matching response can be framed
+     *
+     * @param ctx {@link ChannelHandlerContext} for this channel
+     * @param msg Object being written
+     * @param promise {@link ChannelPromise} for the write
+     */
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof HttpRequest) {
+            _requestMethods.add(((HttpRequest) msg).getMethod());
+        }
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * Scan incoming bytes for response boundaries and forward them onward untouched
+     *
+     * @param ctx {@link ChannelHandlerContext} for this channel
+     * @param msg {@link ByteBuf} read from the downstream server
+     */
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        ByteBuf in = (ByteBuf) msg;
+        try {
+            int forwardStart = in.readerIndex();
+
+            while (in.isReadable()) {
+                if (frame(in)) {
+                    // Response finished inside this buffer, send it on before anything that follows
+                    forward(ctx, in, forwardStart);
+                    forwardStart = in.readerIndex();
+                    completeResponse(ctx);
+                }
+            }
+
+            forward(ctx, in, forwardStart);
+        } finally {
+            in.release();
+        }
+    }
+
+    /**
+     * A response delimited by connection closure completes when the connection does
+     *
+     * @param ctx {@link ChannelHandlerContext} for this channel
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (_state == State.UNTIL_CLOSE) {
+            _keepAlive = false;
+            completeResponse(ctx);
+        }
+
+        ctx.fireChannelInactive();
+    }
+
+    /**
+     * Advance the framing state machine over the given buffer
+     *
+     * @param in {@link ByteBuf} to consume bytes from
+     * @return Returns true if the current response ended, false if more bytes are needed
+     */
+    private boolean frame(ByteBuf in) throws TooLongFrameException {
+        switch (_state) {
+            case STATUS_LINE:
+                if (readLine(in)) {
+                    parseStatusLine();
+                    _state = State.HEADERS;
+                }
+                return false;
+
+            case HEADERS:
+                if (readLine(in)) {
+                    if (_line.length() > 0) {
+                        parseHeader();
+                        return false;
+                    }
+                    return endOfHead();
+                }
+                return false;
+
+            case FIXED_BODY:
+                return skip(in);
+
+            case CHUNK_SIZE:
+                if (readLine(in)) {
+                    _remaining = parseChunkSize();
+                    _state = _remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                }
+                return false;
+
+            case CHUNK_DATA:
+                if (skip(in)) {
+                    _state = State.CHUNK_DATA_END;
+                }
+                return false;
+
+            case CHUNK_DATA_END:
+                if (readLine(in)) {
+                    _state = State.CHUNK_SIZE;
+                }
+                return false;
+
+            case TRAILERS:
+                // Response ends at the empty line following any trailers
+                return readLine(in) && _line.length() == 0;
+
+            case UNTIL_CLOSE:
+                in.skipBytes(in.readableBytes());
+                return false;
+
+            default:
+                throw new IllegalStateException("Unknown framing state");
+        }
+    }
+
+    /**
+     * Decide how the body is delimited once the response head has been read
+     *
+     * @return Returns true if the response has no body, and so has ended
+     */
+    private boolean endOfHead() {
+
+        // Interim responses are followed by the real response to the same request
+        if (_status >= 100 && _status < 200 && _status != 101) {
+            resetResponse();
+            return false;
+        }
+
+        HttpMethod method = _requestMethods.poll();
+
+        if (_status == 101) {
+            // Switching protocols, everything from here on belongs to the new protocol
+            _keepAlive = false;
+            _state = State.UNTIL_CLOSE;
+            return false;
+        }
+
+        if (HttpMethod.HEAD.equals(method) || _status == 204 || _status == 304) {
+            return true;
+        }
+
+        if (_chunked) {
+            _state = State.CHUNK_SIZE;
+            return false;
+        }
+
+        if (_remaining >= 0) {
+            _state = State.FIXED_BODY;
+            return _remaining == 0;
+        }
+
+        // Neither chunked nor a length, so the body runs until the server closes the connection
+        _keepAlive = false;
+        _state = State.UNTIL_CLOSE;
+        return false;
+    }
+
+    /**
+     * Skip over body bytes whose length is already known
+     *
+     * @param in {@link ByteBuf} to consume bytes from
+     * @return Returns true if all the known bytes have been skipped
+     */
+    private boolean skip(ByteBuf in) {
+        int count = (int) Math.min(_remaining, in.readableBytes());
+        in.skipBytes(count);
+        _remaining -= count;
+        return _remaining == 0;
+    }
+
+    /**
+     * Accumulate bytes into {@link #_line} until a line feed is found. The line feed, and any preceding
+     * carriage return, are not included in the line.
+     *
+     * @param in {@link ByteBuf} to consume bytes from
+     * @return Returns true if a full line is available in {@link #_line}
+     */
+    private boolean readLine(ByteBuf in) throws TooLongFrameException {
+        if (_lineComplete) {
+            _line.setLength(0);
+            _lineComplete = false;
+        }
+
+        int length = in.bytesBefore(LF);
+        boolean found = length >= 0;
+        if (!found) {
+            length = in.readableBytes();
+        }
+
+        if (_line.length() + length > _maxLineLength) {
+            throw new TooLongFrameException("Response line is larger than " + _maxLineLength + " bytes");
+        }
+
+        int start = in.readerIndex();
+        for (int i = 0; i < length; i++) {
+            _line.append((char) (in.getByte(start + i) & 0xFF));
+        }
+        in.skipBytes(found ? length + 1 : length);
+
+        if (found) {
+            int end = _line.length();
+            if (end > 0 && _line.charAt(end - 1) == CR) {
+                _line.setLength(end - 1);
+            }
+            _lineComplete = true;
+        }
+
+        return found;
+    }
+
+    /**
+     * Parse the HTTP version and status code out of the status line
+     */
+    private void parseStatusLine() {
+        int firstSpace = _line.indexOf(" ");
+        if (firstSpace < 0 || _line.length() < firstSpace + 4) {
+            throw new IllegalStateException("Malformed status line: " + _line);
+        }
+
+        _keepAlive = !_line.substring(0, firstSpace).equals("HTTP/1.0");
+        _status = Integer.parseInt(_line.substring(firstSpace + 1, firstSpace + 4));
+    }
+
+    /**
+     * Pick out the headers that determine framing and connection reuse
+     */
+    private void parseHeader() {
+        int colon = _line.indexOf(":");
+        if (colon <= 0) {
+            return;
+        }
+
+        String name = _line.substring(0, colon).trim();
+        String value = _line.substring(colon + 1).trim();
+
+        if (name.equalsIgnoreCase("Content-Length")) {
+            _remaining = Long.parseLong(value);
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+            _chunked = value.toLowerCase().contains("chunked");
+        } else if (name.equalsIgnoreCase("Connection")) {
+            if (value.equalsIgnoreCase("close")) {
+                _keepAlive = false;
+            } else if (value.equalsIgnoreCase("keep-alive")) {
+                _keepAlive = true;
+            }
+        }
+    }
+
+    /**
+     * Parse the hex size of the next chunk, ignoring any chunk extensions
+     *
+     * @return Returns the size of the chunk, in bytes
+     */
+    private long parseChunkSize() {
+        long size = 0;
+        for (int i = 0; i < _line.length(); i++) {
+            int digit = Character.digit(_line.charAt(i), 16);
+            if (digit < 0) {
+                break;
+            }
+            size = (size << 4) + digit;
+        }
+        return size;
+    }
+
+    /**
+     * Forward the bytes consumed since the given index as a retained slice
+     *
+     * @param ctx {@link ChannelHandlerContext} for this channel
+     * @param in {@link ByteBuf} the bytes were consumed from
+     * @param start Index of the first consumed byte not yet forwarded
+     */
+    private void forward(ChannelHandlerContext ctx, ByteBuf in, int start) {
+        int length = in.readerIndex() - start;
+        if (length > 0) {
+            ctx.fireChannelRead(in.slice(start, length).retain());
+        }
+    }
+
+    /**
+     * Notify the rest of the pipeline that a response has ended, and get ready for the next one
+     *
+     * @param ctx {@link ChannelHandlerContext} for this channel
+     */
+    private void completeResponse(ChannelHandlerContext ctx) {
+        ctx.fireUserEventTriggered(_keepAlive ? ResponseCompleted.KEEP_ALIVE : ResponseCompleted.CLOSE);
+        resetResponse();
+    }
+
+    /**
+     * Reset the per response framing state
+     */
+    private void resetResponse() {
+        _state = State.STATUS_LINE;
+        _status = 0;
+        _remaining = -1;
+        _chunked = false;
+        _keepAlive = true;
+        _line.setLength(0);
+        _lineComplete = false;
+    }
+
+    /**
+     * User event fired once a response has been completely forwarded
+     */
+    public static final class ResponseCompleted {
+
+        private ResponseCompleted(boolean keepAlive) {
+            _keepAlive = keepAlive;
+        }
+
+        /**
+         * Checks if the server will keep the connection open for another request
+         *
+         * @return Returns true if the connection can be reused, false otherwise
+         */
+        public boolean isKeepAlive() {
+            return _keepAlive;
+        }
+
+        private final boolean _keepAlive;
+
+        public static final ResponseCompleted KEEP_ALIVE = new ResponseCompleted(true);
+        public static final ResponseCompleted CLOSE = new ResponseCompleted(false);
+    }
+
+    /**
+     * Framing states
+     */
+    private enum State {
+        STATUS_LINE,
+        HEADERS,
+        FIXED_BODY,
+        CHUNK_SIZE,
+        CHUNK_DATA,
+        CHUNK_DATA_END,
+        TRAILERS,
+        UNTIL_CLOSE
+    }
+
+    /**
+     * Current framing state
+     */
+    private State _state;
+
+    /**
+     * Status code of the current response
+     */
+    private int _status;
+
+    /**
+     * Bytes left in the current fixed length body or chunk, -1 if no Content-Length was given
+     */
+    private long _remaining;
+
+    /**
+     * True if the current response uses chunked transfer encoding
+     */
+    private boolean _chunked;
+
+    /**
+     * True if the connection can be reused after the current response
+     */
+    private boolean _keepAlive;
+
+    /**
+     * Line currently being read
+     */
+    private final StringBuilder _line;
+
+    /**
+     * True once {@link #_line} holds a complete line that has not yet been discarded
+     */
+    private boolean _lineComplete;
+
+    /**
+     * Maximum length of any line we are willing to buffer
+     */
+    private final int _maxLineLength;
+
+    /**
+     * Methods of requests still awaiting a response, in order
+     */
+    private final Queue<HttpMethod> _requestMethods;
+
+    private static final byte LF = '\n';
+
+    private static final char CR = '\r';
+}
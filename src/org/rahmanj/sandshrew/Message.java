@@ -1,11 +1,12 @@
 package org.rahmanj.sandshrew;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.http.HttpObject;
 
 /**
- * Wrapper object to store {@link io.netty.handler.codec.http.HttpObject}s and {@link io.netty.channel.ChannelPromise}s bundled together
- * in the message queue
+ * Wrapper object to store {@link io.netty.handler.codec.http.HttpObject}s or raw {@link ByteBuf}s and
+ * {@link io.netty.channel.ChannelPromise}s bundled together in the message queue
  *
  * @author Jason P. Rahman
  */
@@ -15,7 +16,12 @@ class Message {
         _promise = promise;
     }
 
-    public HttpObject getMessage() {
+    public Message(ByteBuf msg, ChannelPromise promise) {
+        _msg = msg;
+        _promise = promise;
+    }
+
+    public Object getMessage() {
         return _msg;
     }
 
@@ -23,6 +29,21 @@ class Message {
         return _promise;
     }
 
-    private HttpObject _msg;
+    /**
+     * Get a copy of this message to be written with a different promise
+     *
+     * @param promise {@link ChannelPromise} for the copy
+     * @return Returns a {@link Message} wrapping the same object
+     */
+    public Message withPromise(ChannelPromise promise) {
+        return new Message(_msg, promise);
+    }
+
+    private Message(Object msg, ChannelPromise promise) {
+        _msg = msg;
+        _promise = promise;
+    }
+
+    private Object _msg;
     private ChannelPromise _promise;
 }
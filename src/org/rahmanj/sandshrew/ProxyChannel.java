@@ -1,5 +1,6 @@
 package org.rahmanj.sandshrew;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.http.HttpObject;
@@ -44,6 +45,13 @@ public interface ProxyChannel {
      */
     public boolean isDraining();
 
+    /**
+     * Get the {@link BufferBudget.Account} that messages queued on behalf of the upstream client are charged to
+     *
+     * @return Returns the upstream client's {@link BufferBudget.Account}, null if there is none
+     */
+    public BufferBudget.Account getBufferAccount();
+
     /**
      * Send a given {@link HttpObject} over the {@link ProxyChannel}. This method is asynchronous
      *
@@ -59,6 +67,32 @@ public interface ProxyChannel {
      */
     public void send(HttpObject msg, ChannelPromise promise);
 
+    /**
+     * Send raw, already encoded bytes over the {@link ProxyChannel}, bypassing any HTTP encoding. This method is asynchronous
+     *
+     * @param buf The {@link ByteBuf} to send over the {@link ProxyChannel}
+     * @param last True if these are the final bytes of the current exchange
+     */
+    public void sendRaw(ByteBuf buf, boolean last);
+
+    /**
+     * Close the connection once the current exchange completes instead of keeping it alive for another.
+     * Must be called from the event loop before the last message of the exchange is sent
+     */
+    public void closeAfterExchange();
+
+    /**
+     * The other side of the current exchange failed before completing it, so end the exchange on this side too.
+     * Must be called from the event loop
+     */
+    public void exchangeFailed();
+
+    /**
+     * Flush everything sent over the {@link ProxyChannel} so far. Sends only write, so a batch of them can go out
+     * in a single flush. Anything left unflushed is flushed at the end of the event loop tick regardless
+     */
+    public void flush();
+
     /**
      * Asynchronously start the given {@link ProxyChannel}
      */
@@ -5,10 +5,13 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.ssl.SslContext;
 import org.rahmanj.sandshrew.config.RouteConfig;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 
 /**
  * {@link ChannelInitializer} to initialize the {@link Channel} between the client and the proxy according to our configuration.
@@ -23,13 +26,21 @@ class ProxyChannelInitializer<T extends Channel> extends ChannelInitializer<T> {
      *
      * @param sslContext
      * @param workerGroup
-     * @param config
+     * @param config Reference to the current {@link RouteConfig}
+     * @param connectionPools {@link DownstreamConnectionPoolGroup} for connections to downstream servers
+     * @param responsePassthrough True to forward HTTP responses as raw bytes rather than decoding and re-encoding them
+     * @param channels {@link ChannelGroup} every accepted {@link Channel} is added to
+     * @param bufferBudget Shared {@link BufferBudget} for messages queued by the proxy
      */
-    public ProxyChannelInitializer(SslContext sslContext, EventLoopGroup workerGroup, RouteConfig config) {
+    public ProxyChannelInitializer(SslContext sslContext, EventLoopGroup workerGroup, AtomicReference<RouteConfig> config, DownstreamConnectionPoolGroup connectionPools, boolean responsePassthrough, ChannelGroup channels, BufferBudget bufferBudget) {
         // TODO, later include some config stuff in here
         _sslContext = sslContext;
         _workerGroup = workerGroup;
         _config = config;
+        _connectionPools = connectionPools;
+        _responsePassthrough = responsePassthrough;
+        _channels = channels;
+        _bufferBudget = bufferBudget;
     }
 
     /**
@@ -42,27 +53,27 @@ class ProxyChannelInitializer<T extends Channel> extends ChannelInitializer<T> {
     public void initChannel(T ch) throws Exception {
         ChannelPipeline p = ch.pipeline();
 
-        // TODO (JR) make this configurable based on user desires
-        p.addLast(_sslContext.newHandler(ch.alloc()));
+        // Tracked so the ProxyServer can drain it, the group drops it again once it closes
+        _channels.add(ch);
 
         // Build pipeline between client and proxy
         // Note that ProxySpdyOrHttpChooser actually handles all the details
         // regarding how the pipeline is created
-        UpstreamHandler handler = new UpstreamHandler(_workerGroup, _config);
-        p.addLast(new ProxySpdyOrHttpChooser(handler, handler));
-    }
+        UpstreamHandler handler = new UpstreamHandler(_workerGroup, _config, _connectionPools, _responsePassthrough, _bufferBudget);
+        ProxySpdyOrHttpChooser chooser = new ProxySpdyOrHttpChooser(handler, handler, _responsePassthrough);
 
-    /**
-     * Update the currently active {@link RouteConfig}
-     * @param config {@link RouteConfig} to use
-     */
-    public void updateConfig(RouteConfig config) {
-        _config = config;
-        // TODO, concurrency concerns here!!!
+        if (_sslContext != null) {
+            // TODO (JR) make this configurable based on user desires
+            p.addLast(_sslContext.newHandler(ch.alloc()));
+            p.addLast(chooser);
+        } else {
+            // Without TLS there is no protocol negotiation, so cleartext connections are HTTP/1.x
+            chooser.addHttpHandlers(p);
+        }
     }
 
     /**
-     * SSLContext for HTTPS and SPDY
+     * SSLContext for HTTPS and SPDY, null to accept cleartext HTTP
      */
     private SslContext _sslContext;
 
@@ -73,7 +84,27 @@ class ProxyChannelInitializer<T extends Channel> extends ChannelInitializer<T> {
     private EventLoopGroup _workerGroup;
 
     /**
-     * {@link RouteConfig} for the server
+     * Reference to the current {@link RouteConfig}, which every {@link UpstreamHandler} reads once per request
+     */
+    private final AtomicReference<RouteConfig> _config;
+
+    /**
+     * Shared {@link DownstreamConnectionPoolGroup} for connections to downstream servers
+     */
+    private DownstreamConnectionPoolGroup _connectionPools;
+
+    /**
+     * True if HTTP responses are forwarded as raw bytes
+     */
+    private boolean _responsePassthrough;
+
+    /**
+     * {@link ChannelGroup} of the owning {@link ProxyServer}'s open connections
+     */
+    private final ChannelGroup _channels;
+
+    /**
+     * Shared {@link BufferBudget} for messages queued by the proxy
      */
-    private RouteConfig _config;
+    private final BufferBudget _bufferBudget;
 }
\ No newline at end of file
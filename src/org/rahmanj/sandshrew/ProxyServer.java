@@ -3,15 +3,27 @@ package org.rahmanj.sandshrew;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
 
 import org.eclipse.jetty.npn.NextProtoNego;
 import org.rahmanj.sandshrew.config.RouteConfig;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 
@@ -28,13 +40,23 @@ public class ProxyServer {
      * Create a proxy server listening on a given port
      *
      * @param address The {@link SocketAddress} to bind this {@link SocketAddress} to listen for connections on
-     * @param config The {@link RouteConfig} for the server
-     * @param bossGroup The shared {@link EventLoopGroup} to use listen for incoming connections with
+     * @param config Reference to the current {@link RouteConfig}, shared by every {@link ProxyServer}
+     * @param bossGroup The shared {@link EventLoopGroup} to use listen for incoming connections with, may be null if
+     *                  reusePort is set and the {@link Transport} supports it, since the workers then accept themselves
      * @param workerGroup The shared {@link EventLoopGroup} to use for handling connections
-     * @param serverSocketChannelClass The {@link Class} to use for the server {@link SocketChannel}
+     * @param connectionPools The shared {@link DownstreamConnectionPoolGroup} for connections to downstream servers
+     * @param responsePassthrough True to forward HTTP responses as raw bytes rather than decoding and re-encoding them
+     * @param transport The {@link Transport} shared by the boss and worker groups
+     * @param backlog The listen backlog for each listening socket
+     * @param reusePort True to bind one SO_REUSEPORT listening socket per worker {@link EventLoop} if the {@link Transport} allows it
+     * @param bufferBudget The shared {@link BufferBudget} for messages queued by the proxy
      */
-    public ProxyServer(SocketAddress address, RouteConfig config, EventLoopGroup bossGroup, EventLoopGroup workerGroup, Class serverSocketChannelClass) {
-        _address = _address;
+    public ProxyServer(SocketAddress address, AtomicReference<RouteConfig> config, EventLoopGroup bossGroup, EventLoopGroup workerGroup, DownstreamConnectionPoolGroup connectionPools, boolean responsePassthrough, Transport transport, int backlog, boolean reusePort, BufferBudget bufferBudget) {
+        if (backlog <= 0) {
+            throw new IllegalArgumentException("Positive backlog required");
+        }
+
+        _address = address;
         _bossGroup = bossGroup;
         _workerGroup = workerGroup;
         _config = config;
@@ -43,9 +65,21 @@ public class ProxyServer {
         _sslContext = null;
 
         _bootstrap = new ServerBootstrap();
-        _serverSocketChannelClass = serverSocketChannelClass;
+        _transport = transport;
+        _backlog = backlog;
+        _reusePort = reusePort && transport.supportsReusePort();
+        _serverChannels = new ArrayList<Channel>();
+        _childChannels = new DefaultChannelGroup("proxy-" + address, GlobalEventExecutor.INSTANCE);
+
+        if (reusePort && !_reusePort) {
+            _logger.warning("SO_REUSEPORT is not supported by the " + transport.getName() + " transport, using a single acceptor");
+        }
+
+        if (!_reusePort && bossGroup == null) {
+            throw new NullPointerException("Null boss group");
+        }
 
-        _initializer = new ProxyChannelInitializer(_sslContext, _workerGroup, _config);
+        _initializer = new ProxyChannelInitializer<SocketChannel>(_sslContext, _workerGroup, _config, connectionPools, responsePassthrough, _childChannels, bufferBudget);
     }
 
     /**
@@ -56,10 +90,15 @@ public class ProxyServer {
      */
     public ChannelFuture run() throws Exception {
 
+        if (_reusePort) {
+            return runReusePort();
+        }
+
        _bootstrap.group(_bossGroup, _workerGroup)
-                .channel(_serverSocketChannelClass)
-                .option(ChannelOption.SO_BACKLOG, 128)
+                .channel(_transport.serverSocketChannelClass())
+                .option(ChannelOption.SO_BACKLOG, _backlog)
                 .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.TCP_NODELAY, true)
                 // This is where we need to handle configuration changes, we reset this
                 .childHandler(_initializer);
 
@@ -67,6 +106,7 @@ public class ProxyServer {
         // TODO (JR) This looks like it's blocking, does it need to be made asynchronous??;
         ChannelFuture f = _bootstrap.bind(_address);
         f.sync();
+        _serverChannels.add(f.channel());
 
         // Wait until the server socket is closed
         // In this example this will not happen, but
@@ -75,12 +115,142 @@ public class ProxyServer {
     }
 
     /**
+     * Bind one SO_REUSEPORT listening socket per worker {@link EventLoop}. The kernel spreads incoming connections
+     * across the sockets, and each connection is serviced on the {@link EventLoop} that accepted it, so there is
+     * no single accept bottleneck and no handoff from a boss thread to a worker thread.
      *
-     * @param config
+     * @return A {@link ChannelFuture} for the closure of the first listening socket, all of them are closed together
+     * @throws {@link Exception}
      */
-    public void updateConfig(RouteConfig config) {
-        _config = config;
-        _initializer.updateConfig(config);
+    protected ChannelFuture runReusePort() throws Exception {
+
+        for (EventExecutor executor : _workerGroup) {
+            EventLoop eventLoop = (EventLoop) executor;
+            ServerBootstrap bootstrap = new ServerBootstrap();
+            bootstrap.group(eventLoop, eventLoop)
+                    .channel(_transport.serverSocketChannelClass())
+                    .option(ChannelOption.SO_BACKLOG, _backlog)
+                    .childOption(ChannelOption.SO_KEEPALIVE, true)
+                    .childOption(ChannelOption.TCP_NODELAY, true)
+                    .childHandler(_initializer);
+            _transport.enableReusePort(bootstrap);
+
+            ChannelFuture f = bootstrap.bind(_address);
+            try {
+                f.sync();
+            } catch (Exception e) {
+                // Leave nothing half bound behind, the caller gets no handle on the sockets bound so far
+                for (Channel channel : _serverChannels) {
+                    channel.close().awaitUninterruptibly();
+                }
+                _serverChannels.clear();
+                throw e;
+            }
+            _serverChannels.add(f.channel());
+        }
+
+        _logger.fine("Bound " + _serverChannels.size() + " SO_REUSEPORT acceptors to " + _address);
+        return _serverChannels.get(0).closeFuture();
+    }
+
+    /**
+     * Stop accepting connections and drain the open ones. Listening sockets are closed straight away, and every
+     * connection is asked to finish the requests it has under way and then close, see {@link UpstreamHandler#drain()}.
+     * Connections still open at the deadline are closed regardless.
+     *
+     * @param timeoutMillis Time in milliseconds the open connections get to finish their requests
+     * @return A {@link Future} completed once every connection is closed
+     */
+    public Future<Void> drain(long timeoutMillis) {
+
+        // Stop accepting first, so nothing arrives behind the drain
+        for (Channel channel : _serverChannels) {
+            channel.close();
+        }
+
+        for (Channel channel : _childChannels) {
+            channel.pipeline().fireUserEventTriggered(UpstreamHandler.DrainRequested.INSTANCE);
+        }
+
+        final Future<Void> closed = allClosed(_childChannels);
+        final ScheduledFuture<?> deadline = GlobalEventExecutor.INSTANCE.schedule(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!_childChannels.isEmpty()) {
+                            _logger.warning("Closing " + _childChannels.size() + " connections to " + _address + " still open after draining");
+                            for (Channel channel : _childChannels) {
+                                forceClose(channel);
+                            }
+                        }
+                    }
+                },
+                timeoutMillis,
+                TimeUnit.MILLISECONDS
+        );
+
+        closed.addListener(new GenericFutureListener<Future<Void>>() {
+            @Override
+            public void operationComplete(Future<Void> future) {
+                deadline.cancel(false);
+            }
+        });
+
+        return closed;
+    }
+
+    /**
+     * Get a {@link Future} for the closure of every {@link Channel} currently open in a group
+     *
+     * @param channels {@link ChannelGroup} to wait on
+     * @return A {@link Future} completed once every {@link Channel} in the group at the time of the call is closed
+     */
+    private static Future<Void> allClosed(ChannelGroup channels) {
+        final Promise<Void> promise = GlobalEventExecutor.INSTANCE.newPromise();
+        List<Channel> open = new ArrayList<Channel>(channels);
+
+        // One extra count, so we can't complete before every listener is added
+        final AtomicInteger remaining = new AtomicInteger(open.size() + 1);
+        ChannelFutureListener listener = new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (remaining.decrementAndGet() == 0) {
+                    promise.trySuccess(null);
+                }
+            }
+        };
+
+        for (Channel channel : open) {
+            channel.closeFuture().addListener(listener);
+        }
+        if (remaining.decrementAndGet() == 0) {
+            promise.trySuccess(null);
+        }
+        return promise;
+    }
+
+    /**
+     * Close a connection without going through its handlers, since a {@link io.netty.handler.codec.spdy.SpdySessionHandler}
+     * would otherwise hold the close back until its streams are done
+     *
+     * @param channel {@link Channel} to close
+     */
+    private static void forceClose(Channel channel) {
+        ChannelHandlerContext first = channel.pipeline().firstContext();
+        if (first != null) {
+            first.close();
+        } else {
+            channel.close();
+        }
+    }
+
+    /**
+     * Get the address this proxy listens on
+     *
+     * @return Returns the {@link SocketAddress} the listening sockets are bound to
+     */
+    public SocketAddress getAddress() {
+        return _address;
     }
 
     /**
@@ -89,7 +259,7 @@ public class ProxyServer {
     private SocketAddress _address;
 
     /**
-     * Globally shared {@link EventLoopGroup} for the listening socket
+     * Globally shared {@link EventLoopGroup} for the listening socket, unused and possibly null with SO_REUSEPORT
      */
     private EventLoopGroup _bossGroup;
 
@@ -111,17 +281,37 @@ public class ProxyServer {
     /**
      * {@link ProxyChannelInitializer} for the proxy channel
      */
-    private ProxyChannelInitializer _initializer;
+    private ProxyChannelInitializer<SocketChannel> _initializer;
+
+    /**
+     * Reference to the current {@link RouteConfig}, swapped by the {@link Server} on reloads
+     */
+    private final AtomicReference<RouteConfig> _config;
+
+    /**
+     * {@link Transport} providing the listening socket implementation
+     */
+    private Transport _transport;
+
+    /**
+     * Listen backlog for each listening socket
+     */
+    private int _backlog;
+
+    /**
+     * True if we bind one SO_REUSEPORT listening socket per worker {@link EventLoop}
+     */
+    private boolean _reusePort;
 
     /**
-     * {@link RouteConfig} for the server
+     * All listening {@link Channel}s bound by this {@link ProxyServer}
      */
-    private RouteConfig _config;
+    private List<Channel> _serverChannels;
 
     /**
-     * Implementation {@link Class} for the {@link ServerSocketChannel}
+     * Every open connection accepted by this {@link ProxyServer}
      */
-    private Class _serverSocketChannelClass;
+    private final ChannelGroup _childChannels;
 
     private static final Logger _logger = Logger.getLogger(
             ProxyServer.class.getName()
@@ -21,9 +21,11 @@ class ProxySpdyOrHttpChooser extends SpdyOrHttpChooser {
      * Construct a {@link ProxySpdyOrHttpChooser} instance
      * @param httpHandler A {@link ChannelInboundHandler} for HTTP requests
      * @param spdyHandler A {@link ChannelInboundHandler} for SPDY requests
+     * @param responsePassthrough True if HTTP responses will be written as raw bytes rather than {@link HttpObject}s
      */
-    public ProxySpdyOrHttpChooser(ChannelInboundHandler httpHandler, ChannelInboundHandler spdyHandler) {
-        super(MAX_CONTENT_LENGTH, MAX_CONTENT_LENGTH);
+    public ProxySpdyOrHttpChooser(ChannelInboundHandler httpHandler, ChannelInboundHandler spdyHandler, boolean responsePassthrough) {
+        // Neither pipeline aggregates bodies, so the content length limits never come into play
+        super(Integer.MAX_VALUE, Integer.MAX_VALUE);
 
         if (httpHandler == null || spdyHandler == null) {
             throw new IllegalArgumentException("Null handler given");
@@ -31,28 +33,7 @@ class ProxySpdyOrHttpChooser extends SpdyOrHttpChooser {
 
         _httpHandler = httpHandler;
         _spdyHandler = spdyHandler;
-    }
-
-    /**
-     * Construct a {@link ProxySpdyOrHttpChooser} instance
-     * @param httpHandler A {@link ChannelInboundHandler} for HTTP requests
-     * @param spdyHandler A {@link ChannelInboundHandler} for SPDY requests
-     * @param maxSpdyContentLength
-     * @param maxHttpContentLength
-     */
-    public ProxySpdyOrHttpChooser(ChannelInboundHandler httpHandler, ChannelInboundHandler spdyHandler, int maxSpdyContentLength, int maxHttpContentLength) {
-        super(maxSpdyContentLength, maxHttpContentLength);
-
-        if (httpHandler == null || spdyHandler == null) {
-            throw new IllegalArgumentException("Null handler given");
-        }
-
-        if (maxHttpContentLength <= 0 || maxSpdyContentLength <= 0) {
-            throw new IllegalArgumentException(("Positive content length required"));
-        }
-
-        _httpHandler = httpHandler;
-        _spdyHandler = spdyHandler;
+        _responsePassthrough = responsePassthrough;
     }
 
 
@@ -62,16 +43,31 @@ class ProxySpdyOrHttpChooser extends SpdyOrHttpChooser {
      */
     @Override
     protected void addHttpHandlers(ChannelHandlerContext ctx) {
-        ChannelPipeline p = ctx.pipeline();
-        p.addLast("httpContentCompressor", new HttpContentCompressor()); // TODO (JR) make configurable
-        p.addLast("httpRequestDecoder", new HttpRequestDecoder());
-        p.addLast("httpClientHandler", null);
+        addHttpHandlers(ctx.pipeline());
+    }
+
+    /**
+     * Build the HTTP pipeline, also used directly for cleartext connections where there is nothing to negotiate
+     * @param p {@link ChannelPipeline} of the current channel
+     */
+    void addHttpHandlers(ChannelPipeline p) {
+
+        // Raw response bytes skip the compressor, and it would otherwise queue an entry per request it never sees a response for
+        if (!_responsePassthrough) {
+            p.addLast("httpContentCompressor", new HttpContentCompressor()); // TODO (JR) make configurable
+        }
+        // HTTP/2 clients with prior knowledge are told to use HTTP/1.1 before the decoder sees their preface
+        p.addLast("http2PrefaceHandler", new Http2PrefaceHandler());
+        // Bodies are streamed as chunks of at most MAX_CHUNK_SIZE, never aggregated
+        p.addLast("httpRequestDecoder", new HttpRequestDecoder(MAX_INITIAL_LINE_LENGTH, MAX_HEADER_SIZE, MAX_CHUNK_SIZE));
+        p.addLast("httpResponseEncoder", new PassthroughHttpResponseEncoder()); // Raw ByteBufs pass through untouched
+        p.addLast("httpClientHandler", createHttpRequestHandlerForHttp());
 
         /**
          * NOTE: We need to further consider the excessive overhead here in the different pipeline stages
          * On the client <-> proxy connection:
          *  For incoming messages, we do need a full HTTP pipeline, feeding HttpMessage and HttpContent objects
-         *  For outgoing messages, we only need to feed raw bytes back across the wire
+         *  For outgoing messages, we only need to feed raw bytes back across the wire (done in passthrough mode)
          * On the proxy <-> server connection:
          *  For outgoing messages, we simple need to feed raw bytes across the wire
          *  For incoming messages, we simply need to feed raw bytes across the wire
@@ -91,11 +87,18 @@ class ProxySpdyOrHttpChooser extends SpdyOrHttpChooser {
     protected void addSpdyHandlers(ChannelHandlerContext ctx, SpdyVersion version) {
 
         ChannelPipeline p = ctx.pipeline();
-        p.addLast("spdyFrameCodec", new SpdyFrameCodec(version));
+        p.addLast("spdyFrameCodec", new SpdyFrameCodec(version)); // DATA frames are split into 8KB pieces by default
         p.addLast("spdySessionHandler", new SpdySessionHandler(version, true));
-        p.addLast("spdyHttpObjectDecoder", new SpdyHeaderBlockRawDecoder(version, maxHttpHeaderLength));
+        p.addLast("spdyHttpEncoder", new SpdyHttpEncoder(version));
+        p.addLast("spdyHttpDecoder", new SpdyStreamingHttpDecoder(true)); // Each DATA frame is passed on as it arrives
         p.addLast("spdyStreamIdHandler", new SpdyHttpResponseStreamIdHandler());
         p.addLast("spdyClientHandler", _spdyHandler);
+
+        // The UpstreamHandler runs one exchange at a time, and DATA frames don't say which stream they belong to
+        // once decoded, so streams beyond the first are refused until it closes
+        SpdySettingsFrame settings = new DefaultSpdySettingsFrame();
+        settings.setValue(SpdySettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        ctx.channel().writeAndFlush(settings);
     }
 
     /**
@@ -116,7 +119,38 @@ class ProxySpdyOrHttpChooser extends SpdyOrHttpChooser {
         return _spdyHandler;
     }
 
-    private static final int MAX_CONTENT_LENGTH = 1024 * 100;
+    /**
+     * {@link HttpResponseEncoder} that only encodes {@link HttpObject}s. The stock encoder also claims {@link io.netty.buffer.ByteBuf}s,
+     * and rejects any that aren't empty unless a response header was written before them, so passthrough response
+     * bytes have to skip it entirely
+     */
+    private static class PassthroughHttpResponseEncoder extends HttpResponseEncoder {
+
+        @Override
+        public boolean acceptOutboundMessage(Object msg) throws Exception {
+            return msg instanceof HttpObject && super.acceptOutboundMessage(msg);
+        }
+    }
+
+    /**
+     * Number of SPDY streams a client may have open at once
+     */
+    private static final int MAX_CONCURRENT_STREAMS = 1;
+
+    /**
+     * Maximum length of an HTTP request line
+     */
+    private static final int MAX_INITIAL_LINE_LENGTH = 4 * 1024;
+
+    /**
+     * Maximum size of the request headers
+     */
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+
+    /**
+     * Maximum size of each body chunk or DATA frame handed to the {@link UpstreamHandler}
+     */
+    private static final int MAX_CHUNK_SIZE = 8 * 1024;
 
 
     /**
@@ -129,6 +163,11 @@ class ProxySpdyOrHttpChooser extends SpdyOrHttpChooser {
      */
     private ChannelInboundHandler _spdyHandler;
 
+    /**
+     * True if HTTP responses are written as raw bytes
+     */
+    private boolean _responsePassthrough;
+
     private static final Logger _logger = Logger.getLogger(
             ProxySpdyOrHttpChooser.class.getName()
     );
@@ -2,20 +2,26 @@
 package org.rahmanj.sandshrew;
 
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
 import org.rahmanj.sandshrew.config.*;
 import org.rahmanj.sandshrew.policy.*;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -41,7 +47,18 @@ public class Server implements FileChangedErrorHandler, FileChangedHandler {
 
         // TODO, arg parsing
 
-        Server server = new Server(configFilePath);
+        final Server server = new Server(configFilePath);
+
+        // Drain connections on SIGTERM, so deploys don't cut requests off
+        Runtime.getRuntime().addShutdownHook(new Thread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        server.shutdown();
+                    }
+                },
+                "shutdown"
+        ));
 
         try {
             server.run();
@@ -52,7 +69,7 @@ public class Server implements FileChangedErrorHandler, FileChangedHandler {
 
     public Server(String configFilePath) {
 
-        _config = null;
+        _config = new AtomicReference<RouteConfig>(null);
         _configFilePath = Paths.get(configFilePath);
         _proxyServers = new HashMap<SocketAddress, ProxyServer>();
 
@@ -65,10 +82,12 @@ public class Server implements FileChangedErrorHandler, FileChangedHandler {
         policyFactories.put("even_load", new EvenLoadPolicy.EvenLoadPolicyFactory());
         policyFactories.put("round_robin", new RoundRobinRoutePolicy.RoundRobinPolicyFactory());
         policyFactories.put("weighted_round_robin", new WeightedRoundRobinProxyPolicy.WeightedRoundRobinPolicyFactory());
+        policyFactories.put("bounded_load_hash", new BoundedLoadHashPolicy.BoundedLoadHashPolicyFactory());
+        policyFactories.put("peak_ewma", new PeakEwmaPolicy.PeakEwmaPolicyFactory());
 
-        ServerFactory serverFactory = new ServerFactory();
+        _serverFactory = new ServerFactory();
 
-        _configFactory = new RouteConfigFactory(policyFactories, serverFactory);
+        _configFactory = new RouteConfigFactory(policyFactories, _serverFactory);
     }
 
 
@@ -76,85 +95,125 @@ public class Server implements FileChangedErrorHandler, FileChangedHandler {
      * Begin running all the proxy servers, returns immediately
      * @throws Exception
      */
-    public void run() throws Exception {
+    public synchronized void run() throws Exception {
 
         init();
         _running = true;
     }
 
-    public void onFileChanged(Path filePath) {
+    /**
+     * Stop reloading the configuration, drain every proxy and release all resources. Blocks until the connections
+     * have drained or the drain deadline has passed.
+     */
+    public void shutdown() {
+        List<Future<Void>> drained = new ArrayList<Future<Void>>();
+
+        // Taking the lock waits out any reload under way
+        synchronized (this) {
+            if (!_running) {
+                return;
+            }
+            _running = false;
+
+            _configWatcher.cancel();
+            _configExecutor.shutdownNow();
+
+            for (ProxyServer proxy : _proxyServers.values()) {
+                drained.add(proxy.drain(DRAIN_TIMEOUT_MILLIS));
+            }
+            _proxyServers.clear();
+        }
+
+        _logger.info("Draining " + drained.size() + " proxies");
+        for (Future<Void> future : drained) {
+            // Connections are force closed at the deadline, so this only waits longer if closing itself hangs
+            future.awaitUninterruptibly(DRAIN_TIMEOUT_MILLIS + DRAIN_GRACE_MILLIS);
+        }
+
+        _connectionPools.shutdown();
+        if (_bossGroup != null) {
+            _bossGroup.shutdownGracefully().awaitUninterruptibly();
+        }
+        _workerGroup.shutdownGracefully().awaitUninterruptibly();
+    }
+
+    public synchronized void onFileChanged(Path filePath) {
         RouteConfig config;
 
         try {
-            config = _configFactory.buildRouteConfig(filePath);
+            // Pools and servers that haven't changed carry over from the current config
+            config = _configFactory.buildRouteConfig(filePath, _config.get());
         } catch (Exception e) {
-            // TODO
-            throw new NotImplementedException();
+            // Keep serving with the current config, the next change to the file gets another try
+            _logger.log(Level.SEVERE, "Unable to load config " + filePath + ", keeping the current config", e);
+            return;
         }
 
         // Install the new configuration
         installConfig(config);
+
+        // Drop servers no pool refers to anymore, so a later config naming them again starts afresh, and drain
+        // the connections to them
+        Set<ServerInfo> servers = new HashSet<ServerInfo>();
+        for (Pool pool : config.getPools()) {
+            servers.addAll(pool.getServers());
+        }
+        _serverFactory.retainServers(servers);
+        _connectionPools.retainServers(servers);
     }
 
     public void onFileAccessError(IOException e) {
-        // Handle errors when looking up the config file
-        throw new NotImplementedException();
+        // The file may be mid replace, the current config stays in place and the next check tries again
+        _logger.log(Level.WARNING, "Unable to read config " + _configFilePath + ", keeping the current config", e);
     }
 
     /**
-     * Perform a migration from the current configuration to a new configuration
+     * Perform a migration from the current configuration to a new configuration. Reloads are serialized by
+     * synchronizing here, the event loops only ever read the config reference and never take this lock
      * @param config New {@link RouteConfig} to migrate to
      */
-    private void installConfig(RouteConfig config) {
+    private synchronized void installConfig(RouteConfig config) {
 
         // New config
-        if (_config == null) {
-            _config = config;
+        if (_config.get() == null) {
+            _config.set(config);
             launchProxies();
         } else {
-
+            migrateConfig(config);
         }
-        throw new NotImplementedException();
     }
 
     /**
-     *
-     * @param config
+     * Migrate to a new configuration, draining the proxies for addresses no route listens on anymore and starting
+     * proxies for the new ones
+     * @param config New {@link RouteConfig} to migrate to
      */
     private void migrateConfig(RouteConfig config) {
 
-        Set<Route> newInterfaces = new HashSet<Route>();
-        for (Route route : config.getRoutes()) {
-            newInterfaces.add(route);
-        }
-
-        Set<Route> existingInterfaces = new HashSet<Route>();
-        for (Route route : _config.getRoutes()) {
-            existingInterfaces.add(route);
-        }
+        Set<InetSocketAddress> newInterfaces = config.getListenAddresses();
+        Set<SocketAddress> existingInterfaces = _proxyServers.keySet();
 
         // Find the now active interfaces, and the old interfaces to be removes
-        Set<Route> interfacesToRemove = new HashSet<Route>(existingInterfaces);
+        Set<SocketAddress> interfacesToRemove = new HashSet<SocketAddress>(existingInterfaces);
         interfacesToRemove.removeAll(newInterfaces);
-        Set<Route> interfacesToAdd = new HashSet<Route>(newInterfaces);
+        Set<SocketAddress> interfacesToAdd = new HashSet<SocketAddress>(newInterfaces);
         interfacesToAdd.removeAll(existingInterfaces);
 
         _logger.fine("Adding " + interfacesToAdd.size() + " interfaces, and removing " + interfacesToRemove.size());
-        for (Route route : interfacesToRemove) {
-            // TODO, remove
-        }
 
-        // TODO, flip the config of living listeners
-        for (ProxyServer server : _proxyServers.values()) {
-            server.updateConfig(config);
+        // Drain before the flip, so removed listeners stop taking requests the new config has no routes for
+        for (SocketAddress address : interfacesToRemove) {
+            _proxyServers.remove(address).drain(DRAIN_TIMEOUT_MILLIS);
         }
 
-        for (Route route : interfacesToAdd) {
+        // Flip the master config, every listener sees it on their next request
+        // Requests already in flight finish on the snapshot they started with
+        _config.set(config);
 
+        // Start after the flip, so the new listeners have routes from their first request
+        for (SocketAddress address : interfacesToAdd) {
+            startProxy(address);
         }
-
-        // Flip the master config
-        _config = config;
     }
 
     /**
@@ -169,41 +228,69 @@ public class Server implements FileChangedErrorHandler, FileChangedHandler {
 
         // TODO (JR) Start background thread to stat the dynamic configuration file
 
-        // TODO (JR) Make this configurable with NativeEventLoopGroup()
+        // Native epoll when available, NIO otherwise
         // TODO (JR) Make the thread count configurable
-        _bossGroup = new NioEventLoopGroup(4);
-        _workerGroup = new NioEventLoopGroup(12);
-
-        /**
-         * (JR) Sample of using {@link org.rahmanj.sandshrew.config.FileWatcher} with {@link nio.NioEventLoopGroup}
-         */
-        _configWatcher = new FileWatcher(Paths.get("test"), this, this, _bossGroup, 3);
+        _transport = Transport.select();
+        // With SO_REUSEPORT every worker accepts its own connections, so there is no use for boss threads
+        _bossGroup = REUSE_PORT && _transport.supportsReusePort() ? null : _transport.newEventLoopGroup(4);
+        _workerGroup = _transport.newEventLoopGroup(12);
+
+        // TODO (JR) Make the pool limits configurable
+        _connectionPools = new DownstreamConnectionPoolGroup(
+                _workerGroup,
+                _transport,
+                MAX_IDLE_CONNECTIONS_PER_SERVER,
+                MAX_CONNECTIONS_PER_SERVER,
+                IDLE_CONNECTION_TIMEOUT_MILLIS
+        );
+
+        // TODO (JR) Make the budget configurable
+        _bufferBudget = new BufferBudget(BUFFER_LOW_WATERMARK, BUFFER_HIGH_WATERMARK, BUFFER_LIMIT);
+
+        // Loads the config straight away, then again whenever the file changes
+        // Reloads bind listening sockets synchronously, so they get their own thread rather than an event loop
+        _configExecutor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("config-reload", true));
+        _configWatcher = new FileWatcher(_configFilePath, this, this, _configExecutor, 3);
     }
 
     /**
-     * Launch the proxies
+     * Launch a proxy for every address the routes listen on
      */
     private void launchProxies() {
-        throw new NotImplementedException();
+        for (InetSocketAddress address : _config.get().getListenAddresses()) {
+            startProxy(address);
+        }
     }
 
-    private ProxyServer startProxy(ChannelPromiseAggregator promises, SocketAddress address) {
-
-        // TODO, add support for binding to a given interface as well
-        ProxyServer proxy = new ProxyServer(address, _bossGroup, _workerGroup, NioServerSocketChannel.class);
-
-        _proxyServers.put(address, proxy);
+    /**
+     * Start a proxy listening on an address
+     *
+     * @param address {@link SocketAddress} to listen on
+     * @return Returns the running {@link ProxyServer}, null if it couldn't bind
+     */
+    private ProxyServer startProxy(SocketAddress address) {
 
-        ChannelFuture channelFuture = proxy.run();
+        ProxyServer proxy = new ProxyServer(address, _config, _bossGroup, _workerGroup, _connectionPools, RESPONSE_PASSTHROUGH, _transport, LISTEN_BACKLOG, REUSE_PORT, _bufferBudget);
 
-        // Aggregate multiple ChannelFutures from each proxy's run() call into a single Promise
-        promises.add(channelFuture);
+        try {
+            proxy.run();
+        } catch (Exception e) {
+            // Routes on this address get no traffic, but the other listeners keep going
+            _logger.severe("Unable to listen on " + address + ": " + e.toString());
+            return null;
+        }
 
+        _proxyServers.put(address, proxy);
         return proxy;
     }
 
     /**
-     * Globally shared {@link EventLoopGroup} for listening sockets
+     * {@link Transport} backing every {@link EventLoopGroup} and channel in the server
+     */
+    private Transport _transport;
+
+    /**
+     * Globally shared {@link EventLoopGroup} for listening sockets, null when the workers accept through SO_REUSEPORT
      */
     private EventLoopGroup _bossGroup;
 
@@ -212,6 +299,16 @@ public class Server implements FileChangedErrorHandler, FileChangedHandler {
      */
     private EventLoopGroup _workerGroup;
 
+    /**
+     * Per {@link EventLoop} pools of keep-alive connections to downstream servers
+     */
+    private DownstreamConnectionPoolGroup _connectionPools;
+
+    /**
+     * Shared {@link BufferBudget} for messages queued by every {@link ProxyServer}
+     */
+    private BufferBudget _bufferBudget;
+
     /**
      * Store a map of proxies based on their listening port
      */
@@ -223,9 +320,9 @@ public class Server implements FileChangedErrorHandler, FileChangedHandler {
     private Path _configFilePath;
 
     /**
-     *
+     * Current {@link RouteConfig}, shared with every {@link ProxyServer} and read once per request
      */
-    private RouteConfig _config;
+    private final AtomicReference<RouteConfig> _config;
 
     /**
      *
@@ -237,11 +334,80 @@ public class Server implements FileChangedErrorHandler, FileChangedHandler {
      */
     private RouteConfigFactory _configFactory;
 
+    /**
+     * Shared {@link ServerFactory}, keeps a single {@link ServerInfo} per server across reloads
+     */
+    private ServerFactory _serverFactory;
+
     /**
      *
      */
     private FileWatcher _configWatcher;
 
+    /**
+     * Thread the {@link FileWatcher} checks and reloads the configuration on
+     */
+    private ScheduledExecutorService _configExecutor;
+
+    /**
+     * Listen backlog for each listening socket
+     * TODO (JR) Make this configurable
+     */
+    private static final int LISTEN_BACKLOG = 1024;
+
+    /**
+     * Bind one SO_REUSEPORT listening socket per worker thread instead of accepting on the boss group
+     * TODO (JR) Make this configurable
+     */
+    private static final boolean REUSE_PORT = true;
+
+    /**
+     * Forward HTTP response bodies as raw bytes instead of decoding and re-encoding them
+     * TODO (JR) Make this configurable
+     */
+    private static final boolean RESPONSE_PASSTHROUGH = true;
+
+    /**
+     * Maximum number of idle keep-alive connections to each downstream server, per worker {@link EventLoop}
+     */
+    private static final int MAX_IDLE_CONNECTIONS_PER_SERVER = 32;
+
+    /**
+     * Maximum number of open connections to each downstream server, per worker {@link EventLoop}
+     */
+    private static final int MAX_CONNECTIONS_PER_SERVER = 256;
+
+    /**
+     * Time an idle connection may sit in a pool before being closed
+     */
+    private static final long IDLE_CONNECTION_TIMEOUT_MILLIS = 60 * 1000;
+
+    /**
+     * Bytes of queued messages below which connections paused by the {@link BufferBudget} resume
+     */
+    private static final long BUFFER_LOW_WATERMARK = 96L * 1024 * 1024;
+
+    /**
+     * Bytes of queued messages above which connections that queue more are paused
+     */
+    private static final long BUFFER_HIGH_WATERMARK = 128L * 1024 * 1024;
+
+    /**
+     * Bytes of queued messages above which connections that queue more are closed
+     */
+    private static final long BUFFER_LIMIT = 256L * 1024 * 1024;
+
+    /**
+     * Time connections get to finish their requests when a proxy drains, before they are closed regardless
+     * TODO (JR) Make this configurable
+     */
+    private static final long DRAIN_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * Extra time shutdown waits for the forced closes at the drain deadline to complete
+     */
+    private static final long DRAIN_GRACE_MILLIS = 1000;
+
     private static final Logger _logger = Logger.getLogger(
             Server.class.getName()
     );
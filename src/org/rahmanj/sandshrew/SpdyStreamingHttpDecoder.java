@@ -0,0 +1,222 @@
+package org.rahmanj.sandshrew;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.spdy.DefaultSpdyRstStreamFrame;
+import io.netty.handler.codec.spdy.SpdyDataFrame;
+import io.netty.handler.codec.spdy.SpdyFrame;
+import io.netty.handler.codec.spdy.SpdyHeaders;
+import io.netty.handler.codec.spdy.SpdyHeadersFrame;
+import io.netty.handler.codec.spdy.SpdyHttpHeaders;
+import io.netty.handler.codec.spdy.SpdyRstStreamFrame;
+import io.netty.handler.codec.spdy.SpdyStreamStatus;
+import io.netty.handler.codec.spdy.SpdySynReplyFrame;
+import io.netty.handler.codec.spdy.SpdySynStreamFrame;
+
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes SPDY frames into {@link HttpMessage}s and {@link io.netty.handler.codec.http.HttpContent}s without
+ * aggregating bodies, unlike {@link io.netty.handler.codec.spdy.SpdyHttpDecoder} which buffers each body into a
+ * single full message. Every DATA frame becomes one content as soon as it arrives, so bodies of any size flow
+ * through with memory bounded by the frame size, and backpressure works the same as for HTTP/1.x.
+ *
+ * The stream ID is carried on each message in the {@link SpdyHttpHeaders.Names#STREAM_ID} header, so the
+ * {@link io.netty.handler.codec.spdy.SpdyHttpEncoder} can frame the other direction.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class SpdyStreamingHttpDecoder extends MessageToMessageDecoder<SpdyFrame> {
+
+    /**
+     * Construct a new {@link SpdyStreamingHttpDecoder} instance
+     *
+     * @param server True to decode SYN_STREAMs into requests, false to decode SYN_REPLYs into responses
+     */
+    public SpdyStreamingHttpDecoder(boolean server) {
+        _server = server;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, SpdyFrame msg, List<Object> out) throws Exception {
+
+        if (msg instanceof SpdySynStreamFrame && _server) {
+            SpdySynStreamFrame frame = (SpdySynStreamFrame) msg;
+            if (frame.isInvalid() || frame.associatedStreamId() != 0) {
+                // Malformed headers, or a server push we never asked for
+                ctx.writeAndFlush(new DefaultSpdyRstStreamFrame(frame.streamId(), SpdyStreamStatus.PROTOCOL_ERROR));
+                return;
+            }
+
+            HttpMessage request;
+            try {
+                request = createRequest(frame);
+            } catch (IllegalArgumentException e) {
+                _logger.log(Level.FINE, "Bad SYN_STREAM: " + e.getMessage());
+                ctx.writeAndFlush(new DefaultSpdyRstStreamFrame(frame.streamId(), SpdyStreamStatus.PROTOCOL_ERROR));
+                return;
+            }
+            emitHeaders(request, frame, out);
+
+        } else if (msg instanceof SpdySynReplyFrame && !_server) {
+            SpdySynReplyFrame frame = (SpdySynReplyFrame) msg;
+            if (frame.isInvalid()) {
+                ctx.writeAndFlush(new DefaultSpdyRstStreamFrame(frame.streamId(), SpdyStreamStatus.PROTOCOL_ERROR));
+                return;
+            }
+
+            HttpMessage response;
+            try {
+                response = createResponse(frame);
+            } catch (IllegalArgumentException e) {
+                _logger.log(Level.FINE, "Bad SYN_REPLY: " + e.getMessage());
+                ctx.writeAndFlush(new DefaultSpdyRstStreamFrame(frame.streamId(), SpdyStreamStatus.PROTOCOL_ERROR));
+                return;
+            }
+            emitHeaders(response, frame, out);
+
+        } else if (msg instanceof SpdySynStreamFrame || msg instanceof SpdySynReplyFrame) {
+            // Wrong direction for this side of the proxy
+            ctx.writeAndFlush(new DefaultSpdyRstStreamFrame(((SpdyHeadersFrame) msg).streamId(), SpdyStreamStatus.PROTOCOL_ERROR));
+
+        } else if (msg instanceof SpdyHeadersFrame) {
+            // Trailers, only the end of stream matters to us
+            if (((SpdyHeadersFrame) msg).isLast()) {
+                out.add(LastHttpContent.EMPTY_LAST_CONTENT);
+            }
+
+        } else if (msg instanceof SpdyDataFrame) {
+            SpdyDataFrame frame = (SpdyDataFrame) msg;
+
+            // The frame is released once we return, the content outlives it
+            if (frame.isLast()) {
+                out.add(new DefaultLastHttpContent(frame.content().retain()));
+            } else {
+                out.add(new DefaultHttpContent(frame.content().retain()));
+            }
+
+        } else if (msg instanceof SpdyRstStreamFrame) {
+            _logger.log(Level.FINE, "Stream " + ((SpdyRstStreamFrame) msg).streamId() + " reset: " + ((SpdyRstStreamFrame) msg).status());
+        }
+
+        // SETTINGS, PING, GOAWAY and WINDOW_UPDATE are the session handler's business
+    }
+
+    /**
+     * Tag a decoded message with its stream ID and emit it, along with the end of the body if the stream is
+     * already half closed
+     *
+     * @param message Decoded {@link HttpMessage}
+     * @param frame {@link SpdyHeadersFrame} it was decoded from
+     * @param out {@link List} of decoded objects
+     */
+    private void emitHeaders(HttpMessage message, SpdyHeadersFrame frame, List<Object> out) {
+        SpdyHttpHeaders.setStreamId(message, frame.streamId());
+
+        if (frame.isLast()) {
+            HttpHeaders.setContentLength(message, 0);
+            out.add(message);
+            out.add(LastHttpContent.EMPTY_LAST_CONTENT);
+            return;
+        }
+
+        // The body's length is unknown up front unless the peer said, so HTTP/1.1 has to chunk it
+        if (!HttpHeaders.isContentLengthSet(message)) {
+            HttpHeaders.setTransferEncodingChunked(message);
+        }
+        out.add(message);
+    }
+
+    /**
+     * Build an {@link HttpMessage} request from a SYN_STREAM
+     *
+     * @param frame {@link SpdySynStreamFrame} opening the stream
+     * @return Returns the request, without any body
+     */
+    private HttpMessage createRequest(SpdySynStreamFrame frame) {
+        SpdyHeaders headers = frame.headers();
+
+        String method = headers.get(SpdyHeaders.HttpNames.METHOD);
+        String path = headers.get(SpdyHeaders.HttpNames.PATH);
+        String version = headers.get(SpdyHeaders.HttpNames.VERSION);
+        if (method == null || path == null || version == null) {
+            throw new IllegalArgumentException("Missing :method, :path or :version");
+        }
+
+        DefaultHttpRequest request = new DefaultHttpRequest(HttpVersion.valueOf(version), HttpMethod.valueOf(method), path);
+
+        // SPDY carries the host as a pseudo header, HTTP/1.1 wants it as Host
+        String host = headers.get(SpdyHeaders.HttpNames.HOST);
+        if (host != null) {
+            request.headers().set(HttpHeaders.Names.HOST, host);
+        }
+
+        copyHeaders(headers, request);
+        return request;
+    }
+
+    /**
+     * Build an {@link HttpMessage} response from a SYN_REPLY
+     *
+     * @param frame {@link SpdySynReplyFrame} answering the stream
+     * @return Returns the response, without any body
+     */
+    private HttpMessage createResponse(SpdySynReplyFrame frame) {
+        SpdyHeaders headers = frame.headers();
+
+        String status = headers.get(SpdyHeaders.HttpNames.STATUS);
+        String version = headers.get(SpdyHeaders.HttpNames.VERSION);
+        if (status == null || version == null) {
+            throw new IllegalArgumentException("Missing :status or :version");
+        }
+
+        // The status is the code, optionally followed by the reason phrase
+        int space = status.indexOf(' ');
+        int code;
+        try {
+            code = Integer.parseInt(space < 0 ? status : status.substring(0, space));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad :status " + status, e);
+        }
+
+        DefaultHttpResponse response = new DefaultHttpResponse(HttpVersion.valueOf(version), HttpResponseStatus.valueOf(code));
+        copyHeaders(headers, response);
+        return response;
+    }
+
+    /**
+     * Copy the ordinary headers of a frame onto an {@link HttpMessage}, leaving out the pseudo headers
+     *
+     * @param headers {@link SpdyHeaders} of the frame
+     * @param message {@link HttpMessage} to copy onto
+     */
+    private static void copyHeaders(SpdyHeaders headers, HttpMessage message) {
+        for (Map.Entry<String, String> header : headers) {
+            if (!header.getKey().startsWith(":")) {
+                message.headers().add(header.getKey(), header.getValue());
+            }
+        }
+    }
+
+    /**
+     * True if this side receives requests, false if it receives responses
+     */
+    private final boolean _server;
+
+    private static final Logger _logger = Logger.getLogger(
+            SpdyStreamingHttpDecoder.class.getName()
+    );
+}
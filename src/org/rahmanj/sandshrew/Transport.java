@@ -0,0 +1,148 @@
+
+package org.rahmanj.sandshrew;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.util.logging.Logger;
+
+/**
+ * Abstraction over the Netty transport in use, chosen once at startup. The native epoll transport is used on Linux
+ * whenever netty-native can be loaded, with NIO as the fallback everywhere else. The same {@link Transport} must be
+ * used for the boss, worker and downstream bootstraps, since channels can only be registered with event loops
+ * of their own transport.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public abstract class Transport {
+
+    /**
+     * Select the best {@link Transport} available on this machine
+     *
+     * @return Returns the epoll {@link Transport} if available, the NIO {@link Transport} otherwise
+     */
+    public static Transport select() {
+        if (Epoll.isAvailable()) {
+            _logger.info("Using native epoll transport");
+            return new EpollTransport();
+        }
+
+        _logger.info("Native epoll transport unavailable, falling back to NIO: " + Epoll.unavailabilityCause());
+        return new NioTransport();
+    }
+
+    /**
+     * Create a new {@link EventLoopGroup} for this {@link Transport}
+     *
+     * @param threads Number of threads in the group
+     * @return Returns the new {@link EventLoopGroup}
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int threads);
+
+    /**
+     * Get the {@link ServerChannel} implementation for listening sockets
+     *
+     * @return Returns the {@link Class} for listening sockets
+     */
+    public abstract Class<? extends ServerChannel> serverSocketChannelClass();
+
+    /**
+     * Get the {@link SocketChannel} implementation for connections to downstream servers
+     *
+     * @return Returns the {@link Class} for client sockets
+     */
+    public abstract Class<? extends SocketChannel> socketChannelClass();
+
+    /**
+     * Checks if this {@link Transport} can bind several listening sockets to the same address with SO_REUSEPORT
+     *
+     * @return Returns true if SO_REUSEPORT is supported, false otherwise
+     */
+    public boolean supportsReusePort() {
+        return false;
+    }
+
+    /**
+     * Set SO_REUSEPORT on a listening {@link ServerBootstrap}
+     *
+     * @param bootstrap {@link ServerBootstrap} to configure
+     */
+    public void enableReusePort(ServerBootstrap bootstrap) {
+        throw new UnsupportedOperationException("SO_REUSEPORT not supported by the " + getName() + " transport");
+    }
+
+    /**
+     * Get the name of this {@link Transport} for logging
+     *
+     * @return Returns the name of this {@link Transport}
+     */
+    public abstract String getName();
+
+    /**
+     * Portable NIO {@link Transport}
+     */
+    public static class NioTransport extends Transport {
+
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        public Class<? extends ServerChannel> serverSocketChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return NioSocketChannel.class;
+        }
+
+        public String getName() {
+            return "nio";
+        }
+    }
+
+    /**
+     * Linux native epoll {@link Transport}, edge-triggered and with fewer syscalls and allocations than NIO
+     */
+    public static class EpollTransport extends Transport {
+
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        public Class<? extends ServerChannel> serverSocketChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public boolean supportsReusePort() {
+            return true;
+        }
+
+        @Override
+        public void enableReusePort(ServerBootstrap bootstrap) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+
+        public String getName() {
+            return "epoll";
+        }
+    }
+
+    private static final Logger _logger = Logger.getLogger(
+            Transport.class.getName()
+    );
+}
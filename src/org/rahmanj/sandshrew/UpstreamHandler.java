@@ -1,18 +1,34 @@
 
 package org.rahmanj.sandshrew;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMessage;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.spdy.DefaultSpdyRstStreamFrame;
+import io.netty.handler.codec.spdy.SpdyHttpHeaders;
+import io.netty.handler.codec.spdy.SpdySessionHandler;
+import io.netty.handler.codec.spdy.SpdyStreamStatus;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 import org.rahmanj.sandshrew.config.RouteConfig;
 import org.rahmanj.sandshrew.policy.ServerInfo;
@@ -24,14 +40,21 @@ import org.rahmanj.sandshrew.routes.ProxyRoute;
  *
  * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
  */
-public class UpstreamHandler extends ChannelInboundHandlerAdapter implements ProxyChannel {
+public class UpstreamHandler extends ChannelInboundHandlerAdapter implements ProxyChannel, BufferBudget.Listener {
 
     /**
      * Construct an instance of the UpstreamHandler using the given EventLoopGroup
      * @param workerGroup The shared EventLoopGroup to use for async IO
+     * @param config Reference to the current {@link RouteConfig} to route requests with
+     * @param connectionPools The {@link DownstreamConnectionPoolGroup} to borrow downstream connections from
+     * @param responsePassthrough True to have HTTP responses forwarded as raw bytes rather than decoded and re-encoded
+     * @param bufferBudget The shared {@link BufferBudget} queued messages are charged to
      */
-    public UpstreamHandler(EventLoopGroup workerGroup, RouteConfig config) {
+    public UpstreamHandler(EventLoopGroup workerGroup, AtomicReference<RouteConfig> config, DownstreamConnectionPoolGroup connectionPools, boolean responsePassthrough, BufferBudget bufferBudget) {
         _workerGroup = workerGroup;
+        _responsePassthrough = responsePassthrough;
+        _connectionPools = connectionPools;
+        _connectionPool = null;
         _writable = true; // Sane default
         _remoteIdentifier = null;
 
@@ -42,7 +65,32 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
 
         _downstreamServer = null;
         _downstreamClient = null;
+        _pendingAcquire = null;
         _throttled = false;
+        _overBudget = false;
+        _bufferBudget = bufferBudget;
+        _bufferAccount = null;
+        _discardingRequest = false;
+        _exchangeInProgress = false;
+        _requestComplete = true;
+        _exchangeVersion = null;
+        _exchangeKeepAlive = false;
+        _exchangeStreamId = null;
+        _responseStarted = false;
+        _draining = false;
+        _closeAfterExchange = false;
+        _messageQueue = new ArrayDeque<Message>();
+        _pipelined = new ArrayDeque<HttpObject>();
+
+        _flushPending = false;
+        _flushTask = new Runnable() {
+            @Override
+            public void run() {
+                if (_flushPending) {
+                    flushNow();
+                }
+            }
+        };
     }
 
     /**
@@ -57,14 +105,7 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
          * even begin to start calling this method until after we have began reading from the upstream client
          * By then _channel is non-null and connected as expected
          */
-        _channel.eventLoop().execute(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        _channel.write(msg);
-                    }
-                }
-        );
+        send(msg, null, msg instanceof LastHttpContent);
     }
 
     /**
@@ -74,57 +115,233 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
      * @param promise A {@ChannelPromise} to be triggered when the {@link HttpObject} is sent
      */
     public void send(final HttpObject msg, final ChannelPromise promise) {
-        _channel.eventLoop().execute(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        _channel.write(msg, promise);
+        send(msg, promise, msg instanceof LastHttpContent);
+    }
+
+    /**
+     * Send raw, already encoded response bytes over the {@link ProxyChannel}. This method is asynchronous
+     *
+     * @param buf The {@link ByteBuf} to send over the {@link ProxyChannel}
+     * @param last True if these are the final bytes of the current exchange
+     */
+    public void sendRaw(final ByteBuf buf, final boolean last) {
+        send(buf, null, last);
+    }
+
+    /**
+     * Close the client connection once the current response is sent, it is framed by the downstream server closing
+     * its connection or tells the client the connection closes. Each SPDY stream ends on its own, so the session
+     * carries on regardless
+     */
+    public void closeAfterExchange() {
+        if (_channel.pipeline().get(SpdySessionHandler.class) == null) {
+            _closeAfterExchange = true;
+        }
+    }
+
+    /**
+     * The downstream connection failed before the exchange completed. Answer with a 502 if none of the response
+     * has been sent yet, otherwise the client can only learn of it from its SPDY stream being reset, or from the
+     * connection closing before the response is complete
+     */
+    public void exchangeFailed() {
+        if (_channel.eventLoop().inEventLoop()) {
+            exchangeFailedOnLoop();
+        } else {
+            _channel.eventLoop().execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            exchangeFailedOnLoop();
+                        }
                     }
-                }
-        );
+            );
+        }
+    }
+
+    /**
+     * Flush everything sent so far to the remote client
+     */
+    public void flush() {
+        if (_channel.eventLoop().inEventLoop()) {
+            flushNow();
+        } else {
+            _channel.eventLoop().execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            flushNow();
+                        }
+                    }
+            );
+        }
+    }
+
+    /**
+     * Send a message on the event loop, directly if we are already on it, which is the usual case since
+     * {@link DownstreamClient}s come from the pool of our own event loop
+     *
+     * @param msg {@link HttpObject} or {@link ByteBuf} to send
+     * @param promise {@link ChannelPromise} to notify, null for none
+     * @param last True if this completes the current exchange
+     */
+    private void send(final Object msg, final ChannelPromise promise, final boolean last) {
+        if (_channel.eventLoop().inEventLoop()) {
+            sendOnLoop(msg, promise, last);
+        } else {
+            _channel.eventLoop().execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            sendOnLoop(msg, promise, last);
+                        }
+                    }
+            );
+        }
+    }
+
+    /**
+     * Write a message without flushing it, whoever triggered the write flushes once the batch is done, or failing
+     * that the flush scheduled for the end of the event loop tick
+     *
+     * @param msg {@link HttpObject} or {@link ByteBuf} to send
+     * @param promise {@link ChannelPromise} to notify, null for none
+     * @param last True if this completes the current exchange
+     */
+    private void sendOnLoop(Object msg, ChannelPromise promise, boolean last) {
+        if (_closeAfterExchange && msg instanceof HttpResponse) {
+            HttpHeaders.setKeepAlive((HttpResponse) msg, false);
+        }
+        _responseStarted = true;
+
+        // Response bytes count against the exchange's window until the client's socket takes them
+        if (_responseWindow != null) {
+            promise = _responseWindow.consume(_channel, msg, promise);
+        }
+
+        if (promise != null) {
+            _channel.write(msg, promise);
+        } else {
+            _channel.write(msg);
+        }
+        scheduleFlush();
+
+        if (last) {
+            exchangeCompleted();
+        }
+    }
+
+    /**
+     * End the exchange whose downstream connection failed, see {@link #exchangeFailed()}
+     */
+    private void exchangeFailedOnLoop() {
+        if (_downstreamClient == null || _exchangeVersion == null) {
+            // The exchange is already over, or the client closed and took the downstream connection with it
+            return;
+        }
+        _logger.log(Level.FINE, "Downstream " + _downstreamServer.getHostname() + " failed mid exchange for " + _remoteIdentifier);
+
+        if (!_responseStarted) {
+            sendErrorResponse(_exchangeVersion, _exchangeKeepAlive, _exchangeStreamId, HttpResponseStatus.BAD_GATEWAY);
+        } else if (_exchangeStreamId != null) {
+            int streamId = Integer.parseInt(_exchangeStreamId);
+            _channel.writeAndFlush(new DefaultSpdyRstStreamFrame(streamId, SpdyStreamStatus.INTERNAL_ERROR));
+            exchangeCompleted();
+        } else {
+            _closeAfterExchange = true;
+            exchangeCompleted();
+        }
+    }
+
+    /**
+     * Flush at the end of the current event loop tick, unless something flushes before then. Tasks run after the
+     * loop has processed its IO, so every write made while handling this tick's reads goes out in one flush
+     */
+    private void scheduleFlush() {
+        if (!_flushPending) {
+            _flushPending = true;
+            _channel.eventLoop().execute(_flushTask);
+        }
+    }
+
+    /**
+     * Flush now, the pending end of tick flush then has nothing left to do
+     */
+    private void flushNow() {
+        _flushPending = false;
+        _channel.flush();
     }
 
     /**
      * Throttle AutoRead from the {@link Channel}
      */
     public void throttle() {
+        if (_channel.eventLoop().inEventLoop()) {
+            _throttled = true;
+            updateAutoRead();
+            return;
+        }
+
         _channel.eventLoop().execute(
                 new Runnable() {
                     @Override
                     public void run() {
                         _throttled = true;
-
-                        if (_channel != null) {
-                            _channel.config().setAutoRead(false);
-                        }
+                        updateAutoRead();
                     }
                 }
         );
     }
 
-
-
     /**
      * Unthrottle AutoRead from the {@link Channel}
      */
     public void unthrottle() {
+        if (_channel.eventLoop().inEventLoop()) {
+            _throttled = false;
+            updateAutoRead();
+            return;
+        }
+
         _channel.eventLoop().execute(
                 new Runnable() {
                     @Override
                     public void run() {
                         _throttled = false;
-
-                        if (_channel != null) {
-                            _channel.config().setAutoRead(true);
-                        }
+                        updateAutoRead();
                     }
                 }
         );
     }
 
     /**
+     * Stop reading, the {@link BufferBudget} is over its high watermark and this connection is still queueing
+     */
+    public void onOverBudget() {
+        _overBudget = true;
+        updateAutoRead();
+    }
+
+    /**
+     * Resume reading, the {@link BufferBudget} is back under its low watermark
+     */
+    public void onUnderBudget() {
+        _overBudget = false;
+        updateAutoRead();
+    }
+
+    /**
+     * Get the account bytes queued for this connection are charged to
      *
-     * @return
+     * @return Returns the {@link BufferBudget.Account} of this connection
+     */
+    public BufferBudget.Account getBufferAccount() {
+        return _bufferAccount;
+    }
+
+    /**
+     * Checks if the connection is draining, see {@link #shutdown()}
+     * @return Returns true if the connection will close once its exchanges complete
      */
     public boolean isDraining() {
         return _draining;
@@ -157,7 +374,7 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
     }
 
     /**
-     * Perform a graceful asynchronous shutdown of this client
+     * Perform a graceful asynchronous shutdown of this client, see {@link #drain()}
      */
     public void shutdown() {
 
@@ -165,8 +382,7 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
                 new Runnable() {
                     @Override
                     public void run() {
-                        _draining = true;
-                        // TODO (JR) Implement this
+                        drain();
                     }
                 }
         );
@@ -188,9 +404,11 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
         _logger.log(Level.FINE, "Connection opened with downstream: " + _remoteIdentifier);
 
         _channel = ctx.channel();
+        _connectionPool = _connectionPools.poolFor(_channel.eventLoop());
+        _bufferAccount = _bufferBudget.newAccount(_channel, this);
 
         // Use the established throttling settings
-        _channel.config().setAutoRead(!_throttled);
+        updateAutoRead();
 
         // Forward if needed
         ctx.fireChannelActive();
@@ -210,41 +428,116 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
             _remoteIdentifier = null;
         }
 
+        if (_responseWindow != null) {
+            _responseWindow.close();
+            _responseWindow = null;
+        }
+
+        // A connection handed to us later would never be given back, the pool keeps it for someone else instead
+        if (_pendingAcquire != null) {
+            _pendingAcquire.cancel(false);
+            _pendingAcquire = null;
+        }
+
+        // The downstream connection is mid exchange, so it cannot go back to the pool
+        if (_downstreamClient != null) {
+            _downstreamClient.close();
+            _downstreamClient = null;
+        }
+
+        // Nothing is going to send what's still waiting on a downstream connection
+        Message msg;
+        while ((msg = _messageQueue.poll()) != null) {
+            _bufferAccount.credit(msg.getMessage());
+            ReferenceCountUtil.release(msg.getMessage());
+        }
+
+        // Nor the requests waiting their turn
+        HttpObject pipelined;
+        while ((pipelined = _pipelined.poll()) != null) {
+            _bufferAccount.credit(pipelined);
+            ReferenceCountUtil.release(pipelined);
+        }
+
         // Forward if needed
         ctx.fireChannelInactive();
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof HttpObject && (!_pipelined.isEmpty() || (_exchangeInProgress && isHeader(msg)))) {
+            // One exchange at a time, the next request waits until the response in progress has been sent
+            if (_bufferAccount.charge(msg)) {
+                _pipelined.add((HttpObject) msg);
+            } else {
+                ReferenceCountUtil.release(msg);
+            }
+            updateAutoRead();
+            return;
+        }
+
+        readMessage(msg);
+    }
+
+    /**
+     * Start a new exchange for a request header, or forward the body of the request in progress
+     *
+     * @param msg {@link HttpRequest} or {@link HttpContent} read from the client
+     */
+    protected void readMessage(Object msg) {
         if (isHeader(msg)) {
             HttpRequest req = (HttpRequest)msg;
-            HttpHeaders headers = req.headers();
+            _exchangeInProgress = true;
+            _requestComplete = req instanceof LastHttpContent;
+            _responseStarted = false;
+
+            // What we need to answer the request ourselves later on, taken now since a SPDY downstream connection
+            // adds its own stream ID to the request
+            _exchangeVersion = req.getProtocolVersion();
+            _exchangeKeepAlive = HttpHeaders.isKeepAlive(req);
+            _exchangeStreamId = req.headers().get(SpdyHttpHeaders.Names.STREAM_ID);
+
+            // We only speak HTTP/1.x and SPDY to clients, so the request carries on as HTTP/1.1
+            if (Http2PrefaceHandler.ignoreUpgrade(req)) {
+                _logger.log(Level.FINE, "Ignoring h2c upgrade from " + _remoteIdentifier);
+            }
+
+            // Read the config once, the whole exchange then runs on this snapshot even if a reload happens meanwhile
+            ProxyRoute route = getRoute(_config.get(), req);
+            if (route == null) {
+                routeNotFound(req);
+                return;
+            }
 
-            // TODO (JR) Determine the route
-            ProxyRoute route = getRoute(headers);
-            RequestContext requestContext = new RequestContext(req, ctx.channel());
+            RequestContext requestContext = new RequestContext(req, _channel);
 
             // TODO (JR) Update this??
             _downstreamServer = route.getPolicy().next(requestContext);
-            DownstreamClient downstreamClient = new DownstreamClient(this, _downstreamServer, _channel.eventLoop());
-            ChannelFuture downstreamClientFuture;
-
-            try {
-                // Start the downstream client connection
-                // Note that this only starts the client connection process
-                // The client isn't actually connected yet, but will be once
-                // the future completes
-                downstreamClientFuture = _downstreamClient.run();
-                downstreamClientFuture.addListener(new ClientConnectionListener(downstreamClient));
-            } catch (Exception ex) {
-                // TODO (JR) Blow things up as needed
-            }
+
+            // Borrow a connection from the pool owned by our own event loop
+            // Note that the client may not be connected yet, but will be once
+            // the future completes
+            // SPDY streams need decoded responses to re-frame, plain HTTP can take the bytes as they are
+            // unless we are draining, in which case the response needs a Connection: close header added
+            boolean passthrough = _responsePassthrough && !isSpdy(req) && !_closeAfterExchange;
+            _pendingAcquire = _connectionPool.acquire(_downstreamServer, this, passthrough);
+            _pendingAcquire.addListener(new ClientConnectionListener(_downstreamServer));
 
             // Queue request to wait for the connection to complete
             _messageQueue.add(new Message(req, null));
 
         } else if (isContent(msg)) {
 
+            if (_discardingRequest) {
+                // Body of a request we already answered ourselves
+                _discardingRequest = !(msg instanceof LastHttpContent);
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+
+            if (msg instanceof LastHttpContent) {
+                _requestComplete = true;
+            }
             sendToDownstream((HttpObject)msg);
 
         } else {
@@ -254,7 +547,37 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
     }
 
     /**
-     * Handle backpressure from the remote client so we can throttle reads from the {@link org.rahmanj.sandshrew.policy.ServerInfo}
+     * Everything read in this batch has been handed to the downstream server, so flush it there in one go
+     *
+     * @param ctx {@link ChannelHandlerContext} for this channel
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (_downstreamClient != null) {
+            _downstreamClient.flush();
+        }
+
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * Start draining when the {@link ProxyServer} asks for it
+     *
+     * @param ctx {@link ChannelHandlerContext} for this channel
+     * @param evt The user event
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt == DrainRequested.INSTANCE) {
+            drain();
+        } else {
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+
+    /**
+     * Record changes in writability to the remote client. Backpressure on the downstream server is handled by the
+     * exchange's {@link FlowWindow}, which throttles reads from our own downstream connection only
      *
      * @param ctx ChannelHandlerContext for this particular channel
      */
@@ -264,12 +587,6 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
         // Check for toggle from previous state
         if (_writable != ctx.channel().isWritable()) {
             _writable = !_writable;
-
-            if (_writable) {
-                enableDownstreamReads();
-            } else {
-                disableDownstreamReads();
-            }
         }
 
         // Forward on to the chain
@@ -283,22 +600,85 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
      */
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-        // Close the connection when an exception is raised
-        // TODO (JR) Whack the downstream client at this point if it has been established
-        cause.printStackTrace();
+        _logger.log(Level.WARNING, "Closing connection with " + _remoteIdentifier + " after exception", cause);
+
+        // The downstream connection is mid exchange, so it cannot go back to the pool
+        if (_downstreamClient != null) {
+            _downstreamClient.close();
+            _downstreamClient = null;
+        }
+
+        // Close the connection when an exception is raised, channelInactive() takes care of the rest
         ctx.close();
     }
 
     /**
      * Find the route for a given request to follow
      *
-     * @param header
-     * @return
+     * @param config {@link RouteConfig} snapshot to route with
+     * @param req {@link HttpRequest} to route
+     * @return Returns the {@link ProxyRoute} for the request, null if no route matches
+     */
+    protected ProxyRoute getRoute(RouteConfig config, HttpRequest req) {
+        if (config == null) {
+            // No configuration installed yet
+            return null;
+        }
+        return config.lookupRoute(req, (InetSocketAddress) _channel.localAddress());
+    }
+
+    /**
+     * Answer a request no route matches with a 404, discarding its body
+     *
+     * @param req {@link HttpRequest} that has no route
+     */
+    protected void routeNotFound(HttpRequest req) {
+        _logger.log(Level.FINE, "No route for " + req.getUri() + " from " + _remoteIdentifier);
+
+        sendErrorResponse(req, HttpResponseStatus.NOT_FOUND);
+        ReferenceCountUtil.release(req);
+    }
+
+    /**
+     * Answer the request of the current exchange ourselves with an empty response and end the exchange, the rest
+     * of the request's body is discarded as it arrives
+     *
+     * @param req {@link HttpRequest} to answer
+     * @param status {@link HttpResponseStatus} to answer with
+     */
+    protected void sendErrorResponse(HttpRequest req, HttpResponseStatus status) {
+        sendErrorResponse(
+                req.getProtocolVersion(),
+                HttpHeaders.isKeepAlive(req),
+                req.headers().get(SpdyHttpHeaders.Names.STREAM_ID),
+                status
+        );
+    }
+
+    /**
+     * Answer the request of the current exchange ourselves, see {@link #sendErrorResponse(HttpRequest, HttpResponseStatus)}
+     *
+     * @param version {@link HttpVersion} of the request
+     * @param keepAlive True if the client asked to keep the connection alive
+     * @param streamId SPDY stream ID of the request, null if it didn't arrive over SPDY
+     * @param status {@link HttpResponseStatus} to answer with
      */
-    protected ProxyRoute getRoute(HttpHeaders header) {
-        // TODO, complete this
-        ProxyRoute route = new ProxyRoute(null, null);
-        return route;
+    protected void sendErrorResponse(HttpVersion version, boolean keepAlive, String streamId, HttpResponseStatus status) {
+        if (!keepAlive) {
+            _closeAfterExchange = true;
+        }
+
+        FullHttpResponse response = new DefaultFullHttpResponse(version, status);
+        HttpHeaders.setContentLength(response, 0);
+        HttpHeaders.setKeepAlive(response, !_closeAfterExchange);
+
+        // SPDY needs the stream ID to route the response back to its stream
+        if (streamId != null) {
+            response.headers().set(SpdyHttpHeaders.Names.STREAM_ID, streamId);
+        }
+
+        _channel.writeAndFlush(response);
+        exchangeCompleted();
     }
 
     /**
@@ -306,15 +686,37 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
      *
      * @param client {@link ProxyChannel} for which a connection was just established
      */
-    protected void downstreamConnected(final ProxyChannel client) {
+    protected void downstreamConnected(final DownstreamClient client) {
         // Run inside the event loop for concurrency control
         _channel.eventLoop().execute(
                 new Runnable() {
                     @Override
                     public void run() {
-                        if (_downstreamClient == null) {
+                        if (!_channel.isActive()) {
+                            // The client went away while we waited, nobody else is going to give the connection back
+                            _connectionPool.release(client);
+                        } else if (_downstreamClient == null && !client.isReusable()) {
+                            // Closed before we got to use it, so it never saw the request
+                            _connectionPool.release(client);
+                            downstreamFailed(_downstreamServer);
+                        } else if (_downstreamClient == null) {
                             _downstreamClient = client;
-                            // TODO, start flushing messages from the queue
+                            _responseWindow = new FlowWindow(client, RESPONSE_WINDOW_BYTES);
+
+                            // Send everything queued up while we waited on the connection
+                            Message msg;
+                            while ((msg = _messageQueue.poll()) != null) {
+                                _bufferAccount.credit(msg.getMessage());
+                                if (msg.getPromise() != null) {
+                                    _downstreamClient.send((HttpObject) msg.getMessage(), msg.getPromise());
+                                } else {
+                                    _downstreamClient.send((HttpObject) msg.getMessage());
+                                }
+                            }
+                            _downstreamClient.flush();
+                        } else {
+                            // Already have a connection for this exchange, give the extra one back
+                            _connectionPool.release(client);
                         }
                     }
                 }
@@ -322,10 +724,121 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
     }
 
     /**
-     * We failed to connect to the downstream, take further action
+     * The response for the current exchange has been fully sent, so hand the downstream connection back to the pool
+     */
+    protected void exchangeCompleted() {
+        // Release the downstream connection before it goes back to the pool
+        if (_responseWindow != null) {
+            _responseWindow.close();
+            _responseWindow = null;
+        }
+
+        if (_downstreamClient != null) {
+            _connectionPool.release(_downstreamClient);
+            _downstreamClient = null;
+        }
+
+        _exchangeInProgress = false;
+        _exchangeVersion = null;
+        _exchangeStreamId = null;
+
+        // The response beat the rest of the request, which has nowhere to go now
+        if (!_requestComplete) {
+            _discardingRequest = true;
+        }
+
+        if (_closeAfterExchange) {
+            closeWhenFlushed();
+        } else if (!_pipelined.isEmpty()) {
+            // Start on the next request once we are out of the downstream connection's read
+            _channel.eventLoop().execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            readPipelined();
+                        }
+                    }
+            );
+        }
+    }
+
+    /**
+     * Replay the requests held back while the previous exchange was in progress, up to the start of the next
+     * exchange, and resume reading once they have all been replayed
+     */
+    protected void readPipelined() {
+        HttpObject msg;
+        while ((msg = _pipelined.peek()) != null) {
+            if (_exchangeInProgress && isHeader(msg)) {
+                // Waits for the exchange we just started
+                break;
+            }
+
+            _pipelined.poll();
+            _bufferAccount.credit(msg);
+            readMessage(msg);
+        }
+
+        // Reads were off, so there is no channelReadComplete() to flush what we just sent downstream
+        if (_downstreamClient != null) {
+            _downstreamClient.flush();
+        }
+        updateAutoRead();
+    }
+
+    /**
+     * Stop taking new requests on this connection and close it once the requests already under way complete.
+     * SPDY connections are closed through the {@link SpdySessionHandler}, which sends a GOAWAY and then waits for
+     * the active streams to finish. HTTP connections close now if idle, otherwise the response under way is sent
+     * with Connection: close if it hasn't started yet, and the connection closes after it. The {@link ProxyServer}
+     * closes anything still open once its drain deadline passes.
+     */
+    protected void drain() {
+        if (_draining || _channel == null) {
+            return;
+        }
+        _draining = true;
+
+        if (_channel.pipeline().get(SpdySessionHandler.class) != null) {
+            _channel.close();
+        } else if (_exchangeInProgress) {
+            _closeAfterExchange = true;
+        } else {
+            closeWhenFlushed();
+        }
+    }
+
+    /**
+     * Close the connection once everything written to it so far has been flushed
+     */
+    protected void closeWhenFlushed() {
+        _channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * We failed to connect to the downstream, answer the request with a 502
+     *
+     * @param server {@link ServerInfo} we failed to connect to
      */
     protected void downstreamFailed(final ServerInfo server) {
-        // TODO, handle failure by checking for a new downstream server
+        _logger.log(Level.FINE, "Failed to connect to " + server.getHostname() + " for " + _remoteIdentifier);
+
+        // The request never left, so neither did any of the body queued behind it
+        HttpRequest req = null;
+        Message msg;
+        while ((msg = _messageQueue.poll()) != null) {
+            if (req == null && msg.getMessage() instanceof HttpRequest) {
+                req = (HttpRequest) msg.getMessage();
+            } else {
+                _bufferAccount.credit(msg.getMessage());
+                ReferenceCountUtil.release(msg.getMessage());
+            }
+        }
+
+        if (req != null) {
+            sendErrorResponse(req, HttpResponseStatus.BAD_GATEWAY);
+            ReferenceCountUtil.release(req);
+        }
     }
 
     /**
@@ -336,26 +849,23 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
     protected void sendToDownstream(HttpObject msg) {
         if (_downstreamClient != null) {
             // TODO, handle existing queued messages
-            _downstreamClient.send((HttpObject)msg);
+            _downstreamClient.send(msg);
+        } else if (_bufferAccount.charge(msg)) {
+            _messageQueue.add(new Message(msg, null));
         } else {
-            _messageQueue.add(new Message((HttpObject)msg, null));
+            // Over the buffer limit, the connection is being closed
+            ReferenceCountUtil.release(msg);
         }
     }
 
     /**
-     * Enable automatic reads from the downstream server, the remote client can keep up
+     * Read only while neither backpressure nor the {@link BufferBudget} holds us back, and no request is waiting
+     * on the exchange in progress
      */
-    protected void enableDownstreamReads() {
-        _logger.log(Level.FINE, "Backpressure from " + _remoteIdentifier + " over, enabling reads from");
-        _downstreamClient.throttle();
-    }
-
-    /**
-     * Disable automatic reads from the downstream server, the remote client cannot keep up
-     */
-    protected void disableDownstreamReads() {
-        _logger.log(Level.FINE, "Backpressure from " + _remoteIdentifier + ", disabling reads from");
-        _downstreamClient.unthrottle();
+    protected void updateAutoRead() {
+        if (_channel != null) {
+            _channel.config().setAutoRead(!_throttled && !_overBudget && _pipelined.isEmpty());
+        }
     }
 
     /**
@@ -368,6 +878,16 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
         return msg instanceof HttpMessage;
     }
 
+    /**
+     * Check if a given request arrived over a SPDY stream
+     *
+     * @param req {@link HttpRequest} to check
+     * @return Returns true if the request carries a SPDY stream ID
+     */
+    protected boolean isSpdy(HttpRequest req) {
+        return req.headers().contains(SpdyHttpHeaders.Names.STREAM_ID);
+    }
+
     /**
      * Check if a given input is a {@link HttpContent} object
      *
@@ -378,29 +898,50 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
         return msg instanceof HttpContent;
     }
 
+    /**
+     * User event fired down the pipeline of every connection to have it drain, see {@link #drain()}
+     */
+    public static final class DrainRequested {
+
+        private DrainRequested() {
+        }
+
+        public static final DrainRequested INSTANCE = new DrainRequested();
+    }
+
     /**
      * Handler class for client futures
      */
-    private class ClientConnectionListener implements GenericFutureListener<ChannelFuture> {
+    private class ClientConnectionListener implements GenericFutureListener<Future<DownstreamClient>> {
 
-        ClientConnectionListener(ProxyChannel client) {
-            _client = client; // Temp hack until we have DownstreamClientFuture
+        ClientConnectionListener(ServerInfo server) {
+            _server = server;
         }
 
-        // TODO, document this more
-        public void operationComplete(ChannelFuture future) {
-            if (future.isSuccess()) {
-                downstreamConnected(_client);
+        /**
+         * Invoked once the {@link DownstreamConnectionPool} has either handed us a connection, or failed to connect
+         *
+         * @param future {@link Future} holding the pooled {@link DownstreamClient}
+         */
+        public void operationComplete(Future<DownstreamClient> future) {
+            if (_pendingAcquire == future) {
+                _pendingAcquire = null;
+            }
+
+            if (future.isCancelled()) {
+                // We closed before it completed
+                return;
+            } else if (future.isSuccess()) {
+                downstreamConnected(future.getNow());
             } else if (future.cause() != null) {
-                /// TODO, get the downstream server in here somehow
                 _logger.warning("Exception: " + future.cause().toString());
-                downstreamFailed(null);
+                downstreamFailed(_server);
             } else {
-                downstreamFailed(null);
+                downstreamFailed(_server);
             }
         }
 
-        private ProxyChannel _client;
+        private ServerInfo _server;
     }
 
     /**
@@ -414,9 +955,9 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
     private Channel _channel;
 
     /**
-     *
+     * Reference to the current {@link RouteConfig}
      */
-    private RouteConfig _config;
+    private final AtomicReference<RouteConfig> _config;
 
     /**
      * {@link InetSocketAddress} for the remote upstream client
@@ -428,11 +969,56 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
      */
     private boolean _writable;
 
+    /**
+     * {@link FlowWindow} for response bytes from the current exchange's downstream connection, null between exchanges
+     */
+    private FlowWindow _responseWindow;
+
+    /**
+     * Track if the rest of the current request is being thrown away
+     */
+    private boolean _discardingRequest;
+
+    /**
+     * Track if a request has been read whose response has not been fully sent yet
+     */
+    private boolean _exchangeInProgress;
+
+    /**
+     * Track if the whole of the current request has been read
+     */
+    private boolean _requestComplete;
+
+    /**
+     * {@link HttpVersion} of the current exchange's request, null between exchanges
+     */
+    private HttpVersion _exchangeVersion;
+
+    /**
+     * Track if the current exchange's request asked to keep the connection alive
+     */
+    private boolean _exchangeKeepAlive;
+
+    /**
+     * SPDY stream ID of the current exchange's request, null if it didn't arrive over SPDY
+     */
+    private String _exchangeStreamId;
+
+    /**
+     * Track if any of the current exchange's response has been sent to the client
+     */
+    private boolean _responseStarted;
+
     /**
      * Track if we are draining down
      */
     private boolean _draining;
 
+    /**
+     * Track if the HTTP connection closes once the exchange in progress completes
+     */
+    private boolean _closeAfterExchange;
+
     /**
      * Information about the remote agent
      */
@@ -444,20 +1030,75 @@ public class UpstreamHandler extends ChannelInboundHandlerAdapter implements Pro
     private ServerInfo _downstreamServer;
 
     /**
-     * {@link ProxyChannel} to transmit data to the {@link org.rahmanj.sandshrew.policy.ServerInfo}
+     * {@link DownstreamClient} borrowed from the pool to transmit data to the {@link org.rahmanj.sandshrew.policy.ServerInfo}
+     */
+    private DownstreamClient _downstreamClient;
+
+    /**
+     * Shared {@link DownstreamConnectionPoolGroup} to find our {@link DownstreamConnectionPool} in
+     */
+    private DownstreamConnectionPoolGroup _connectionPools;
+
+    /**
+     * {@link DownstreamConnectionPool} owned by the {@link EventLoop} this channel is registered with
      */
-    private ProxyChannel _downstreamClient;
+    private DownstreamConnectionPool _connectionPool;
+
+    /**
+     * True if HTTP responses should be forwarded as raw bytes
+     */
+    private boolean _responsePassthrough;
 
     /**
      * Tracks if the channel is read throttled or not
      */
     private boolean _throttled;
 
+    /**
+     * Tracks if reads are paused by the {@link BufferBudget}
+     */
+    private boolean _overBudget;
+
+    /**
+     * Shared {@link BufferBudget} for queued messages
+     */
+    private final BufferBudget _bufferBudget;
+
+    /**
+     * {@link BufferBudget.Account} for messages queued on behalf of this connection
+     */
+    private BufferBudget.Account _bufferAccount;
+
     /**
      * Queue to store messages until we have connected to an downstream server
      */
     private Queue<Message> _messageQueue;
 
+    /**
+     * Connection requested from the {@link DownstreamConnectionPool} but not yet handed to us, null if none
+     */
+    private Future<DownstreamClient> _pendingAcquire;
+
+    /**
+     * Messages read after the header of the next request, held back until the exchange in progress completes
+     */
+    private Queue<HttpObject> _pipelined;
+
+    /**
+     * Track if there are writes waiting on the end of tick flush
+     */
+    private boolean _flushPending;
+
+    /**
+     * Task flushing at the end of the event loop tick, allocated once
+     */
+    private final Runnable _flushTask;
+
+    /**
+     * Response bytes a downstream server may have sent us but not yet to the client before it is throttled
+     */
+    private static final long RESPONSE_WINDOW_BYTES = 256 * 1024;
+
     private static final Logger _logger = Logger.getLogger(
             UpstreamHandler.class.getName()
     );
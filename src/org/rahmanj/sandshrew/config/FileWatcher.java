@@ -1,17 +1,31 @@
 package org.rahmanj.sandshrew.config;
 
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.PosixFileAttributeView;
-import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Standard file watcher routine
  *
+ * Watches the directory holding the file with a {@link WatchService}, which is inotify on Linux, so an idle proxy
+ * never wakes up to check the file. Any event in the directory schedules a check of the file shortly afterwards,
+ * and events arriving before the check runs push it back, so a burst of writes causes one reload once it settles.
+ * The check compares the file's modification time, size and identity, which catches config management tools that
+ * write a temporary file and rename it into place, and symlink swaps, as well as writes in place.
+ *
+ * If the directory can't be watched, the file is polled every period instead.
+ *
  * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
  */
 public class FileWatcher implements Runnable {
@@ -24,7 +38,7 @@ public class FileWatcher implements Runnable {
      * @param callback The {@link FileChangedHandler} to invoke when the file changes
      * @param errorCallback The {@link FileChangedErrorHandler} to invoke if an error occurs
      * @param executor The {@link ScheduledExecutorService} to run the {@link FileWatcher} on in the background
-     * @param period The delay (in seconds) between successive checks on the file
+     * @param period The delay (in seconds) between successive checks on the file, if it has to be polled
      */
     public FileWatcher(Path file, FileChangedHandler callback, FileChangedErrorHandler errorCallback, ScheduledExecutorService executor, long period) {
         if (executor == null) {
@@ -43,13 +57,21 @@ public class FileWatcher implements Runnable {
             throw new NullPointerException("Null error callback");
         }
 
+        if (period <= 0) {
+            throw new IllegalArgumentException("Positive period required");
+        }
+
         _callback = callback;
-        _filePath = file;
+        _errorCallback = errorCallback;
+        _filePath = file.toAbsolutePath();
         _executorService = executor;
+        _period = period;
         _lastAttrs = null;
+        _cancelled = false;
 
-        // Kick-off
-        _future = _executorService.scheduleAtFixedRate(this, 0, 2, TimeUnit.SECONDS);
+        // Kick-off with the initial load, then watch for changes
+        _future = _executorService.schedule(this, 0, TimeUnit.MILLISECONDS);
+        startWatching();
     }
 
     /**
@@ -64,16 +86,21 @@ public class FileWatcher implements Runnable {
         this(file, callback, errorCallback, executor, 2);
     }
 
+    /**
+     * Check the file, and fire the callback if it changed since the last check
+     */
     @Override
-    public void run() {
+    public synchronized void run() {
 
-        PosixFileAttributeView view = Files.getFileAttributeView(_filePath, PosixFileAttributeView.class);
+        if (_cancelled) {
+            return;
+        }
 
         try {
-            PosixFileAttributes attrs = view.readAttributes();
+            BasicFileAttributes attrs = Files.readAttributes(_filePath, BasicFileAttributes.class);
 
             // Fire the callback if either first invocation OR new file
-            if (_lastAttrs == null || _lastAttrs.lastModifiedTime().compareTo(attrs.lastModifiedTime()) < 0) {
+            if (_lastAttrs == null || changed(_lastAttrs, attrs)) {
                 _callback.onFileChanged(_filePath);
             }
             _lastAttrs = attrs;
@@ -85,17 +112,157 @@ public class FileWatcher implements Runnable {
     /**
      * Cancel further execution of the {@link FileWatcher}
      *
-     * @return True if the {@link FileWatcher} was successfully cancelled, false otherwise
+     * @return True if the {@link FileWatcher} was successfully cancelled, false if it already was
      */
     public boolean cancel() {
-        return _future.cancel(false);
+        boolean wasCancelled;
+        synchronized (this) {
+            wasCancelled = _cancelled;
+            _cancelled = true;
+
+            if (_pendingCheck != null) {
+                _pendingCheck.cancel(false);
+            }
+        }
+
+        if (_watchService != null) {
+            try {
+                // Wakes the watching thread, which then exits
+                _watchService.close();
+            } catch (IOException e) {
+                _logger.log(Level.FINE, "Error closing watch service", e);
+            }
+        }
+
+        _future.cancel(false);
+        return !wasCancelled;
+    }
+
+    /**
+     * Register for events on the file's directory and start the thread waiting on them, or fall back to polling
+     */
+    private void startWatching() {
+        Path directory = _filePath.getParent();
+
+        try {
+            _watchService = FileSystems.getDefault().newWatchService();
+
+            // Renames into place show up as creates
+            directory.register(
+                    _watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE
+            );
+        } catch (IOException | UnsupportedOperationException e) {
+            _logger.warning("Unable to watch " + directory + ", polling " + _filePath + " instead: " + e);
+            closeWatchService();
+            startPolling();
+            return;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "FileWatcher-" + _filePath.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Block on the {@link WatchService} and schedule a check for every batch of events
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = _watchService.take();
+
+                // Events for other files in the directory are checked too, the check is cheap and that is what
+                // catches symlink swaps, where the event is for the link's target directory rather than the file
+                key.pollEvents();
+                scheduleCheck();
+
+                if (!key.reset()) {
+                    // The directory itself went away
+                    synchronized (this) {
+                        if (_cancelled) {
+                            return;
+                        }
+                    }
+
+                    _logger.warning("Lost watch on " + _filePath.getParent() + ", polling " + _filePath + " instead");
+                    closeWatchService();
+                    startPolling();
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Cancelled
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Schedule a check of the file after the debounce delay, replacing any check not yet run
+     */
+    private synchronized void scheduleCheck() {
+        if (_cancelled) {
+            return;
+        }
+
+        if (_pendingCheck != null) {
+            _pendingCheck.cancel(false);
+        }
+        _pendingCheck = _executorService.schedule(this, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Poll the file every period
+     */
+    private synchronized void startPolling() {
+        if (_cancelled) {
+            return;
+        }
+
+        _future = _executorService.scheduleWithFixedDelay(this, _period, _period, TimeUnit.SECONDS);
+    }
+
+    private void closeWatchService() {
+        if (_watchService != null) {
+            try {
+                _watchService.close();
+            } catch (IOException e) {
+                _logger.log(Level.FINE, "Error closing watch service", e);
+            }
+        }
+    }
+
+    /**
+     * Check if the file has changed between two sets of attributes
+     *
+     * @param before {@link BasicFileAttributes} from the previous check
+     * @param after {@link BasicFileAttributes} from this check
+     * @return Returns true if the file was modified or replaced
+     */
+    private static boolean changed(BasicFileAttributes before, BasicFileAttributes after) {
+        if (!before.lastModifiedTime().equals(after.lastModifiedTime()) || before.size() != after.size()) {
+            return true;
+        }
+
+        // A different inode means the file was replaced, even if the timestamps happen to match
+        Object beforeKey = before.fileKey();
+        Object afterKey = after.fileKey();
+        return beforeKey != null && !beforeKey.equals(afterKey);
     }
 
 
     /**
      * Last file attributes view we saw
      */
-    private PosixFileAttributes _lastAttrs;
+    private BasicFileAttributes _lastAttrs;
 
     /**
      *
@@ -118,8 +285,36 @@ public class FileWatcher implements Runnable {
     private ScheduledExecutorService _executorService;
 
     /**
-     *
+     * Seconds between checks when polling
+     */
+    private final long _period;
+
+    /**
+     * {@link WatchService} for the file's directory, null if polling
+     */
+    private volatile WatchService _watchService;
+
+    /**
+     * Initial check, or the polling task if polling
+     */
+    private volatile ScheduledFuture<?> _future;
+
+    /**
+     * Debounced check waiting to run, if any
+     */
+    private ScheduledFuture<?> _pendingCheck;
+
+    /**
+     * Set once the {@link FileWatcher} is cancelled
+     */
+    private boolean _cancelled;
+
+    /**
+     * Time to wait for a burst of events to settle before checking the file
      */
-    private ScheduledFuture _future;
+    private static final long DEBOUNCE_MILLIS = 25;
 
+    private static final Logger _logger = Logger.getLogger(
+            FileWatcher.class.getName()
+    );
 }
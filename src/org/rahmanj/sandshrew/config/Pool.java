@@ -8,6 +8,7 @@ import org.rahmanj.sandshrew.policy.ServerFactory;
 import org.rahmanj.sandshrew.policy.ServerInfo;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -25,7 +26,6 @@ public class Pool {
      * @param serverFactory {@link ServerFactory} to create {@link ServerInfo} objects
      */
     public Pool(JsonNode poolNode, Map<String, PolicyFactory> policyFactories, ServerFactory serverFactory) {
-        // TODO, build Pool from config
 
         if (!poolNode.has("name") || !poolNode.get("name").isTextual()) {
             throw new IllegalArgumentException("No name for pool");
@@ -44,21 +44,48 @@ public class Pool {
         }
 
         String policyName = policyNode.get("type").asText();
-        _policy = policyFactories.get(policyName).createPolicy(policyNode);
+        PolicyFactory policyFactory = policyFactories.get(policyName);
+        if (policyFactory == null) {
+            throw new IllegalArgumentException("Unknown policy " + policyName + " in pool " + _poolName);
+        }
 
-        if (!poolNode.has("servers") || !poolNode.get("server").isArray()) {
+        if (!poolNode.has("servers") || !poolNode.get("servers").isArray()) {
             throw new IllegalArgumentException("Servers must be a list in pool " + _poolName);
         }
 
         JsonNode serversNode = poolNode.get("servers");
-        _servers = new ArrayList<ServerInfo>();
+        List<ServerInfo> servers = new ArrayList<ServerInfo>();
+        PolicyFactory.ServerPair[] pairs = new PolicyFactory.ServerPair[serversNode.size()];
 
+        // The factory hands back the existing ServerInfo for servers we already know
         ServerInfo server;
+        int i = 0;
         for (JsonNode serverNode : serversNode) {
             server = serverFactory.createServer(serverNode);
-            _policy.addDownstreamServer(server, serverNode);
-            _servers.add(server);
+            pairs[i++] = new PolicyFactory.ServerPair(server, serverNode);
+            servers.add(server);
         }
+
+        _servers = Collections.unmodifiableList(servers);
+        _policy = policyFactory.createPolicy(policyNode, pairs);
+        _poolNode = poolNode;
+    }
+
+    /**
+     * Check if this {@link Pool} was built from the same definition, so it can be reused as is across a reload
+     * @param poolNode {@link JsonNode} for the pool in the new configuration
+     * @return Returns true if the definitions are structurally equal
+     */
+    public boolean hasDefinition(JsonNode poolNode) {
+        return _poolNode.equals(poolNode);
+    }
+
+    /**
+     * Get the servers in this {@link Pool}
+     * @return An unmodifiable {@link List} of the {@link ServerInfo}s in the pool
+     */
+    public List<ServerInfo> getServers() {
+        return _servers;
     }
 
     /**
@@ -80,16 +107,21 @@ public class Pool {
     /**
      * Custom policy for this route
      */
-    private RoutePolicy _policy;
+    private final RoutePolicy _policy;
+
+    /**
+     * Servers in the pool, shared with every other pool naming them
+     */
+    private final List<ServerInfo> _servers;
 
     /**
-     *
+     * Name of the pool, referred to by routes
      */
-    private List<ServerInfo> _servers;
+    private final String _poolName;
 
     /**
-     *
+     * Definition the pool was built from
      */
-    private String _poolName;
+    private final JsonNode _poolNode;
 
 }
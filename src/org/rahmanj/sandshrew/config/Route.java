@@ -2,6 +2,8 @@ package org.rahmanj.sandshrew.config;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
+import java.net.InetSocketAddress;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -35,15 +37,164 @@ public class Route {
             throw new IllegalArgumentException("Pool " + poolName + " not found");
         }
         _pool = pools.get(poolName);
+
+        String type = routeNode.path("type").asText("location");
+        if (!type.equals("location")) {
+            throw new IllegalArgumentException("Unsupported route type " + type);
+        }
+
+        if (!routeNode.has("location") || !routeNode.get("location").isTextual()) {
+            throw new IllegalArgumentException("No location for route");
+        }
+
+        // Locations are matched against request paths, which always start with '/'
+        String location = routeNode.get("location").asText();
+        _location = location.startsWith("/") ? location : "/" + location;
+
+        // Routes without a host apply to any host
+        if (routeNode.has("host")) {
+            if (!routeNode.get("host").isTextual() || routeNode.get("host").asText().isEmpty()) {
+                throw new IllegalArgumentException("Bad host for route " + _location);
+            }
+            _host = routeNode.get("host").asText().toLowerCase(Locale.ROOT);
+        } else {
+            _host = null;
+        }
+
+        _listenAddress = parseListen(routeNode.get("listen"));
+    }
+
+    /**
+     * Parse the optional "listen" field, either a port or a host:port pair
+     * @param listenNode {@link JsonNode} of the field, null if absent
+     * @return Returns the {@link InetSocketAddress} to listen on, the wildcard address if no host is given
+     */
+    private InetSocketAddress parseListen(JsonNode listenNode) {
+        if (listenNode == null) {
+            return new InetSocketAddress(DEFAULT_LISTEN_PORT);
+        }
+
+        String host = null;
+        String port;
+        if (listenNode.isInt()) {
+            port = listenNode.asText();
+        } else if (listenNode.isTextual()) {
+            String value = listenNode.asText();
+            int colon = value.lastIndexOf(':');
+            if (colon >= 0) {
+                host = value.substring(0, colon);
+                port = value.substring(colon + 1);
+            } else {
+                port = value;
+            }
+
+            // IPv6 literals come bracketed
+            if (host != null && host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+        } else {
+            throw new IllegalArgumentException("Bad listen address for route " + _location);
+        }
+
+        int portNumber;
+        try {
+            portNumber = Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad listen port for route " + _location, e);
+        }
+
+        if (portNumber <= 0 || portNumber > 65535) {
+            throw new IllegalArgumentException("Bad listen port for route " + _location);
+        }
+
+        if (host == null || host.isEmpty() || host.equals("*")) {
+            return new InetSocketAddress(portNumber);
+        }
+        return new InetSocketAddress(host, portNumber);
+    }
+
+    /**
+     * Get the virtual host this route applies to
+     * @return A lower case host name, possibly a wildcard such as "*.example.com", or null for any host
+     */
+    public String getHost() {
+        return _host;
+    }
+
+    /**
+     * Get the path prefix this route matches
+     * @return A {@link String} location starting with '/'
+     */
+    public String getLocation() {
+        return _location;
     }
 
 
+    /**
+     * Get the address requests for this route are accepted on
+     * @return The {@link InetSocketAddress} to listen on
+     */
+    public InetSocketAddress getListenAddress() {
+        return _listenAddress;
+    }
+
     public Pool getPool() {
         return _pool;
     }
 
+    /**
+     * Routes are equal if they listen on the same address, match the same host and location and send requests to the same named pool,
+     * so reloads can tell which routes actually changed
+     * @param obj {@link Object} to compare with
+     * @return Returns true if obj is an equal {@link Route}
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof Route)) {
+            return false;
+        }
+
+        Route other = (Route) obj;
+        return _location.equals(other._location)
+                && _listenAddress.equals(other._listenAddress)
+                && (_host == null ? other._host == null : _host.equals(other._host))
+                && _pool.getPoolName().equals(other._pool.getPoolName());
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = _location.hashCode();
+        hash = 31 * hash + (_host == null ? 0 : _host.hashCode());
+        hash = 31 * hash + _listenAddress.hashCode();
+        return 31 * hash + _pool.getPoolName().hashCode();
+    }
+
     /**
      * Server pool for this given route
      */
-    private Pool _pool;
+    private final Pool _pool;
+
+    /**
+     * Path prefix of requests that take this route
+     */
+    private final String _location;
+
+    /**
+     * Virtual host of requests that take this route, null for any host
+     */
+    private final String _host;
+
+    /**
+     * Address the route is served on
+     */
+    private final InetSocketAddress _listenAddress;
+
+    /**
+     * Port routes listen on when the configuration doesn't say
+     */
+    private static final int DEFAULT_LISTEN_PORT = 80;
 }
@@ -3,45 +3,90 @@ package org.rahmanj.sandshrew.config;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
 
+import org.rahmanj.sandshrew.routes.ProxyEndpoint;
 import org.rahmanj.sandshrew.routes.ProxyRoute;
+import org.rahmanj.sandshrew.routes.RouteResolver;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 
 /**
  * Primary object representing the current route configuration
  *
+ * A {@link RouteConfig} is an immutable, compiled snapshot. Reloads build a whole new one and publish it through a
+ * single reference, so event loops never see a half updated configuration and never wait on a reload.
+ *
  * @author Jason P. Rahman
  */
 public class RouteConfig {
 
     /**
-     * Private constructor to prevent public instantiation
+     * Build a {@link RouteConfig}, compiling a {@link RouteResolver} for the routes of each listen address
+     *
+     * @param routes {@link List} of {@link Route}s, host and location pairs must be unique
+     * @param pools {@link List} of {@link Pool}s the routes refer to
      */
     public RouteConfig(List<Route> routes, List<Pool> pools) {
-        _routes = routes;
-        _pools = pools;
-
-        // TODO, create a route resolver
+        _routes = Collections.unmodifiableList(new ArrayList<Route>(routes));
+        _pools = Collections.unmodifiableList(new ArrayList<Pool>(pools));
+
+        Map<InetSocketAddress, List<ProxyRoute>> proxyRoutes = new HashMap<InetSocketAddress, List<ProxyRoute>>();
+        for (Route route : routes) {
+            List<ProxyRoute> listenerRoutes = proxyRoutes.get(route.getListenAddress());
+            if (listenerRoutes == null) {
+                listenerRoutes = new ArrayList<ProxyRoute>();
+                proxyRoutes.put(route.getListenAddress(), listenerRoutes);
+            }
+
+            ProxyEndpoint endpoint = new ProxyEndpoint(route.getHost(), route.getLocation());
+            listenerRoutes.add(new ProxyRoute(endpoint, route.getPool().getPolicy()));
+        }
+
+        _resolvers = new HashMap<InetSocketAddress, RouteResolver>();
+        for (Map.Entry<InetSocketAddress, List<ProxyRoute>> entry : proxyRoutes.entrySet()) {
+            _resolvers.put(entry.getKey(), new RouteResolver(entry.getValue()));
+        }
     }
 
-    public ProxyRoute lookupRoute(HttpRequest request) {
-
-        // Gather useful information for later use
-        String location = request.getUri();
-        HttpHeaders headers = request.headers();
+    /**
+     * Find the {@link ProxyRoute} for a request
+     *
+     * @param request {@link HttpRequest} to route
+     * @param localAddress {@link InetSocketAddress} the request's connection was accepted on
+     * @return Returns the {@link ProxyRoute} for the request's host with the longest matching location, null if none match
+     */
+    public ProxyRoute lookupRoute(HttpRequest request, InetSocketAddress localAddress) {
+        RouteResolver resolver = _resolvers.get(localAddress);
+        if (resolver == null) {
+            // Accepted on a specific address of a wildcard listener
+            resolver = _resolvers.get(new InetSocketAddress(localAddress.getPort()));
+            if (resolver == null) {
+                return null;
+            }
+        }
+        return resolver.resolve(request.headers().get(HttpHeaders.Names.HOST), request.getUri());
+    }
 
-        // TODO implement
-        return null;
+    /**
+     * Get every address routes are served on
+     *
+     * @return Returns the {@link Set} of listen addresses
+     */
+    public Set<InetSocketAddress> getListenAddresses() {
+        return Collections.unmodifiableSet(_resolvers.keySet());
     }
 
 
@@ -54,12 +99,17 @@ public class RouteConfig {
     }
 
     /**
-     *
+     * Every {@link Route} in the configuration
      */
-    private List<Route> _routes;
+    private final List<Route> _routes;
 
     /**
-     *
+     * Every {@link Pool} in the configuration
+     */
+    private final List<Pool> _pools;
+
+    /**
+     * Compiled lookup from request paths to routes, for each listen address
      */
-    private List<Pool> _pools;
+    private final Map<InetSocketAddress, RouteResolver> _resolvers;
 }
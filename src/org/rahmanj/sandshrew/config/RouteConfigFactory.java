@@ -5,7 +5,6 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.rahmanj.sandshrew.policy.PolicyFactory;
 import org.rahmanj.sandshrew.policy.ServerFactory;
 import org.rahmanj.sandshrew.policy.ServerInfo;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -33,6 +32,21 @@ public class RouteConfigFactory {
     }
 
     public RouteConfig buildRouteConfig(Path filePath) throws IOException {
+        return buildRouteConfig(filePath, null);
+    }
+
+    /**
+     * Build a {@link RouteConfig} from a file, reusing every {@link Pool} of the previous configuration whose
+     * definition hasn't changed. Unchanged pools keep their policies and all their state, and the servers of
+     * changed pools still come from the shared {@link ServerFactory}, so only the policies whose membership or
+     * settings actually changed are rebuilt.
+     *
+     * @param filePath {@link Path} of the configuration file
+     * @param previous {@link RouteConfig} currently in use, null if there is none
+     * @return Returns the new {@link RouteConfig}
+     * @throws IOException
+     */
+    public RouteConfig buildRouteConfig(Path filePath, RouteConfig previous) throws IOException {
 
         ObjectMapper mapper = new ObjectMapper();
         JsonNode configNode = mapper.readTree(Files.newInputStream(filePath));
@@ -42,7 +56,7 @@ public class RouteConfigFactory {
             throw new IllegalArgumentException("No pools defined");
         }
         JsonNode poolsNode = configNode.get("pools");
-        Map<String, Pool> pools = parsePools(poolsNode);
+        Map<String, Pool> pools = parsePools(poolsNode, previous);
 
         // Get the routes now that we have the pools
         if (!configNode.has("routes") || !configNode.get("routes").isArray()) {
@@ -51,36 +65,50 @@ public class RouteConfigFactory {
         JsonNode routesNode = configNode.get("routes");
         Map<String, Route> routes = parseRoutes(routesNode, pools);
 
-        // TODO, update
-        return new RouteConfig(new ArrayList(routes.values()), new ArrayList(pools.values()));
+        return new RouteConfig(new ArrayList<Route>(routes.values()), new ArrayList<Pool>(pools.values()));
     }
 
     /**
      * Parse the {@link Pool}s from the configuration file
      *
      * @param poolsNode {@link JsonNode} of an array containing {@link Pool}s
+     * @param previous {@link RouteConfig} currently in use, null if there is none
      * @return
      */
-    private Map<String, Pool> parsePools(JsonNode poolsNode) {
+    private Map<String, Pool> parsePools(JsonNode poolsNode, RouteConfig previous) {
 
         Map<String, Pool> pools = new HashMap<String, Pool>();
 
+        Map<String, Pool> previousPools = new HashMap<String, Pool>();
+        if (previous != null) {
+            for (Pool pool : previous.getPools()) {
+                previousPools.put(pool.getPoolName(), pool);
+            }
+        }
+
         Pool pool;
+        int reused = 0;
         for (JsonNode poolNode : poolsNode) {
             try {
-                pool = new Pool(poolNode, _policyFactories, _serverFactory);
+                pool = previousPools.get(poolNode.path("name").asText());
+                if (pool != null && pool.hasDefinition(poolNode)) {
+                    reused++;
+                } else {
+                    pool = new Pool(poolNode, _policyFactories, _serverFactory);
+                }
+
                 if (pools.containsKey(pool.getPoolName())) {
                     // TODO, just treat this as warning, think more about this
                     _logger.warning("Duplicate pool " + pool.getPoolName());
                 }
                 pools.put(pool.getPoolName(), pool);
             } catch (IllegalArgumentException e) {
-                // DO we warn, or crash??
-            } catch (Exception e) {
-                throw new NotImplementedException();
+                // Routes naming the pool are skipped in turn
+                _logger.warning("Skipping bad pool: " + e.getMessage());
             }
         }
 
+        _logger.fine("Reused " + reused + " unchanged pools of " + pools.size());
         return pools;
     }
 
@@ -98,11 +126,14 @@ public class RouteConfigFactory {
         for (JsonNode routeNode : routesNode) {
             try {
                 route = new Route(routeNode, pools);
-                // TODO, insert into the routes list
+                String key = route.getListenAddress() + " " + (route.getHost() == null ? "" : route.getHost()) + route.getLocation();
+                if (routes.containsKey(key)) {
+                    // Same as pools, the last definition wins
+                    _logger.warning("Duplicate route " + key);
+                }
+                routes.put(key, route);
             } catch (IllegalArgumentException e) {
-                throw new NotImplementedException();
-            } catch (Exception e) {
-                throw new NotImplementedException();
+                _logger.warning("Skipping bad route: " + e.getMessage());
             }
         }
 
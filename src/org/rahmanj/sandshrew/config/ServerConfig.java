@@ -1,9 +1,12 @@
 package org.rahmanj.sandshrew.config;
 
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
@@ -26,8 +29,9 @@ public class ServerConfig {
     static ServerConfig buildServerConfig(Path filePath) throws IOException {
 
         // TODO (JR) Make this better
-
-
+        try (InputStream in = Files.newInputStream(filePath)) {
+            return new Gson().fromJson(new InputStreamReader(in, StandardCharsets.UTF_8), ServerConfig.class);
+        }
     }
 
 
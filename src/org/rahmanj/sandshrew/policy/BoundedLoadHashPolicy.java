@@ -0,0 +1,265 @@
+package org.rahmanj.sandshrew.policy;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Consistent hashing with bounded loads, for backends with local caches
+ *
+ * Servers are placed on a hash ring at several virtual points each. A request goes to the owner of the first point
+ * at or after its key's hash, unless that server already has more than (1 + epsilon) times the average pending
+ * requests of the pool, in which case it walks on around the ring to the next server under the bound. Keys stay on
+ * their home server, keeping cache hit rates high, until that server gets hot. Configured from the policy node:
+ *
+ * <pre>
+ * policy: { type: "bounded_load_hash", key: "uri", epsilon: 0.25, virtual_nodes: 100 }
+ * </pre>
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class BoundedLoadHashPolicy implements RoutePolicy {
+
+    /**
+     * Construct a new {@link BoundedLoadHashPolicy}
+     *
+     * @param keySource {@link RequestKeySource} to pick the request key with
+     * @param epsilon How far above the average pending count a server may go before requests spill over, must be positive
+     * @param virtualNodes Number of points each server is given on the ring
+     */
+    public BoundedLoadHashPolicy(RequestKeySource keySource, double epsilon, int virtualNodes) {
+        if (keySource == null) {
+            throw new NullPointerException("Null key source");
+        }
+
+        if (!(epsilon > 0)) {
+            throw new IllegalArgumentException("Positive epsilon required");
+        }
+
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Positive virtual node count required");
+        }
+
+        _keySource = keySource;
+        _epsilon = epsilon;
+        _virtualNodes = virtualNodes;
+        _servers = new ServerInfo[0];
+        _ring = null;
+        _totalPending = 0;
+        _totalPendingTime = 0;
+    }
+
+    public ServerInfo next(RequestContext ctx) {
+        Ring ring = _ring;
+        if (ring == null) {
+            ring = buildRing();
+        }
+
+        long hash = Hashing.hash64(_keySource.extract(ctx), 0);
+        int start = ring.find(hash);
+
+        // Count this request as well, so an idle pool still admits it to the home server
+        long bound = (long) Math.ceil((1 + _epsilon) * (totalPending(ring) + 1) / ring.servers.length);
+
+        for (int i = 0; i < ring.owners.length; i++) {
+            ServerInfo server = ring.servers[ring.owners[(start + i) % ring.owners.length]];
+            if (server.stats().getPendingRequests() < bound) {
+                return server;
+            }
+        }
+
+        // Every server is at the bound, which can only happen transiently with racing updates
+        return ring.servers[ring.owners[start]];
+    }
+
+    /**
+     * Mark currently added server as failed and unavailable
+     *
+     * @param server {@link ServerInfo} about the server we have updated the status of
+     */
+    public void markAsFailed(ServerInfo server) {
+        throw new NotImplementedException();
+    }
+
+    /**
+     * Mark currently added server as alive and available
+     *
+     * @param server {@link ServerInfo} about the server we have updated the status of
+     */
+    public void markAsLive(ServerInfo server) {
+        throw new NotImplementedException();
+    }
+
+    /**
+     * Add a new server to the ring
+     *
+     * @param server Shared {@link ServerInfo} for the route entry
+     * @param node {@link JsonNode} from the route entry that the {@link ServerInfo} object is associated with
+     */
+    public void addDownstreamServer(ServerInfo server, JsonNode node) {
+        if (server == null) {
+            throw new NullPointerException("Null server");
+        }
+
+        synchronized (this) {
+            ServerInfo[] servers = Arrays.copyOf(_servers, _servers.length + 1);
+            servers[servers.length - 1] = server;
+            _servers = servers;
+
+            // Rebuilt on the next lookup
+            _ring = null;
+        }
+    }
+
+    /**
+     * Get the total pending requests across the pool. Summing every server on every request would make the policy
+     * O(servers), so the total is cached for a short interval. Racing refreshes are harmless, any of them is fresh enough.
+     *
+     * @param ring Current {@link Ring}
+     * @return Returns the recent total of pending requests
+     */
+    private long totalPending(Ring ring) {
+        long now = System.nanoTime();
+        if (now - _totalPendingTime < PENDING_REFRESH_NANOS) {
+            return _totalPending;
+        }
+
+        long total = 0;
+        for (ServerInfo server : ring.servers) {
+            total += server.stats().getPendingRequests();
+        }
+
+        _totalPending = total;
+        _totalPendingTime = now;
+        return total;
+    }
+
+    /**
+     * Build the hash ring for the current servers
+     *
+     * @return Returns the {@link Ring}
+     */
+    private synchronized Ring buildRing() {
+        if (_ring != null) {
+            return _ring;
+        }
+
+        ServerInfo[] servers = _servers;
+        if (servers.length == 0) {
+            throw new IllegalStateException("No servers added");
+        }
+
+        int count = servers.length * _virtualNodes;
+        long[] points = new long[count];
+        int[] owners = new int[count];
+
+        // Sort (hash, owner) pairs by hash, then split them into flat arrays for the lookups
+        long[][] pairs = new long[count][];
+        int p = 0;
+        for (int i = 0; i < servers.length; i++) {
+            String key = Hashing.serverKey(servers[i]);
+            for (int v = 0; v < _virtualNodes; v++) {
+                pairs[p++] = new long[] { Hashing.hash64(key, v), i };
+            }
+        }
+
+        Arrays.sort(pairs, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+            }
+        });
+
+        for (int i = 0; i < count; i++) {
+            points[i] = pairs[i][0];
+            owners[i] = (int) pairs[i][1];
+        }
+
+        _ring = new Ring(servers, points, owners);
+        return _ring;
+    }
+
+    public static class BoundedLoadHashPolicyFactory extends PolicyFactory {
+        public RoutePolicy instantiatePolicy(JsonNode policyNode) {
+            double epsilon = policyNode.path("epsilon").asDouble(DEFAULT_EPSILON);
+            int virtualNodes = policyNode.path("virtual_nodes").asInt(DEFAULT_VIRTUAL_NODES);
+            return new BoundedLoadHashPolicy(new RequestKeySource(policyNode), epsilon, virtualNodes);
+        }
+    }
+
+    /**
+     * Immutable hash ring
+     */
+    private static class Ring {
+
+        Ring(ServerInfo[] servers, long[] points, int[] owners) {
+            this.servers = servers;
+            this.points = points;
+            this.owners = owners;
+        }
+
+        /**
+         * Find the first point at or after a hash, wrapping around the ring
+         *
+         * @param hash Hash to look up
+         * @return Returns the index of the point
+         */
+        int find(long hash) {
+            int idx = Arrays.binarySearch(points, hash);
+            if (idx < 0) {
+                idx = -idx - 1;
+            }
+            return idx == points.length ? 0 : idx;
+        }
+
+        final ServerInfo[] servers;
+        final long[] points;
+        final int[] owners;
+    }
+
+    /**
+     * Picks the part of the request to hash
+     */
+    private final RequestKeySource _keySource;
+
+    /**
+     * Allowed load above the pool average
+     */
+    private final double _epsilon;
+
+    /**
+     * Points per server on the ring
+     */
+    private final int _virtualNodes;
+
+    /**
+     * Immutable snapshot of the servers on the ring
+     */
+    private volatile ServerInfo[] _servers;
+
+    /**
+     * Current ring, null when it needs rebuilding
+     */
+    private volatile Ring _ring;
+
+    /**
+     * Cached total of pending requests across the pool
+     */
+    private volatile long _totalPending;
+
+    /**
+     * {@link System#nanoTime()} at which {@link #_totalPending} was computed
+     */
+    private volatile long _totalPendingTime;
+
+    private static final double DEFAULT_EPSILON = 0.25;
+
+    private static final int DEFAULT_VIRTUAL_NODES = 100;
+
+    /**
+     * How long a computed pending total stays fresh
+     */
+    private static final long PENDING_REFRESH_NANOS = 1000 * 1000;
+}
@@ -3,23 +3,21 @@ package org.rahmanj.sandshrew.policy;
 import com.fasterxml.jackson.databind.JsonNode;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Arrays;
 
 /**
  * Policy based on even distribution of pending requests
  *
- * TODO, consider rewriting the next() method to only update the ordering after a certain interval
+ * Uses the power of two random choices, see {@link TwoRandomChoices}: of two distinct random servers, the one with
+ * fewer pending requests wins. The servers are held in an immutable snapshot so the policy can be shared by all
+ * event loops.
  *
  * @author Jason P. Rahman
  */
 public class EvenLoadPolicy implements RoutePolicy {
 
     public EvenLoadPolicy() {
-        _sortedServers = new TreeMap<Long, ServerInfo>();
-        _servers = new ArrayList<ServerInfo>();
+        _servers = new ServerInfo[0];
     }
 
     /**
@@ -33,17 +31,7 @@ public class EvenLoadPolicy implements RoutePolicy {
             throw new NullPointerException("Null request context");
         }
 
-        if (_servers.size() == 0) {
-            throw new IllegalStateException("No servers added");
-        }
-
-        // Sort all the servers according to the pending request count and fetch the first
-        _sortedServers.clear();
-        for (ServerInfo server : _servers) {
-            _sortedServers.put(server.stats().getPendingRequests(), server);
-        }
-        long firstKey = _sortedServers.firstKey();
-        return _sortedServers.get(firstKey);
+        return TwoRandomChoices.pick(_servers, COST);
     }
 
     /**
@@ -76,23 +64,32 @@ public class EvenLoadPolicy implements RoutePolicy {
             throw new NullPointerException("Null server");
         }
 
-        _servers.add(server);
+        synchronized (this) {
+            ServerInfo[] servers = Arrays.copyOf(_servers, _servers.length + 1);
+            servers[servers.length - 1] = server;
+            _servers = servers;
+        }
     }
 
     public static class EvenLoadPolicyFactory extends PolicyFactory {
         public RoutePolicy instantiatePolicy(JsonNode policyNode) {
-            throw new NotImplementedException();
+            return new EvenLoadPolicy();
         }
     }
 
     /**
-     * Sorted list of all servers in this route
+     * Immutable snapshot of all servers in this route, replaced on every addition
      */
-    private SortedMap<Long, ServerInfo> _sortedServers;
+    private volatile ServerInfo[] _servers;
 
     /**
-     *
+     * Requests in flight
      */
-    private List<ServerInfo> _servers;
+    private static final TwoRandomChoices.Cost COST = new TwoRandomChoices.Cost() {
+        @Override
+        public double of(ServerStats stats) {
+            return stats.getPendingRequests();
+        }
+    };
 
 }
@@ -0,0 +1,73 @@
+package org.rahmanj.sandshrew.policy;
+
+/**
+ * Hash functions shared by the hashing {@link RoutePolicy}s. Unlike {@link String#hashCode()} these mix every
+ * input bit into every output bit, and are stable across JVMs so all proxies agree on where a key lives.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+final class Hashing {
+
+    /**
+     * Hide private ctor
+     */
+    private Hashing() {
+    }
+
+    /**
+     * Hash a {@link CharSequence} to 64 bits, without allocating
+     *
+     * @param key {@link CharSequence} to hash
+     * @param seed Seed for the hash, different seeds give independent hash functions
+     * @return Returns the 64 bit hash
+     */
+    static long hash64(CharSequence key, long seed) {
+        // FNV-1a over the chars, finished with the MurmurHash3 mixer to spread the low entropy of short keys
+        long hash = FNV_OFFSET_BASIS ^ seed;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return mix64(hash);
+    }
+
+    /**
+     * MurmurHash3 64 bit finalizer
+     *
+     * @param hash Value to mix
+     * @return Returns the mixed value
+     */
+    static long mix64(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Map a hash onto [0, bound) without the bias of a negative modulus
+     *
+     * @param hash Hash to map
+     * @param bound Exclusive upper bound
+     * @return Returns an index in [0, bound)
+     */
+    static int index(long hash, int bound) {
+        return (int) ((hash >>> 1) % bound);
+    }
+
+    /**
+     * Stable name for a server, used as its hash key
+     *
+     * @param server {@link ServerInfo} to name
+     * @return Returns the host:port name of the server
+     */
+    static String serverKey(ServerInfo server) {
+        return server.getHostname() + ":" + server.getPort();
+    }
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+}
@@ -3,32 +3,54 @@ package org.rahmanj.sandshrew.policy;
 import com.fasterxml.jackson.databind.JsonNode;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
-import java.util.Vector;
+import java.util.Arrays;
 
 /**
+ * Consistent hashing policy, by default on the client IP
  *
+ * Uses a Maglev lookup table: every server fills slots of a prime sized table by walking its own permutation of the
+ * slots, so each server owns close to an equal share, and adding or removing a server only moves about 1/n of the
+ * keys. {@link #next(RequestContext)} is then a hash and a single array index. The table is rebuilt lazily after the
+ * membership changes. Which part of the request is hashed is chosen by a {@link RequestKeySource}.
  *
  * @author Jason P. Rahman
  */
 public class IpHashPolicy implements RoutePolicy {
 
     public IpHashPolicy() {
-        _servers = new Vector<ServerInfo>();
+        this(new RequestKeySource(null), DEFAULT_TABLE_SIZE);
     }
 
+    /**
+     * Construct a new {@link IpHashPolicy}
+     *
+     * @param keySource {@link RequestKeySource} to pick the request key with
+     * @param tableSize Size of the lookup table, must be prime and should be well above the server count
+     */
+    public IpHashPolicy(RequestKeySource keySource, int tableSize) {
+        if (keySource == null) {
+            throw new NullPointerException("Null key source");
+        }
 
-    public ServerInfo next(RequestContext ctx) {
-        if (_servers.size() == 0) {
-            throw new IllegalStateException("No servers added");
+        if (!isPrime(tableSize)) {
+            throw new IllegalArgumentException("Table size must be prime");
         }
 
+        _keySource = keySource;
+        _tableSize = tableSize;
+        _servers = new ServerInfo[0];
+        _table = null;
+    }
 
-        int idx = ctx.getUri().hashCode() % _servers.size();
-        return _servers.get(idx);
 
-        // TODO, what happens if addDownstreamServer() is called after we start hashing
-        // We could have inconsistencies where a client maps to a different downstream server
-        // following the addition of a new downstream server
+    public ServerInfo next(RequestContext ctx) {
+        ServerInfo[] table = _table;
+        if (table == null) {
+            table = buildTable();
+        }
+
+        long hash = Hashing.hash64(_keySource.extract(ctx), 0);
+        return table[Hashing.index(hash, table.length)];
     }
 
     /**
@@ -59,19 +81,122 @@ public class IpHashPolicy implements RoutePolicy {
             throw new NullPointerException("Null server");
         }
 
-        _servers.add(server);
+        synchronized (this) {
+            if (_servers.length + 1 > _tableSize) {
+                throw new IllegalStateException("More servers than lookup table slots");
+            }
+
+            ServerInfo[] servers = Arrays.copyOf(_servers, _servers.length + 1);
+            servers[servers.length - 1] = server;
+            _servers = servers;
+
+            // Rebuilt on the next lookup, so building a large pool doesn't rebuild the table once per server
+            _table = null;
+        }
+    }
+
+    /**
+     * Build the Maglev lookup table for the current servers
+     *
+     * @return Returns the lookup table
+     */
+    private synchronized ServerInfo[] buildTable() {
+        if (_table != null) {
+            return _table;
+        }
+
+        ServerInfo[] servers = _servers;
+        if (servers.length == 0) {
+            throw new IllegalStateException("No servers added");
+        }
+
+        int size = _tableSize;
+        long[] offsets = new long[servers.length];
+        long[] skips = new long[servers.length];
+        long[] nexts = new long[servers.length];
+
+        for (int i = 0; i < servers.length; i++) {
+            String key = Hashing.serverKey(servers[i]);
+            offsets[i] = Hashing.index(Hashing.hash64(key, OFFSET_SEED), size);
+            skips[i] = Hashing.index(Hashing.hash64(key, SKIP_SEED), size - 1) + 1;
+        }
+
+        // Servers take turns claiming the next free slot in their own permutation until the table is full
+        ServerInfo[] table = new ServerInfo[size];
+        int filled = 0;
+        while (true) {
+            for (int i = 0; i < servers.length; i++) {
+                int slot = (int) ((offsets[i] + nexts[i] * skips[i]) % size);
+                while (table[slot] != null) {
+                    nexts[i]++;
+                    slot = (int) ((offsets[i] + nexts[i] * skips[i]) % size);
+                }
+
+                table[slot] = servers[i];
+                nexts[i]++;
+
+                if (++filled == size) {
+                    _table = table;
+                    return table;
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if a number is prime, the Maglev permutations need a prime table size
+     *
+     * @param n Number to check
+     * @return Returns true if the number is prime
+     */
+    private static boolean isPrime(int n) {
+        if (n < 2) {
+            return false;
+        }
+
+        for (int i = 2; (long) i * i <= n; i++) {
+            if (n % i == 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
 
     public static class IpHashPolicyFactory extends PolicyFactory {
         public RoutePolicy instantiatePolicy(JsonNode policyNode) {
-            throw new NotImplementedException();
+            int tableSize = policyNode.path("table_size").asInt(DEFAULT_TABLE_SIZE);
+            return new IpHashPolicy(new RequestKeySource(policyNode), tableSize);
         }
     }
 
     /**
-     * Vector of {@link ServerInfo}s for the policy to use
+     * Picks the part of the request to hash
+     */
+    private final RequestKeySource _keySource;
+
+    /**
+     * Size of the lookup table
+     */
+    private final int _tableSize;
+
+    /**
+     * Immutable snapshot of the {@link ServerInfo}s for the policy to use
+     */
+    private volatile ServerInfo[] _servers;
+
+    /**
+     * Maglev lookup table from hash slot to server, null when it needs rebuilding
+     */
+    private volatile ServerInfo[] _table;
+
+    /**
+     * Default lookup table size, a prime comfortably above a few hundred servers
      */
-    private Vector<ServerInfo> _servers;
+    private static final int DEFAULT_TABLE_SIZE = 65537;
+
+    private static final long OFFSET_SEED = 0x9e3779b97f4a7c15L;
+
+    private static final long SKIP_SEED = 0xc2b2ae3d27d4eb4fL;
 
 }
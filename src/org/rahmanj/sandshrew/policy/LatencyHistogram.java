@@ -0,0 +1,268 @@
+package org.rahmanj.sandshrew.policy;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock free latency histogram with log-linear buckets, in the style of HdrHistogram
+ *
+ * Values are recorded in microseconds. Each power of two range is split into {@link #SUB_BUCKET_HALF} linear buckets,
+ * so every bucket is within about 3% of the values it holds at any magnitude, from 1us to over an hour. Every
+ * recording thread gets its own bucket counts, which only it writes to, so {@link #record(long)} is a thread local
+ * lookup and a plain store with no locks and no contended cache lines.
+ *
+ * A thread's counts are allocated a power of two range at a time, the first time it records a value in that range,
+ * since latencies cluster in a handful of ranges. A recording thread costs about 150 bytes plus 160 bytes per range
+ * it has used, 4.8KB at most. A server's {@link ServerStats} holds three histograms recorded on every event loop that
+ * proxies to it, typically spanning a dozen or so ranges between them, which comes to about 2.5KB per loop, or 30KB
+ * per server with 12 loops, and at most 175KB if its latencies cover every range.
+ *
+ * Readers take {@link #intervalSnapshot()}s, which sum the per thread counts without stopping writers. A value being
+ * recorded concurrently with a snapshot lands in either that interval or the next one, never both or neither.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class LatencyHistogram {
+
+    public LatencyHistogram() {
+        _recorders = new CopyOnWriteArrayList<AtomicReferenceArray<AtomicLongArray>>();
+        _recorder = new ThreadLocal<AtomicReferenceArray<AtomicLongArray>>();
+        _previous = new long[RANGE_COUNT][];
+    }
+
+    /**
+     * Record a latency
+     *
+     * @param nanos Latency in nanoseconds, negative values are ignored and very large values are clamped
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+
+        AtomicReferenceArray<AtomicLongArray> ranges = _recorder.get();
+        if (ranges == null) {
+            ranges = new AtomicReferenceArray<AtomicLongArray>(RANGE_COUNT);
+            _recorders.add(ranges);
+            _recorder.set(ranges);
+        }
+
+        int idx = bucketIndex(Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), MAX_VALUE));
+
+        // Only this thread allocates its ranges, the volatile store publishes a new one to readers
+        AtomicLongArray counts = ranges.get(idx / SUB_BUCKET_HALF);
+        if (counts == null) {
+            counts = new AtomicLongArray(SUB_BUCKET_HALF);
+            ranges.set(idx / SUB_BUCKET_HALF, counts);
+        }
+
+        // Only this thread writes these counts, so an ordered store is enough for readers to see them eventually
+        int offset = idx % SUB_BUCKET_HALF;
+        counts.lazySet(offset, counts.get(offset) + 1);
+    }
+
+    /**
+     * Take a snapshot of the values recorded since the previous call. Intended for a single periodic reader,
+     * concurrent readers would split the intervals between them.
+     *
+     * @return Returns the {@link Snapshot} of the latest interval
+     */
+    public synchronized Snapshot intervalSnapshot() {
+        long[] interval = new long[BUCKET_COUNT];
+        for (int range = 0; range < RANGE_COUNT; range++) {
+            long[] totals = null;
+            for (AtomicReferenceArray<AtomicLongArray> ranges : _recorders) {
+                AtomicLongArray counts = ranges.get(range);
+                if (counts == null) {
+                    continue;
+                }
+
+                if (totals == null) {
+                    totals = new long[SUB_BUCKET_HALF];
+                }
+                for (int i = 0; i < SUB_BUCKET_HALF; i++) {
+                    totals[i] += counts.get(i);
+                }
+            }
+
+            if (totals == null) {
+                continue;
+            }
+
+            long[] previous = _previous[range];
+            for (int i = 0; i < SUB_BUCKET_HALF; i++) {
+                interval[range * SUB_BUCKET_HALF + i] = totals[i] - (previous != null ? previous[i] : 0);
+            }
+            _previous[range] = totals;
+        }
+
+        return new Snapshot(interval);
+    }
+
+    /**
+     * Map a value to its bucket. Values below {@link #SUB_BUCKET_COUNT} get a bucket each, above that each power of
+     * two range gets {@link #SUB_BUCKET_HALF} buckets indexed by the top bits of the value.
+     *
+     * @param value Value in microseconds
+     * @return Returns the bucket index
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * Get the highest value held by a bucket
+     *
+     * @param idx Bucket index
+     * @return Returns the highest value in microseconds the bucket holds
+     */
+    static long highestValueInBucket(int idx) {
+        if (idx < SUB_BUCKET_COUNT) {
+            return idx;
+        }
+
+        int shift = idx / SUB_BUCKET_HALF - 1;
+        long top = idx - shift * SUB_BUCKET_HALF;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * Immutable counts for one interval of a {@link LatencyHistogram}
+     */
+    public static class Snapshot {
+
+        Snapshot(long[] counts) {
+            _counts = counts;
+
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            _totalCount = total;
+        }
+
+        /**
+         * Get the number of values recorded in the interval
+         *
+         * @return Returns the number of values
+         */
+        public long getTotalCount() {
+            return _totalCount;
+        }
+
+        /**
+         * Get the value at a given percentile, to the precision of the buckets
+         *
+         * @param percentile Percentile between 0 and 100, e.g. 99.9
+         * @return Returns the latency in microseconds at or below which the given percentage of values fall,
+         * 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100");
+            }
+
+            if (_totalCount == 0) {
+                return 0;
+            }
+
+            long target = Math.max(1, (long) Math.ceil(percentile / 100 * _totalCount));
+            long seen = 0;
+            for (int i = 0; i < _counts.length; i++) {
+                seen += _counts[i];
+                if (seen >= target) {
+                    return highestValueInBucket(i);
+                }
+            }
+            return getMaxValue();
+        }
+
+        /**
+         * Get the largest value recorded in the interval
+         *
+         * @return Returns the latency in microseconds, 0 if nothing was recorded
+         */
+        public long getMaxValue() {
+            for (int i = _counts.length - 1; i >= 0; i--) {
+                if (_counts[i] != 0) {
+                    return highestValueInBucket(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Get the mean of the values recorded in the interval
+         *
+         * @return Returns the mean latency in microseconds, 0 if nothing was recorded
+         */
+        public double getMean() {
+            if (_totalCount == 0) {
+                return 0;
+            }
+
+            double sum = 0;
+            for (int i = 0; i < _counts.length; i++) {
+                if (_counts[i] != 0) {
+                    long low = i < SUB_BUCKET_COUNT ? i : highestValueInBucket(i - 1) + 1;
+                    sum += _counts[i] * (low + highestValueInBucket(i)) / 2.0;
+                }
+            }
+            return sum / _totalCount;
+        }
+
+        /**
+         * Count of values per bucket
+         */
+        private final long[] _counts;
+
+        /**
+         * Total values in the interval
+         */
+        private final long _totalCount;
+    }
+
+    /**
+     * Bucket counts of every thread that has recorded into this histogram, by range
+     */
+    private final List<AtomicReferenceArray<AtomicLongArray>> _recorders;
+
+    /**
+     * Bucket counts for the calling thread, by range
+     */
+    private final ThreadLocal<AtomicReferenceArray<AtomicLongArray>> _recorder;
+
+    /**
+     * Totals as of the previous {@link #intervalSnapshot()}, by range, null for ranges nothing was recorded in
+     */
+    private final long[][] _previous;
+
+    /**
+     * Bits of precision within each power of two range
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    /**
+     * Largest trackable value in microseconds, a little over an hour
+     */
+    private static final long MAX_VALUE = (1L << 32) - 1;
+
+    private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+    /**
+     * Number of ranges of {@link #SUB_BUCKET_HALF} buckets, the values below {@link #SUB_BUCKET_COUNT} take two
+     */
+    private static final int RANGE_COUNT = BUCKET_COUNT / SUB_BUCKET_HALF;
+}
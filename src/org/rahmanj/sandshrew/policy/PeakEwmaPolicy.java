@@ -0,0 +1,106 @@
+package org.rahmanj.sandshrew.policy;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+
+import java.util.Arrays;
+
+/**
+ * Latency aware policy based on the peak EWMA of each server's response time
+ *
+ * Every server is given a cost of its peak EWMA latency multiplied by its pending requests plus one, and the cheaper
+ * of two distinct random servers wins. Since the EWMA jumps straight to any slower sample, a server stalled in a GC
+ * pause or running on a noisy host is avoided as soon as a single slow response comes back, well before its pending
+ * count would grow enough for {@link EvenLoadPolicy} to notice.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class PeakEwmaPolicy implements RoutePolicy {
+
+    public PeakEwmaPolicy() {
+        _servers = new ServerInfo[0];
+    }
+
+    /**
+     * Pick the cheaper of two random servers
+     *
+     * @param ctx {@link RequestContext} for the request being routed
+     * @return Returns the {@link ServerInfo} to send the request to
+     */
+    public ServerInfo next(RequestContext ctx) {
+        if (ctx == null) {
+            throw new NullPointerException("Null request context");
+        }
+
+        return TwoRandomChoices.pick(_servers, COST);
+    }
+
+    /**
+     * Mark currently added server as failed and unavailable
+     *
+     * @param server {@link ServerInfo} about the server we have updated the status of
+     */
+    public void markAsFailed(ServerInfo server) {
+        throw new NotImplementedException();
+    }
+
+    /**
+     * Mark currently added server as alive and available
+     *
+     * @param server {@link ServerInfo} about the server we have updated the status of
+     */
+    public void markAsLive(ServerInfo server) {
+        throw new NotImplementedException();
+    }
+
+    /**
+     * Add a new server to a given route policy
+     *
+     * @param server Shared {@link ServerInfo} for the route entry
+     * @param node {@link JsonNode} from the route entry that the {@link ServerInfo} object is associated with
+     */
+    public void addDownstreamServer(ServerInfo server, JsonNode node) {
+        if (server == null) {
+            throw new NullPointerException("Null server");
+        }
+
+        synchronized (this) {
+            ServerInfo[] servers = Arrays.copyOf(_servers, _servers.length + 1);
+            servers[servers.length - 1] = server;
+            _servers = servers;
+        }
+    }
+
+    public static class PeakEwmaPolicyFactory extends PolicyFactory {
+        public RoutePolicy instantiatePolicy(JsonNode policyNode) {
+            return new PeakEwmaPolicy();
+        }
+    }
+
+    /**
+     * Immutable snapshot of all servers in this route, replaced on every addition
+     */
+    private volatile ServerInfo[] _servers;
+
+    /**
+     * Cost of a server with requests in flight but no latency recorded yet, larger than any realistic latency cost
+     */
+    private static final double UNMEASURED_PENALTY = 1e15;
+
+    /**
+     * Peak EWMA latency times pending requests plus one
+     */
+    private static final TwoRandomChoices.Cost COST = new TwoRandomChoices.Cost() {
+        @Override
+        public double of(ServerStats stats) {
+            long pending = stats.getPendingRequests();
+            double latency = stats.getLatencyEwma();
+
+            // Without a latency sample yet, a busy server must not look free
+            if (latency == 0 && pending != 0) {
+                return UNMEASURED_PENALTY + pending;
+            }
+            return latency * (pending + 1);
+        }
+    };
+}
@@ -19,7 +19,7 @@ public abstract class PolicyFactory {
 
     protected abstract RoutePolicy instantiatePolicy(JsonNode policyNode);
 
-    public class ServerPair {
+    public static class ServerPair {
         public ServerPair(ServerInfo server, JsonNode serverNode) {
             _server = server;
             _serverNode = serverNode;
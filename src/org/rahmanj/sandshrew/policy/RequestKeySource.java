@@ -0,0 +1,79 @@
+package org.rahmanj.sandshrew.policy;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Chooses which part of a request a hashing {@link RoutePolicy} hashes on. Configured from the policy node:
+ *
+ * <pre>
+ * policy: { type: "ip_hash", key: "header", header: "X-Session-Id" }
+ * </pre>
+ *
+ * The key may be "ip" (the default), "uri" or "header". Requests missing the header fall back to the client IP.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class RequestKeySource {
+
+    /**
+     * Construct a new {@link RequestKeySource} from a policy node
+     *
+     * @param policyNode {@link JsonNode} for the policy
+     */
+    public RequestKeySource(JsonNode policyNode) {
+        String key = policyNode == null ? "ip" : policyNode.path("key").asText("ip");
+
+        if (key.equals("ip")) {
+            _type = Type.IP;
+            _header = null;
+        } else if (key.equals("uri")) {
+            _type = Type.URI;
+            _header = null;
+        } else if (key.equals("header")) {
+            if (!policyNode.has("header") || !policyNode.get("header").isTextual()) {
+                throw new IllegalArgumentException("Header key requires a header name");
+            }
+            _type = Type.HEADER;
+            _header = policyNode.get("header").asText();
+        } else {
+            throw new IllegalArgumentException("Unknown hash key " + key);
+        }
+    }
+
+    /**
+     * Extract the key to hash from a request
+     *
+     * @param ctx {@link RequestContext} for the request
+     * @return Returns the key to hash
+     */
+    public String extract(RequestContext ctx) {
+        switch (_type) {
+            case URI:
+                return ctx.getUri();
+            case HEADER:
+                String value = ctx.getHeaderField(_header);
+                return value != null ? value : ctx.getRemoteAddress();
+            default:
+                return ctx.getRemoteAddress();
+        }
+    }
+
+    /**
+     * Supported key sources
+     */
+    private enum Type {
+        IP,
+        URI,
+        HEADER
+    }
+
+    /**
+     * Which part of the request to hash
+     */
+    private final Type _type;
+
+    /**
+     * Header name to hash, for {@link Type#HEADER}
+     */
+    private final String _header;
+}
@@ -4,12 +4,16 @@ package org.rahmanj.sandshrew.policy;
 import com.fasterxml.jackson.databind.JsonNode;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Round Robin proxy policy
  *
+ * Safe to share across all event loops. {@link #next(RequestContext)} only reads an immutable snapshot of the
+ * servers and bumps a single atomic index, so it never mutates shared structures or takes a lock. Adding servers
+ * replaces the snapshot wholesale (copy-on-write), which only happens while the configuration is being built.
+ *
  * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
  */
 public class RoundRobinRoutePolicy implements RoutePolicy {
@@ -18,7 +22,8 @@ public class RoundRobinRoutePolicy implements RoutePolicy {
      *
      */
     public RoundRobinRoutePolicy() {
-        _servers = new ArrayDeque<ServerInfo>();
+        _servers = new ServerInfo[0];
+        _index = new AtomicInteger(0);
     }
 
     /**
@@ -26,13 +31,15 @@ public class RoundRobinRoutePolicy implements RoutePolicy {
      * @return
      */
     public ServerInfo next(RequestContext ctx) {
-        if (_servers.size() == 0) {
+        ServerInfo[] servers = _servers;
+
+        if (servers.length == 0) {
             throw new IllegalStateException("No servers added");
         }
 
-        ServerInfo server = _servers.remove();
-        _servers.add(server);
-        return server;
+        // Mask off the sign bit so the index stays valid once the counter wraps around
+        int idx = (_index.getAndIncrement() & Integer.MAX_VALUE) % servers.length;
+        return servers[idx];
     }
 
     /**
@@ -69,17 +76,26 @@ public class RoundRobinRoutePolicy implements RoutePolicy {
             throw new NullPointerException("Null node");
         }
 
-        _servers.add(server);
+        synchronized (this) {
+            ServerInfo[] servers = Arrays.copyOf(_servers, _servers.length + 1);
+            servers[servers.length - 1] = server;
+            _servers = servers;
+        }
     }
 
     public static class RoundRobinPolicyFactory extends PolicyFactory {
         public RoutePolicy instantiatePolicy(JsonNode policyNode) {
-            throw new NotImplementedException();
+            return new RoundRobinRoutePolicy();
         }
     }
 
     /**
-     * Store the servers for the Round Robin policy
+     * Immutable snapshot of the servers for the Round Robin policy, replaced on every addition
+     */
+    private volatile ServerInfo[] _servers;
+
+    /**
+     * Index of the next server to hand out, shared by all event loops
      */
-    private Queue<ServerInfo> _servers;
+    private final AtomicInteger _index;
 }
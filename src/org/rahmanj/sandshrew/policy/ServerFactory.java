@@ -1,15 +1,24 @@
 package org.rahmanj.sandshrew.policy;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Global factory to create a server based on a {@link JsonNode}.
  * Used to ensure we do not duplicate {@link ServerInfo} objects so that server stats are shared across pools and routes
  *
+ * Servers are keyed on their canonical host:port, so the same server named in several pools, or again in a reloaded
+ * configuration, always maps to the same {@link ServerInfo} and keeps its stats, throttle state and pooled connections.
+ *
  * @author Jason P. Rahman
  */
 public class ServerFactory {
@@ -19,55 +28,148 @@ public class ServerFactory {
     }
 
     /**
+     * Get the {@link ServerInfo} for a server entry, reusing the existing one if the server is already known
      *
-     * @param serverNode
-     * @return
+     * @param serverNode {@link JsonNode} of the server entry
+     * @return Returns the shared {@link ServerInfo}
      */
-    public ServerInfo createServer(JsonNode serverNode) {
+    public synchronized ServerInfo createServer(JsonNode serverNode) {
 
         if (serverNode == null) {
             throw new NullPointerException("Null server node");
         }
 
+        ServerInfo parsed = parseServer(serverNode);
+        String key = parsed.getHostname() + ":" + parsed.getPort();
 
-        // TODO, find server name
-
-        // TODO, try to look up
-
-        // TODO, insert if not present
+        ServerInfo server = _uniqueServers.get(key);
+        if (server == null) {
+            server = parsed;
+            _uniqueServers.put(key, server);
+        }
+        return server;
+    }
 
-        throw new NotImplementedException();
+    /**
+     * Forget every server not in the given set, once a new configuration no longer refers to them
+     *
+     * @param servers {@link Collection} of the {@link ServerInfo}s still in use
+     */
+    public synchronized void retainServers(Collection<ServerInfo> servers) {
+        Set<ServerInfo> live = new HashSet<ServerInfo>(servers);
+
+        Iterator<ServerInfo> it = _uniqueServers.values().iterator();
+        while (it.hasNext()) {
+            if (!live.contains(it.next())) {
+                it.remove();
+            }
+        }
     }
 
     /**
+     * Parse a server entry. The "server" field may be a bare host, a host:port pair or a URI, and an optional
+     * "port" field overrides any port given there
      *
-     * @param serverNode
-     * @return
+     * @param serverNode {@link JsonNode} of the server entry
+     * @return Returns a new {@link ServerInfo} for the canonical host and port
      */
     private ServerInfo parseServer(JsonNode serverNode) {
         if (!serverNode.has("server") || !serverNode.get("server").isTextual()) {
             throw new IllegalArgumentException("server field is empty or incorrect datatype");
         }
 
-        String hostname = serverNode.get("server").asText();
-        hostname = cannonicalizeHostname(hostname);
+        String value = serverNode.get("server").asText().trim();
+        String hostname;
+        int port = DEFAULT_PORT;
+
+        if (value.contains("://")) {
+            URI uri;
+            try {
+                uri = new URI(value);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("Bad server " + value, e);
+            }
+
+            hostname = uri.getHost();
+            if (uri.getPort() >= 0) {
+                port = uri.getPort();
+            } else if ("https".equalsIgnoreCase(uri.getScheme())) {
+                port = DEFAULT_TLS_PORT;
+            }
+        } else if (value.startsWith("[")) {
+            // IPv6 literal, optionally followed by a port
+            int close = value.indexOf(']');
+            if (close < 0) {
+                throw new IllegalArgumentException("Bad server " + value);
+            }
+
+            hostname = value.substring(0, close + 1);
+            if (close + 1 < value.length()) {
+                if (value.charAt(close + 1) != ':') {
+                    throw new IllegalArgumentException("Bad server " + value);
+                }
+                port = parsePort(value.substring(close + 2));
+            }
+        } else {
+            int colon = value.lastIndexOf(':');
+            if (colon >= 0) {
+                hostname = value.substring(0, colon);
+                port = parsePort(value.substring(colon + 1));
+            } else {
+                hostname = value;
+            }
+        }
+
+        if (serverNode.has("port")) {
+            port = serverNode.get("port").asInt(-1);
+        }
+
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("Bad port for server " + value);
+        }
 
-        // TODO, complete this
-        throw new NotImplementedException();
+        return new ServerInfo(cannonicalizeHostname(hostname, value), port);
     }
 
+    /**
+     * Parse a port number
+     *
+     * @param port {@link String} holding the port
+     * @return Returns the port
+     */
+    private int parsePort(String port) {
+        try {
+            return Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad port " + port, e);
+        }
+    }
 
     /**
+     * Canonicalize a hostname, so the different spellings of a name map to the same server
      *
-     * @param hostname
-     * @return
+     * @param hostname Hostname to canonicalize
+     * @param value Full server entry, for error messages
+     * @return Returns the lower case hostname without any trailing dot
      */
-    private String cannonicalizeHostname(String hostname) {
-        throw new NotImplementedException();
+    private String cannonicalizeHostname(String hostname, String value) {
+        if (hostname == null || hostname.isEmpty()) {
+            throw new IllegalArgumentException("No hostname for server " + value);
+        }
+
+        hostname = hostname.toLowerCase(Locale.ROOT);
+        if (hostname.endsWith(".")) {
+            hostname = hostname.substring(0, hostname.length() - 1);
+        }
+        return hostname;
     }
 
     /**
      * Store a unique set of {@link ServerInfo} objects
      */
     private Map<String, ServerInfo> _uniqueServers;
+
+    private static final int DEFAULT_PORT = 80;
+
+    private static final int DEFAULT_TLS_PORT = 443;
 }
@@ -6,10 +6,7 @@ import org.rahmanj.sandshrew.routes.Service;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.logging.Logger;
 
 
 /**
@@ -27,12 +24,21 @@ import java.util.logging.Logger;
 public class ServerInfo extends Service implements ServerInfoInterface {
 
     public ServerInfo(JsonNode serverNode) throws URISyntaxException {
-        super((new URI(serverNode.get("server").asText())).getHost(), (new URI(serverNode.get("server").asText())).getPort());
+        this((new URI(serverNode.get("server").asText())).getHost(), (new URI(serverNode.get("server").asText())).getPort());
+    }
+
+    /**
+     * Construct a {@link ServerInfo} for a canonical host and port, normally through a {@link ServerFactory}
+     *
+     * @param hostname Canonical hostname of the server
+     * @param port Port of the server
+     */
+    public ServerInfo(String hostname, int port) {
+        super(hostname, port);
         _stats = new ServerStats();
         _isDown = false;
 
         _throttleRequests = new AtomicLong(0);
-        _throttleListeners = new HashSet<ThrottleListener>();
     }
 
 
@@ -57,58 +63,14 @@ public class ServerInfo extends Service implements ServerInfoInterface {
      * Increment the throttle count for this downstream
      */
     public int incrementThrottle() {
-        int count = (int)_throttleRequests.getAndIncrement();
-        if (count == 0) {
-            // We must run the notifiers since the throttle count raised above 0
-            synchronized (_throttleListeners) {
-                for (ThrottleListener listener : _throttleListeners) {
-                    try {
-                        listener.onThrottle();
-                    } catch (Exception e) {
-                        _logger.fine("Exception: " + e.toString());
-                    }
-                }
-            }
-        }
-        return count + 1;
+        return (int)_throttleRequests.incrementAndGet();
     }
 
     /**
-     * Decrement the throttle count for this downstream. Listeners may be notified
+     * Decrement the throttle count for this downstream
      */
     public int decrementThrottle() {
-        int count = (int)_throttleRequests.decrementAndGet();
-        if (count == 0) {
-            // Count hit 0, run notifiers
-            synchronized (_throttleListeners) {
-                for (ThrottleListener listener : _throttleListeners) {
-                    try {
-                        listener.onStopThrottle();
-                    } catch (Exception e) {
-                        _logger.fine("Exception: " + e.toString());
-                    }
-                }
-            }
-        }
-        return count;
-    }
-
-    /**
-     * Registers a throttle listener to receive notifications. Note that the callback will be
-     * invoked on an arbitrary event loop.
-     *
-     * @param listener {@link ThrottleListener} to register to receive notifications
-     */
-    public void registerThrottleListener(ThrottleListener listener) {
-        synchronized (_throttleListeners) {
-            _throttleListeners.add(listener);
-        }
-    }
-
-    public void deregisterThrottleListener(ThrottleListener listener) {
-        synchronized (_throttleListeners) {
-            _throttleListeners.remove(listener);
-        }
+        return (int)_throttleRequests.decrementAndGet();
     }
 
     /**
@@ -126,11 +88,6 @@ public class ServerInfo extends Service implements ServerInfoInterface {
      */
     private AtomicLong _throttleRequests;
 
-    /**
-     * Set of entities waiting to be notified of a throttle state change event
-     */
-    private Set<ThrottleListener> _throttleListeners;
-
     /**
      * TODO (JR) Setters for this
      */
@@ -140,8 +97,4 @@ public class ServerInfo extends Service implements ServerInfoInterface {
      * Object holding stats for the given downstream server
      */
     private ServerStats _stats;
-
-    private static final Logger _logger = Logger.getLogger(
-            ServerInfo.class.getName()
-    );
-}
\ No newline at end of file
+}
@@ -46,20 +46,4 @@ public interface ServerInfoInterface {
     public int incrementThrottle();
 
 
-    /**
-     * Registers a throttle listener to receive notifications. Note that the callback will be
-     * invoked on an arbitrary event loop.
-     *
-     * @param listener {@link ThrottleListener} to register to receive notifications
-     */
-    public void registerThrottleListener(ThrottleListener listener);
-
-    /**
-     * Remove a throttle listener
-     *
-     * @param listener
-     */
-    public void deregisterThrottleListener(ThrottleListener listener);
-
-
 }
@@ -4,22 +4,30 @@ package org.rahmanj.sandshrew.policy;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Records the statistics for a given downstream serve. Designed to be fully thread safe so a single instance
- * can be shared across all threads without and defensive copies being made. Locking is minimal, atomics used instead
+ * can be shared across all threads without and defensive copies being made. Locking is minimal, atomics used instead.
+ * Counters updated on every request are {@link LongAdder}s, which stay a single field until event loops on different
+ * cores contend on them and only then grow striped cells.
  *
  * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
  */
 public class ServerStats {
 
     public ServerStats() {
-        _pendingRequests = new AtomicLong(0);
-        _completedRequests = new AtomicLong(0);
-        _bytesSent = new AtomicLong(0);
-        _bytesReceived = new AtomicLong(0);
+        _pendingRequests = new LongAdder();
+        _completedRequests = new LongAdder();
+        _bytesSent = new LongAdder();
+        _bytesReceived = new LongAdder();
+        _latencyEwma = new AtomicLong(Double.doubleToRawLongBits(0));
+        _latencyTimestamp = System.nanoTime();
+        _connectTimes = new LatencyHistogram();
+        _firstByteTimes = new LatencyHistogram();
+        _responseTimes = new LatencyHistogram();
     }
 
     /**
@@ -30,7 +38,18 @@ public class ServerStats {
         if (count <= 0) {
             return;
         }
-        _bytesSent.addAndGet(count);
+        _bytesSent.add(count);
+    }
+
+    /**
+     * Record bytes received from the server
+     * @param count Number of bytes received from the downstream server
+     */
+    public void bytesReceived(long count) {
+        if (count <= 0) {
+            return;
+        }
+        _bytesReceived.add(count);
     }
 
 
@@ -38,7 +57,7 @@ public class ServerStats {
      * Record the beginning of a new request to the downstream server
      */
     public void requestStarted() {
-        _pendingRequests.incrementAndGet();
+        _pendingRequests.increment();
     }
 
     /**
@@ -46,21 +65,138 @@ public class ServerStats {
      * @param successful True if the request successfully completed, false otherwise
      */
     public void requestCompleted(boolean successful) {
+        // Failed requests are no longer pending either, otherwise load aware policies would avoid the server forever
+        _pendingRequests.decrement();
+
         if (successful) {
             // Yes, technically there is a slight race condition here
             // but I really don't care because it really doesn't matter
             // These stats don't have to be 100% accurate, being off by 1 is OK
-            _pendingRequests.decrementAndGet();
-            _completedRequests.incrementAndGet();
+            _completedRequests.increment();
         }
     }
 
     /**
+     * Record the round trip latency of a completed request in the peak EWMA. A sample above the current average
+     * replaces it outright, so a slow server is penalised immediately, while faster samples only pull the average
+     * down gradually with a weight that grows with the time since the previous sample.
      *
-     * @return
+     * Concurrent samples for the same server can race and one of them may be lost, which is fine for a moving average
+     *
+     * @param latencyNanos Time from sending the request to receiving the full response, in nanoseconds
+     */
+    public void recordLatency(long latencyNanos) {
+        if (latencyNanos < 0) {
+            return;
+        }
+
+        _responseTimes.record(latencyNanos);
+
+        long now = System.nanoTime();
+
+        // Compare against the estimate the policies currently see, so a server that sat idle long enough for its
+        // old peak to decay is judged by what it is doing now
+        double current = decayedLatency(now);
+        double sample = latencyNanos;
+        double next;
+
+        if (sample > current) {
+            next = sample;
+        } else {
+            // The decayed estimate already carries the old average's weight, the sample makes up the rest
+            next = current + sample * (1 - decayWeight(now));
+        }
+
+        _latencyEwma.set(Double.doubleToRawLongBits(next));
+        _latencyTimestamp = now;
+    }
+
+    /**
+     * Record the time taken to establish a new connection to the server
+     *
+     * @param nanos Connect time in nanoseconds
+     */
+    public void recordConnectTime(long nanos) {
+        _connectTimes.record(nanos);
+    }
+
+    /**
+     * Record the time from sending a request to receiving the first part of its response
+     *
+     * @param nanos Time to first byte in nanoseconds
+     */
+    public void recordFirstByteTime(long nanos) {
+        _firstByteTimes.record(nanos);
+    }
+
+    /**
+     * Get the histogram of connect times
+     *
+     * @return Returns the {@link LatencyHistogram} of connect times
+     */
+    public LatencyHistogram getConnectTimes() {
+        return _connectTimes;
+    }
+
+    /**
+     * Get the histogram of times to first response byte
+     *
+     * @return Returns the {@link LatencyHistogram} of times to first byte
+     */
+    public LatencyHistogram getFirstByteTimes() {
+        return _firstByteTimes;
+    }
+
+    /**
+     * Get the histogram of total response times
+     *
+     * @return Returns the {@link LatencyHistogram} of response times
+     */
+    public LatencyHistogram getResponseTimes() {
+        return _responseTimes;
+    }
+
+    /**
+     * Get the peak EWMA of request latency, decayed for the time since the last sample so a server that has not
+     * been used for a while gets probed again
+     *
+     * @return Returns the latency estimate in nanoseconds, 0 if nothing has been recorded
+     */
+    public double getLatencyEwma() {
+        return decayedLatency(System.nanoTime());
+    }
+
+    /**
+     * Decay the stored EWMA towards zero for the time elapsed since the last sample
+     *
+     * @param now Current {@link System#nanoTime()}
+     * @return Returns the decayed EWMA
+     */
+    private double decayedLatency(long now) {
+        return Double.longBitsToDouble(_latencyEwma.get()) * decayWeight(now);
+    }
+
+    /**
+     * Get the weight left to the stored EWMA after the time elapsed since the last sample
+     *
+     * @param now Current {@link System#nanoTime()}
+     * @return Returns the weight, between 0 and 1
+     */
+    private double decayWeight(long now) {
+        long elapsed = now - _latencyTimestamp;
+        if (elapsed <= 0) {
+            return 1;
+        }
+        return Math.exp(-(double) elapsed / LATENCY_DECAY_NANOS);
+    }
+
+    /**
+     * Get the number of requests in flight, cheap enough to call for every routing decision
+     *
+     * @return Returns the number of requests in flight
      */
     public long getPendingRequests() {
-        return _pendingRequests.get();
+        return _pendingRequests.sum();
     }
 
     /**
@@ -68,7 +204,7 @@ public class ServerStats {
      * @return
      */
     public long getCompletedRequests() {
-        return _completedRequests.get();
+        return _completedRequests.sum();
     }
 
     /**
@@ -76,7 +212,7 @@ public class ServerStats {
      * @return
      */
     public long getBytesSent() {
-        return _bytesSent.get();
+        return _bytesSent.sum();
     }
 
     /**
@@ -84,40 +220,58 @@ public class ServerStats {
      * @return
      */
     public long getBytesReceived() {
-        return _bytesReceived.get();
+        return _bytesReceived.sum();
     }
 
 
     /**
      * Total requests currently in flight
      */
-    private AtomicLong _pendingRequests;
+    private final LongAdder _pendingRequests;
 
     /**
      * Total requests fully served
      */
-    private AtomicLong _completedRequests;
+    private final LongAdder _completedRequests;
 
     /**
      * Total number of bytes sent to this server
      */
-    private AtomicLong _bytesSent;
+    private final LongAdder _bytesSent;
 
     /**
      * Total number of bytes received from this server
      */
-    private AtomicLong _bytesReceived;
+    private final LongAdder _bytesReceived;
+
+
+    /**
+     * Peak EWMA of request latency in nanoseconds, stored as raw double bits
+     */
+    private AtomicLong _latencyEwma;
 
+    /**
+     * {@link System#nanoTime()} of the last latency sample
+     */
+    private volatile long _latencyTimestamp;
 
-    // TODO (JR) Handle the latency information
+    /**
+     * Time to establish new connections
+     */
+    private final LatencyHistogram _connectTimes;
+
+    /**
+     * Time from sending a request to the first byte of its response
+     */
+    private final LatencyHistogram _firstByteTimes;
 
     /**
-     * Record the window of requests over which to record latency stats
+     * Time from sending a request to the end of its response
      */
-    private static final int REQUEST_LATENCY_WINDOW = 1000;
+    private final LatencyHistogram _responseTimes;
 
     /**
-     * Stores
+     * Time constant over which old latency samples lose their weight
      */
-    private double[] _latencyStats;
+    private static final long LATENCY_DECAY_NANOS = 10L * 1000 * 1000 * 1000;
 }
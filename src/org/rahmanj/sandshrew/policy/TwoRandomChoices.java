@@ -0,0 +1,64 @@
+package org.rahmanj.sandshrew.policy;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Power of two random choices, shared by the load aware {@link RoutePolicy}s. Two distinct servers are sampled at
+ * random and the one with the lower cost wins. This is O(1) and allocation free per request, no matter how large
+ * the pool is, and avoids the herd behaviour of always picking the global minimum from slightly stale stats.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+final class TwoRandomChoices {
+
+    /**
+     * Hide private ctor
+     */
+    private TwoRandomChoices() {
+    }
+
+    /**
+     * Pick the cheaper of two distinct random servers
+     *
+     * @param servers Servers to pick from
+     * @param cost {@link Cost} to compare the two servers by
+     * @return Returns the {@link ServerInfo} with the lower cost, the first one sampled on a tie
+     */
+    static ServerInfo pick(ServerInfo[] servers, Cost cost) {
+        int count = servers.length;
+
+        if (count == 0) {
+            throw new IllegalStateException("No servers added");
+        }
+
+        if (count == 1) {
+            return servers[0];
+        }
+
+        // Sample two distinct servers
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(count);
+        int second = random.nextInt(count - 1);
+        if (second >= first) {
+            second++;
+        }
+
+        ServerInfo a = servers[first];
+        ServerInfo b = servers[second];
+        return cost.of(a.stats()) <= cost.of(b.stats()) ? a : b;
+    }
+
+    /**
+     * Cost of sending one more request to a server
+     */
+    interface Cost {
+
+        /**
+         * Compute the cost of a server
+         *
+         * @param stats {@link ServerStats} of the server
+         * @return Returns the cost, lower is better
+         */
+        double of(ServerStats stats);
+    }
+}
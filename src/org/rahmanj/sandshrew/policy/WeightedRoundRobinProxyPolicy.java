@@ -4,22 +4,78 @@ package org.rahmanj.sandshrew.policy;
 import com.fasterxml.jackson.databind.JsonNode;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
+import java.util.Arrays;
+
 /**
  * Weighted round robin policy
  *
+ * Uses the smooth weighted round robin algorithm, so a server with weight 5 in a pool with a weight 1 server gets
+ * every other request rather than five in a row, in O(servers) memory regardless of the weights. Each event loop
+ * keeps its own current weights, so {@link #next(RequestContext)} never contends with other threads. The servers
+ * and weights live in an immutable snapshot that is replaced whenever a weight changes.
+ *
  * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
  */
-public class WeightedRoundRobinProxyPolicy extends RoundRobinRoutePolicy {
+public class WeightedRoundRobinProxyPolicy implements RoutePolicy {
 
     public WeightedRoundRobinProxyPolicy() {
+        _snapshot = new Snapshot(new ServerInfo[0], new int[0]);
+        _state = new ThreadLocal<SelectionState>();
     }
 
     /**
+     * Pick the server with the largest current weight, after raising every current weight by its server's weight
      *
      * @return
      */
     public ServerInfo next(RequestContext ctx) {
-        return super.next(ctx);
+        Snapshot snapshot = _snapshot;
+
+        if (snapshot.totalWeight == 0) {
+            throw new IllegalStateException("No servers added");
+        }
+
+        SelectionState state = _state.get();
+        if (state == null || state.snapshot != snapshot) {
+            state = new SelectionState(snapshot, state);
+            _state.set(state);
+        }
+
+        int[] weights = snapshot.weights;
+        int[] current = state.currentWeights;
+        int best = -1;
+
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] == 0) {
+                continue;
+            }
+
+            current[i] += weights[i];
+            if (best < 0 || current[i] > current[best]) {
+                best = i;
+            }
+        }
+
+        current[best] -= snapshot.totalWeight;
+        return snapshot.servers[best];
+    }
+
+    /**
+     * Mark currently added server as failed and unavailable
+     *
+     * @param server {@link ServerInfo} about the server we have updated the status of
+     */
+    public void markAsFailed(ServerInfo server) {
+        throw new NotImplementedException();
+    }
+
+    /**
+     * Mark currently added server as alive and available
+     *
+     * @param server {@link ServerInfo} about the server we have updated the status of
+     */
+    public void markAsLive(ServerInfo server) {
+        throw new NotImplementedException();
     }
 
     /**
@@ -36,17 +92,141 @@ public class WeightedRoundRobinProxyPolicy extends RoundRobinRoutePolicy {
             throw new NullPointerException("Null server");
         }
 
-        // TODO, fix this syntax
-        int weight = node.get("weight").asInt(1);
+        int weight = node.path("weight").asInt(1);
+        if (weight < 0) {
+            throw new IllegalArgumentException("Non-negative weight required");
+        }
+
+        synchronized (this) {
+            Snapshot snapshot = _snapshot;
+
+            ServerInfo[] servers = Arrays.copyOf(snapshot.servers, snapshot.servers.length + 1);
+            int[] weights = Arrays.copyOf(snapshot.weights, snapshot.weights.length + 1);
+            servers[servers.length - 1] = server;
+            weights[weights.length - 1] = weight;
+
+            _snapshot = new Snapshot(servers, weights);
+        }
+    }
+
+    /**
+     * Change the weight of a server already in the policy, without rebuilding the pool
+     *
+     * @param server {@link ServerInfo} to update
+     * @param weight New non-negative weight for the server, 0 stops traffic to it
+     */
+    public void setWeight(ServerInfo server, int weight) {
+        if (server == null) {
+            throw new NullPointerException("Null server");
+        }
+
+        if (weight < 0) {
+            throw new IllegalArgumentException("Non-negative weight required");
+        }
+
+        synchronized (this) {
+            Snapshot snapshot = _snapshot;
 
-        while (weight-- > 0) {
-            super.addDownstreamServer(server, node);
+            int idx = indexOf(snapshot.servers, server);
+            if (idx < 0) {
+                throw new IllegalArgumentException("Server not in policy");
+            }
+
+            int[] weights = Arrays.copyOf(snapshot.weights, snapshot.weights.length);
+            weights[idx] = weight;
+
+            _snapshot = new Snapshot(snapshot.servers, weights);
+        }
+    }
+
+    /**
+     * Get the current weight of a server in the policy
+     *
+     * @param server {@link ServerInfo} to look up
+     * @return Returns the weight of the server
+     */
+    public int getWeight(ServerInfo server) {
+        Snapshot snapshot = _snapshot;
+
+        int idx = indexOf(snapshot.servers, server);
+        if (idx < 0) {
+            throw new IllegalArgumentException("Server not in policy");
         }
+        return snapshot.weights[idx];
+    }
+
+    /**
+     * Find a server in an array by identity
+     *
+     * @param servers Array to search
+     * @param server {@link ServerInfo} to find
+     * @return Returns the index of the server, -1 if not found
+     */
+    private static int indexOf(ServerInfo[] servers, ServerInfo server) {
+        for (int i = 0; i < servers.length; i++) {
+            if (servers[i] == server) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     public static class WeightedRoundRobinPolicyFactory extends PolicyFactory {
         public RoutePolicy instantiatePolicy(JsonNode policyNode) {
-            throw new NotImplementedException();
+            return new WeightedRoundRobinProxyPolicy();
         }
     }
+
+    /**
+     * Immutable set of servers and their weights
+     */
+    private static class Snapshot {
+
+        Snapshot(ServerInfo[] servers, int[] weights) {
+            this.servers = servers;
+            this.weights = weights;
+
+            int total = 0;
+            for (int weight : weights) {
+                total += weight;
+            }
+            this.totalWeight = total;
+        }
+
+        final ServerInfo[] servers;
+        final int[] weights;
+        final int totalWeight;
+    }
+
+    /**
+     * Per thread current weights for a given {@link Snapshot}
+     */
+    private static class SelectionState {
+
+        /**
+         * Build the state for a new {@link Snapshot}, carrying the current weights over when only weights changed
+         * so the rotation stays smooth across updates
+         */
+        SelectionState(Snapshot snapshot, SelectionState previous) {
+            this.snapshot = snapshot;
+            this.currentWeights = new int[snapshot.servers.length];
+
+            if (previous != null && previous.snapshot.servers == snapshot.servers) {
+                System.arraycopy(previous.currentWeights, 0, this.currentWeights, 0, this.currentWeights.length);
+            }
+        }
+
+        final Snapshot snapshot;
+        final int[] currentWeights;
+    }
+
+    /**
+     * Current servers and weights, replaced whenever either changes
+     */
+    private volatile Snapshot _snapshot;
+
+    /**
+     * Current weights for the calling event loop
+     */
+    private final ThreadLocal<SelectionState> _state;
 }
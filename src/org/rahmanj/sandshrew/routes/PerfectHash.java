@@ -0,0 +1,258 @@
+package org.rahmanj.sandshrew.routes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Minimal perfect hash over a fixed set of case-insensitive ASCII keys, built with the CHD (compress, hash and
+ * displace) algorithm
+ *
+ * Keys are split into buckets by one hash, and each bucket is given the smallest displacement that moves all its keys
+ * into free slots, largest buckets first. A lookup is then one pass over the key's characters, two multiplies and a
+ * single comparison against the key in the slot, with no probing and no allocation. Keys can be looked up from a
+ * region of a larger {@link CharSequence}, so a host can be matched straight out of a header value.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+final class PerfectHash {
+
+    /**
+     * Build a {@link PerfectHash}
+     *
+     * @param keys Distinct keys, compared ignoring ASCII case
+     */
+    PerfectHash(String[] keys) {
+        String[] lowered = new String[keys.length];
+        Set<String> seen = new HashSet<String>();
+        for (int i = 0; i < keys.length; i++) {
+            lowered[i] = toLowerAscii(keys[i]);
+            if (!seen.add(lowered[i])) {
+                throw new IllegalArgumentException("Duplicate key " + keys[i]);
+            }
+        }
+
+        // A bad seed can leave a bucket no displacement fits, so try a few before giving up
+        for (int attempt = 0; attempt < MAX_SEED_ATTEMPTS; attempt++) {
+            long seed = mix64(attempt + 1);
+            if (build(lowered, seed)) {
+                return;
+            }
+        }
+
+        throw new IllegalStateException("Unable to build perfect hash for " + keys.length + " keys");
+    }
+
+    /**
+     * Find the index of a key
+     *
+     * @param s {@link CharSequence} holding the key
+     * @param start Index of the first character of the key
+     * @param end Index after the last character of the key
+     * @return Returns the index the key was given in the array passed at construction, -1 if it isn't present
+     */
+    int lookup(CharSequence s, int start, int end) {
+        if (_slots.length == 0) {
+            return -1;
+        }
+
+        long hash = hash(s, start, end, _seed);
+        int displacement = _displacements[bucket(hash, _displacements.length)];
+        int slot = slot(hash, displacement, _slots.length);
+
+        String key = _slots[slot];
+        if (key.length() != end - start) {
+            return -1;
+        }
+
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != toLowerAscii(s.charAt(start + i))) {
+                return -1;
+            }
+        }
+        return _indices[slot];
+    }
+
+    /**
+     * Get the number of keys
+     *
+     * @return Returns the number of keys
+     */
+    int size() {
+        return _slots.length;
+    }
+
+    /**
+     * Try to build the tables with a given seed
+     *
+     * @param keys Lower cased keys
+     * @param seed Seed for the key hashes
+     * @return Returns true if every bucket found a displacement
+     */
+    private boolean build(String[] keys, long seed) {
+        int n = keys.length;
+        int bucketCount = Math.max(1, (n + KEYS_PER_BUCKET - 1) / KEYS_PER_BUCKET);
+
+        long[] hashes = new long[n];
+        final List<List<Integer>> buckets = new ArrayList<List<Integer>>(bucketCount);
+        for (int b = 0; b < bucketCount; b++) {
+            buckets.add(new ArrayList<Integer>());
+        }
+
+        for (int i = 0; i < n; i++) {
+            hashes[i] = hash(keys[i], 0, keys[i].length(), seed);
+            buckets.get(bucket(hashes[i], bucketCount)).add(i);
+        }
+
+        // Place the largest buckets first, while there are still plenty of free slots
+        Integer[] order = new Integer[bucketCount];
+        for (int b = 0; b < bucketCount; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return buckets.get(b).size() - buckets.get(a).size();
+            }
+        });
+
+        int[] displacements = new int[bucketCount];
+        boolean[] taken = new boolean[n];
+        String[] slots = new String[n];
+        int[] indices = new int[n];
+        int[] placed = new int[KEYS_PER_BUCKET * 4];
+
+        for (int b : order) {
+            List<Integer> bucket = buckets.get(b);
+            if (bucket.isEmpty()) {
+                break;
+            }
+
+            if (bucket.size() > placed.length) {
+                return false;
+            }
+
+            boolean found = false;
+            for (int d = 0; d < MAX_DISPLACEMENT && !found; d++) {
+                found = true;
+                int count = 0;
+                for (int key : bucket) {
+                    int slot = slot(hashes[key], d, n);
+                    if (taken[slot]) {
+                        found = false;
+                        break;
+                    }
+                    taken[slot] = true;
+                    placed[count++] = slot;
+                }
+
+                if (found) {
+                    displacements[b] = d;
+                    for (int i = 0; i < count; i++) {
+                        int key = bucket.get(i);
+                        slots[placed[i]] = keys[key];
+                        indices[placed[i]] = key;
+                    }
+                } else {
+                    // Undo the partial placement before trying the next displacement
+                    for (int i = 0; i < count; i++) {
+                        taken[placed[i]] = false;
+                    }
+                }
+            }
+
+            if (!found) {
+                return false;
+            }
+        }
+
+        _seed = seed;
+        _displacements = displacements;
+        _slots = slots;
+        _indices = indices;
+        return true;
+    }
+
+    /**
+     * Hash a region of a {@link CharSequence}, ignoring ASCII case
+     */
+    private static long hash(CharSequence s, int start, int end, long seed) {
+        long hash = FNV_OFFSET ^ seed;
+        for (int i = start; i < end; i++) {
+            hash ^= toLowerAscii(s.charAt(i));
+            hash *= FNV_PRIME;
+        }
+        return mix64(hash);
+    }
+
+    private static int bucket(long hash, int buckets) {
+        return (int) ((hash >>> 33) % buckets);
+    }
+
+    private static int slot(long hash, int displacement, int slots) {
+        long mixed = mix64(hash + displacement * DISPLACEMENT_STEP);
+        return (int) ((mixed >>> 1) % slots);
+    }
+
+    private static char toLowerAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static String toLowerAscii(String s) {
+        StringBuilder builder = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            builder.append(toLowerAscii(s.charAt(i)));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 64 bit finalizer from MurmurHash3
+     */
+    private static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Seed the hashes were built with
+     */
+    private long _seed;
+
+    /**
+     * Displacement for each bucket
+     */
+    private int[] _displacements = new int[1];
+
+    /**
+     * Key in each slot, lower cased
+     */
+    private String[] _slots = new String[0];
+
+    /**
+     * Original index of the key in each slot
+     */
+    private int[] _indices = new int[0];
+
+    /**
+     * Average bucket size, larger buckets make the tables smaller but the build slower
+     */
+    private static final int KEYS_PER_BUCKET = 4;
+
+    private static final int MAX_DISPLACEMENT = 1 << 20;
+
+    private static final int MAX_SEED_ATTEMPTS = 16;
+
+    private static final long DISPLACEMENT_STEP = 0x9e3779b97f4a7c15L;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+}
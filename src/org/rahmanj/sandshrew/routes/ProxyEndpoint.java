@@ -21,6 +21,29 @@ public class ProxyEndpoint extends Service {
         _pathPrefix = pathPrefix;
     }
 
+    /**
+     * Get the path prefix requests must start with to use this {@link ProxyEndpoint}
+     * @return A {@link String} path prefix
+     */
+    public String getPathPrefix() {
+        return _pathPrefix;
+    }
+
+    /**
+     * Endpoints are equal if they have the same hostname, port and path prefix
+     * @param obj {@link Object} to compare with
+     * @return Returns true if obj is an equal {@link ProxyEndpoint}
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+
+        String prefix = ((ProxyEndpoint) obj)._pathPrefix;
+        return _pathPrefix == null ? prefix == null : _pathPrefix.equals(prefix);
+    }
+
     /**
      * Prefix for paths based on this {@link ProxyEndpoint}
      */
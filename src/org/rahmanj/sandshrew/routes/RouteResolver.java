@@ -1,9 +1,521 @@
 package org.rahmanj.sandshrew.routes;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
 /**
+ * Resolves requests to {@link ProxyRoute}s by Host and then by the longest matching {@link ProxyEndpoint} path prefix
+ *
+ * The host picks a table of routes first: an exact host match wins, then the longest matching wildcard host such as
+ * "*.example.com", then the routes that don't name a host. Exact hosts are looked up through a minimal perfect hash
+ * built when the config is compiled, and wildcard hosts through a trie over their labels in reverse, so picking the
+ * table is O(host length) no matter how many virtual hosts there are. Like nginx server blocks, once a host table is
+ * picked the request never falls back to another one.
+ *
+ * Within a table the path prefixes are compiled into an immutable compressed radix trie, so a lookup walks the path
+ * a single time, in O(path length) no matter how many routes there are. Prefixes match like nginx prefix locations,
+ * on raw characters rather than whole path segments. The query string never takes part in matching, and
+ * absolute-form URIs sent to proxies are matched on their own authority and path. No lookup allocates or copies
+ * anything out of the request.
+ *
+ * Instances are immutable and safe to share between all event loops.
+ *
  * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
  */
 public class RouteResolver {
 
+    /**
+     * Compile a {@link RouteResolver}
+     *
+     * @param routes {@link ProxyRoute}s to resolve between, host and path prefix pairs must be unique
+     */
+    public RouteResolver(List<ProxyRoute> routes) {
+        if (routes == null) {
+            throw new NullPointerException("Null routes");
+        }
+
+        // Group the routes by host, null for routes on any host
+        Map<String, List<ProxyRoute>> byHost = new LinkedHashMap<String, List<ProxyRoute>>();
+        for (ProxyRoute route : routes) {
+            String host = route.getPublicEndpoint().getHostname();
+            if (host != null) {
+                host = host.toLowerCase(Locale.ROOT);
+            }
+
+            List<ProxyRoute> hostRoutes = byHost.get(host);
+            if (hostRoutes == null) {
+                hostRoutes = new ArrayList<ProxyRoute>();
+                byHost.put(host, hostRoutes);
+            }
+            hostRoutes.add(route);
+        }
+
+        List<String> exactHosts = new ArrayList<String>();
+        List<PathTable> exactTables = new ArrayList<PathTable>();
+        WildcardBuildNode wildcards = new WildcardBuildNode();
+        PathTable defaultTable = null;
+
+        for (Map.Entry<String, List<ProxyRoute>> entry : byHost.entrySet()) {
+            String host = entry.getKey();
+            PathTable table = new PathTable(entry.getValue());
+
+            if (host == null) {
+                defaultTable = table;
+            } else if (host.startsWith(WILDCARD_PREFIX)) {
+                wildcards.insert(host.substring(WILDCARD_PREFIX.length()), table);
+            } else if (host.indexOf('*') >= 0) {
+                throw new IllegalArgumentException("Wildcards are only supported as the first label of host " + host);
+            } else {
+                exactHosts.add(host);
+                exactTables.add(table);
+            }
+        }
+
+        _exactHosts = new PerfectHash(exactHosts.toArray(new String[exactHosts.size()]));
+        _exactTables = exactTables.toArray(new PathTable[exactTables.size()]);
+        _wildcards = wildcards.compile();
+        _defaultTable = defaultTable;
+    }
+
+    /**
+     * Find the route for a request
+     *
+     * @param host Value of the Host header, null if there was none
+     * @param uri Request URI, either origin-form ("/path?query") or absolute-form ("http://host/path?query")
+     * @return Returns the matching {@link ProxyRoute}, null if no route matches
+     */
+    public ProxyRoute resolve(CharSequence host, CharSequence uri) {
+        if (uri == null) {
+            throw new NullPointerException("Null URI");
+        }
+
+        int length = uri.length();
+        int pathStart = 0;
+        PathTable table;
+
+        int authorityStart = authorityStart(uri);
+        if (authorityStart >= 0) {
+            // The authority of an absolute-form URI overrides the Host header
+            pathStart = authorityStart;
+            while (pathStart < length && !isAuthorityEnd(uri.charAt(pathStart))) {
+                pathStart++;
+            }
+            table = tableForHost(uri, authorityStart, pathStart);
+        } else if (host != null) {
+            table = tableForHost(host, 0, host.length());
+        } else {
+            table = _defaultTable;
+        }
+
+        if (table == null) {
+            return null;
+        }
+
+        if (authorityStart >= 0 && (pathStart == length || uri.charAt(pathStart) != '/')) {
+            // Absolute-form with an empty path, which means "/"
+            return table.resolve(ROOT_PATH, 0);
+        }
+        return table.resolve(uri, pathStart);
+    }
+
+    /**
+     * Find the {@link ProxyRoute} for a request URI among the routes that don't name a host
+     *
+     * @param uri Request URI
+     * @return Returns the matching {@link ProxyRoute}, null if no route matches
+     */
+    public ProxyRoute resolve(CharSequence uri) {
+        return resolve(null, uri);
+    }
+
+    /**
+     * Pick the table of routes for a host
+     *
+     * @param s {@link CharSequence} holding the host, possibly followed by a port
+     * @param start Index of the start of the host
+     * @param end Index after the end of the host and port
+     * @return Returns the {@link PathTable} for the host, null if none applies
+     */
+    private PathTable tableForHost(CharSequence s, int start, int end) {
+        // Strip any userinfo, port and trailing dot
+        int at = lastIndexOf(s, '@', start, end);
+        if (at >= 0) {
+            start = at + 1;
+        }
+
+        if (start < end && s.charAt(start) == '[') {
+            // IPv6 literal, which has colons of its own
+            int close = indexOf(s, ']', start, end);
+            if (close >= 0) {
+                end = close + 1;
+            }
+        } else {
+            int colon = lastIndexOf(s, ':', start, end);
+            if (colon >= 0) {
+                end = colon;
+            }
+        }
+
+        if (end > start && s.charAt(end - 1) == '.') {
+            end--;
+        }
+
+        int idx = _exactHosts.lookup(s, start, end);
+        if (idx >= 0) {
+            return _exactTables[idx];
+        }
+
+        // Walk the labels from the right, the leftmost remaining label is what the '*' stands for
+        PathTable best = null;
+        WildcardNode node = _wildcards;
+        while (true) {
+            int dot = lastIndexOf(s, '.', start, end);
+            if (dot < 0) {
+                break;
+            }
+
+            int child = node.labels.lookup(s, dot + 1, end);
+            if (child < 0) {
+                break;
+            }
+
+            node = node.children[child];
+            if (node.table != null) {
+                best = node.table;
+            }
+            end = dot;
+        }
+
+        return best != null ? best : _defaultTable;
+    }
+
+    /**
+     * Find where the authority starts in an absolute-form request URI
+     *
+     * @param uri Request URI
+     * @return Returns the index of the first character after "scheme://", -1 if the URI isn't absolute-form
+     */
+    static int authorityStart(CharSequence uri) {
+        int length = uri.length();
+        for (int i = 0; i < length; i++) {
+            char c = uri.charAt(i);
+            if (c == ':') {
+                if (i > 0 && i + 2 < length && uri.charAt(i + 1) == '/' && uri.charAt(i + 2) == '/') {
+                    return i + 3;
+                }
+                return -1;
+            } else if (isAuthorityEnd(c)) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isAuthorityEnd(char c) {
+        return c == '/' || c == '?' || c == '#';
+    }
+
+    private static int indexOf(CharSequence s, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(CharSequence s, char c, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Immutable radix trie from path prefixes to the {@link ProxyRoute}s of one host
+     */
+    private static class PathTable {
+
+        PathTable(List<ProxyRoute> routes) {
+            BuildNode root = new BuildNode("");
+            for (ProxyRoute route : routes) {
+                String prefix = route.getPublicEndpoint().getPathPrefix();
+                if (prefix == null) {
+                    throw new NullPointerException("Null path prefix");
+                }
+
+                if (prefix.indexOf('?') >= 0 || prefix.indexOf('#') >= 0) {
+                    throw new IllegalArgumentException("Path prefix " + prefix + " contains a query or fragment");
+                }
+
+                root.insert(prefix, 0, route);
+            }
+
+            _root = root.compile();
+        }
+
+        /**
+         * Walk the trie from a position in the URI
+         *
+         * @param uri Request URI
+         * @param pos Index of the start of the path
+         * @return Returns the matching {@link ProxyRoute}, null if no prefix matches
+         */
+        ProxyRoute resolve(CharSequence uri, int pos) {
+            Node node = _root;
+            ProxyRoute best = node.route;
+            int length = uri.length();
+
+            while (pos < length) {
+                int idx = Arrays.binarySearch(node.firstChars, uri.charAt(pos));
+                if (idx < 0) {
+                    break;
+                }
+
+                Node child = node.children[idx];
+                char[] label = child.label;
+                if (length - pos < label.length) {
+                    break;
+                }
+
+                // The first character is already known to match. Prefixes never contain '?' or '#', so the query
+                // string and fragment can never match a label
+                int i = 1;
+                while (i < label.length && label[i] == uri.charAt(pos + i)) {
+                    i++;
+                }
+
+                if (i < label.length) {
+                    break;
+                }
+
+                pos += label.length;
+                node = child;
+                if (node.route != null) {
+                    best = node.route;
+                }
+            }
+
+            return best;
+        }
+
+        /**
+         * Root of the compiled trie, with an empty label
+         */
+        private final Node _root;
+    }
+
+    /**
+     * Immutable, compiled trie node
+     */
+    private static class Node {
+
+        Node(char[] label, ProxyRoute route, char[] firstChars, Node[] children) {
+            this.label = label;
+            this.route = route;
+            this.firstChars = firstChars;
+            this.children = children;
+        }
+
+        /**
+         * Characters on the edge from the parent to this node
+         */
+        final char[] label;
+
+        /**
+         * {@link ProxyRoute} whose prefix ends at this node, null if none does
+         */
+        final ProxyRoute route;
+
+        /**
+         * Sorted first characters of the child labels, parallel to {@link #children}
+         */
+        final char[] firstChars;
+
+        final Node[] children;
+    }
+
+    /**
+     * Mutable trie node used while compiling
+     */
+    private static class BuildNode {
+
+        BuildNode(String label) {
+            this.label = label;
+            this.children = new TreeMap<Character, BuildNode>();
+        }
+
+        /**
+         * Insert a prefix below this node, splitting edges where the prefix diverges from them
+         *
+         * @param prefix Prefix being inserted
+         * @param pos Characters of the prefix consumed so far
+         * @param proxyRoute {@link ProxyRoute} for the prefix
+         */
+        void insert(String prefix, int pos, ProxyRoute proxyRoute) {
+            if (pos == prefix.length()) {
+                if (route != null) {
+                    throw new IllegalArgumentException("Duplicate path prefix " + prefix);
+                }
+                route = proxyRoute;
+                return;
+            }
+
+            char c = prefix.charAt(pos);
+            BuildNode child = children.get(c);
+            if (child == null) {
+                child = new BuildNode(prefix.substring(pos));
+                child.route = proxyRoute;
+                children.put(c, child);
+                return;
+            }
+
+            int common = 0;
+            int max = Math.min(child.label.length(), prefix.length() - pos);
+            while (common < max && child.label.charAt(common) == prefix.charAt(pos + common)) {
+                common++;
+            }
+
+            if (common < child.label.length()) {
+                BuildNode middle = new BuildNode(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                middle.children.put(child.label.charAt(0), child);
+                children.put(c, middle);
+                child = middle;
+            }
+
+            child.insert(prefix, pos + common, proxyRoute);
+        }
+
+        /**
+         * Compile this node and everything below it
+         *
+         * @return Returns the compiled {@link Node}
+         */
+        Node compile() {
+            char[] firstChars = new char[children.size()];
+            Node[] compiled = new Node[children.size()];
+
+            int i = 0;
+            for (Map.Entry<Character, BuildNode> entry : children.entrySet()) {
+                firstChars[i] = entry.getKey();
+                compiled[i] = entry.getValue().compile();
+                i++;
+            }
+
+            return new Node(label.toCharArray(), route, firstChars, compiled);
+        }
+
+        String label;
+        ProxyRoute route;
+        final TreeMap<Character, BuildNode> children;
+    }
+
+    /**
+     * Immutable trie node over reversed host labels, for wildcard hosts
+     */
+    private static class WildcardNode {
+
+        WildcardNode(PerfectHash labels, WildcardNode[] children, PathTable table) {
+            this.labels = labels;
+            this.children = children;
+            this.table = table;
+        }
+
+        /**
+         * Labels of the children, indexing {@link #children}
+         */
+        final PerfectHash labels;
+
+        final WildcardNode[] children;
+
+        /**
+         * Routes for "*." followed by the labels down to this node, null if there are none
+         */
+        final PathTable table;
+    }
+
+    /**
+     * Mutable wildcard trie node used while compiling
+     */
+    private static class WildcardBuildNode {
+
+        WildcardBuildNode() {
+            this.children = new TreeMap<String, WildcardBuildNode>();
+        }
+
+        /**
+         * Insert the routes for a wildcard host
+         *
+         * @param suffix Host without its leading "*."
+         * @param routes {@link PathTable} for the host
+         */
+        void insert(String suffix, PathTable routes) {
+            WildcardBuildNode node = this;
+            String[] labels = suffix.split("\\.");
+            for (int i = labels.length - 1; i >= 0; i--) {
+                if (labels[i].isEmpty()) {
+                    throw new IllegalArgumentException("Empty label in wildcard host *." + suffix);
+                }
+
+                WildcardBuildNode child = node.children.get(labels[i]);
+                if (child == null) {
+                    child = new WildcardBuildNode();
+                    node.children.put(labels[i], child);
+                }
+                node = child;
+            }
+            node.table = routes;
+        }
+
+        /**
+         * Compile this node and everything below it
+         *
+         * @return Returns the compiled {@link WildcardNode}
+         */
+        WildcardNode compile() {
+            String[] labels = new String[children.size()];
+            WildcardNode[] compiled = new WildcardNode[children.size()];
+
+            int i = 0;
+            for (Map.Entry<String, WildcardBuildNode> entry : children.entrySet()) {
+                labels[i] = entry.getKey();
+                compiled[i] = entry.getValue().compile();
+                i++;
+            }
+
+            return new WildcardNode(new PerfectHash(labels), compiled, table);
+        }
+
+        PathTable table;
+        final TreeMap<String, WildcardBuildNode> children;
+    }
+
+    /**
+     * Exact hosts, indexing {@link #_exactTables}
+     */
+    private final PerfectHash _exactHosts;
+
+    private final PathTable[] _exactTables;
+
+    /**
+     * Root of the reversed label trie of wildcard hosts
+     */
+    private final WildcardNode _wildcards;
+
+    /**
+     * Routes that don't name a host, null if there are none
+     */
+    private final PathTable _defaultTable;
+
+    private static final String WILDCARD_PREFIX = "*.";
 
+    private static final String ROOT_PATH = "/";
 }
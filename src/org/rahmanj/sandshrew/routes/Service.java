@@ -54,6 +54,27 @@ public class Service {
         return _hashCode;
     }
 
+    /**
+     * Services are equal if they have the same hostname and port
+     * @param obj {@link Object} to compare with
+     * @return Returns true if obj is a {@link Service} of the same class for the same hostname and port
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (obj == null || obj.getClass() != getClass()) {
+            return false;
+        }
+
+        Service other = (Service) obj;
+        return _hashCode == other._hashCode
+                && _port == other._port
+                && (_hostname == null ? other._hostname == null : _hostname.equals(other._hostname));
+    }
+
     // TODO (JR) Fill this out more robustly
 
     /**
@@ -0,0 +1,165 @@
+package org.rahmanj.sandshrew;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the watermarks and limit of {@link BufferBudget}
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class BufferBudgetTest {
+
+    @Test
+    public void tracksChargesAndCredits() {
+        BufferBudget budget = new BufferBudget(100, 200, 300);
+        BufferBudget.Account account = budget.newAccount(channel(), new RecordingListener());
+
+        assertTrue(account.charge(content(150)));
+        assertTrue(account.charge(content(20)));
+        assertEquals(170, budget.getBufferedBytes());
+        assertEquals(170, account.getQueuedBytes());
+
+        account.credit(content(150));
+        assertEquals(20, budget.getBufferedBytes());
+        assertEquals(20, account.getQueuedBytes());
+    }
+
+    @Test
+    public void ignoresMessagesWithoutPayload() {
+        BufferBudget budget = new BufferBudget(100, 200, 300);
+        BufferBudget.Account account = budget.newAccount(channel(), new RecordingListener());
+
+        assertTrue(account.charge(LastHttpContent.EMPTY_LAST_CONTENT));
+        assertTrue(account.charge(new Object()));
+        assertEquals(0, budget.getBufferedBytes());
+    }
+
+    @Test
+    public void pausesAboveHighWatermark() {
+        BufferBudget budget = new BufferBudget(100, 200, 300);
+        RecordingListener listener = new RecordingListener();
+        BufferBudget.Account account = budget.newAccount(channel(), listener);
+
+        assertTrue(account.charge(content(200)));
+        assertEquals(0, listener.over);
+
+        // Crossing the high watermark pauses the account once, however much more it queues
+        assertTrue(account.charge(content(1)));
+        assertEquals(1, listener.over);
+        assertTrue(account.charge(content(50)));
+        assertEquals(1, listener.over);
+    }
+
+    @Test
+    public void resumesBelowLowWatermark() {
+        BufferBudget budget = new BufferBudget(100, 200, 300);
+        RecordingListener listener = new RecordingListener();
+        EmbeddedChannel channel = channel();
+        BufferBudget.Account account = budget.newAccount(channel, listener);
+
+        account.charge(content(250));
+        assertEquals(1, listener.over);
+
+        // Between the watermarks the account stays paused
+        account.credit(content(100));
+        channel.runPendingTasks();
+        assertEquals(0, listener.under);
+
+        // Resumes on the channel's event loop once the total is back down at the low watermark
+        account.credit(content(50));
+        assertEquals(0, listener.under);
+        channel.runPendingTasks();
+        assertEquals(1, listener.under);
+
+        // And pauses again on the next crossing
+        account.charge(content(150));
+        assertEquals(2, listener.over);
+    }
+
+    @Test
+    public void resumesEveryPausedAccount() {
+        BufferBudget budget = new BufferBudget(100, 200, 300);
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+        EmbeddedChannel firstChannel = channel();
+        EmbeddedChannel secondChannel = channel();
+        BufferBudget.Account first = budget.newAccount(firstChannel, firstListener);
+        BufferBudget.Account second = budget.newAccount(secondChannel, secondListener);
+
+        // The total is shared, so whoever queues past the high watermark is paused
+        first.charge(content(150));
+        second.charge(content(60));
+        assertEquals(0, firstListener.over);
+        assertEquals(1, secondListener.over);
+        first.charge(content(10));
+        assertEquals(1, firstListener.over);
+
+        // Credits from either account resume both
+        first.credit(content(160));
+        firstChannel.runPendingTasks();
+        secondChannel.runPendingTasks();
+        assertEquals(1, firstListener.under);
+        assertEquals(1, secondListener.under);
+    }
+
+    @Test
+    public void closesConnectionOverLimit() {
+        BufferBudget budget = new BufferBudget(100, 200, 300);
+        EmbeddedChannel channel = channel();
+        BufferBudget.Account account = budget.newAccount(channel, new RecordingListener());
+
+        assertTrue(account.charge(content(250)));
+        assertFalse(account.charge(content(51)));
+        assertFalse(channel.isOpen());
+
+        // The rejected message was never charged
+        assertEquals(250, budget.getBufferedBytes());
+        assertEquals(250, account.getQueuedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLowAboveHighWatermark() {
+        new BufferBudget(300, 200, 400);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsHighWatermarkAboveLimit() {
+        new BufferBudget(100, 500, 400);
+    }
+
+    private static HttpContent content(int bytes) {
+        return new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[bytes]));
+    }
+
+    private static EmbeddedChannel channel() {
+        return new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    }
+
+    /**
+     * Counts how often the budget pauses and resumes the connection
+     */
+    private static class RecordingListener implements BufferBudget.Listener {
+
+        public void onOverBudget() {
+            over++;
+        }
+
+        public void onUnderBudget() {
+            under++;
+        }
+
+        int over;
+
+        int under;
+    }
+}
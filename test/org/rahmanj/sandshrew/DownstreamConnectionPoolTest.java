@@ -0,0 +1,210 @@
+package org.rahmanj.sandshrew;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rahmanj.sandshrew.policy.ServerInfo;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link DownstreamConnectionPool}, against a local server that never answers and drops the connection
+ * once sent a request
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class DownstreamConnectionPoolTest {
+
+    @Before
+    public void setUp() throws InterruptedException {
+        _accepted = new AtomicInteger();
+        _serverGroup = new NioEventLoopGroup(1);
+        _serverChannel = new ServerBootstrap()
+                .group(_serverGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        _accepted.incrementAndGet();
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                ReferenceCountUtil.release(msg);
+                                ctx.close();
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+
+        InetSocketAddress address = (InetSocketAddress) _serverChannel.localAddress();
+        _server = new ServerInfo("127.0.0.1", address.getPort());
+
+        _clientGroup = new NioEventLoopGroup(1);
+        _loop = _clientGroup.next();
+        _pool = new DownstreamConnectionPool(_loop, new Transport.NioTransport(), 4, 1, 60000);
+    }
+
+    @After
+    public void tearDown() {
+        _pool.shutdown();
+        _clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly(5000);
+        _serverChannel.close().awaitUninterruptibly(5000);
+        _serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly(5000);
+    }
+
+    @Test(timeout = 10000)
+    public void reusesReleasedConnection() throws Exception {
+        DownstreamClient first = acquire().get();
+        release(first);
+
+        DownstreamClient second = acquire().get();
+        assertSame(first, second);
+        assertAccepted(1);
+    }
+
+    @Test(timeout = 10000)
+    public void waitsForReleaseAtLimit() throws Exception {
+        DownstreamClient first = acquire().get();
+
+        Future<DownstreamClient> waiting = acquire();
+        assertFalse(waiting.await(200));
+
+        // Released straight to the waiter, no second connection is opened
+        release(first);
+        assertSame(first, waiting.get());
+        assertAccepted(1);
+    }
+
+    @Test(timeout = 10000)
+    public void keepsConnectionWhenAcquireCancelledWhileConnecting() throws Exception {
+        Future<DownstreamClient> cancelled = onLoop(new Callable<Future<DownstreamClient>>() {
+            @Override
+            public Future<DownstreamClient> call() {
+                Future<DownstreamClient> future = _pool.acquire(_server, new StubProxyChannel(), false);
+                future.cancel(false);
+                return future;
+            }
+        });
+        assertTrue(cancelled.isCancelled());
+
+        // The connection the cancelled borrower left behind goes back to the pool instead of holding the only slot
+        Future<DownstreamClient> next = acquire();
+        assertTrue(next.await(5000));
+        assertTrue(next.isSuccess());
+        assertAccepted(1);
+    }
+
+    @Test(timeout = 10000)
+    public void replacesConnectionThatCannotBeReused() throws Exception {
+        final DownstreamClient first = acquire().get();
+        onLoop(new Callable<Void>() {
+            @Override
+            public Void call() {
+                first.closeAfterExchange();
+                return null;
+            }
+        });
+        release(first);
+
+        // The slot frees up once the closed connection is gone
+        DownstreamClient second = acquire().get();
+        assertNotSame(first, second);
+        assertAccepted(2);
+    }
+
+    @Test(timeout = 10000)
+    public void reportsServerClosingMidExchange() throws Exception {
+        final StubProxyChannel upstream = new StubProxyChannel();
+        final DownstreamClient client = acquire(upstream).get();
+        onLoop(new Callable<Void>() {
+            @Override
+            public Void call() {
+                client.send(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"));
+                client.flush();
+                return null;
+            }
+        });
+
+        // The upstream hears of it rather than waiting on a response that never comes
+        assertTrue(upstream.failed.await(5, TimeUnit.SECONDS));
+    }
+
+    private Future<DownstreamClient> acquire() throws Exception {
+        return acquire(new StubProxyChannel());
+    }
+
+    private Future<DownstreamClient> acquire(final ProxyChannel upstream) throws Exception {
+        return onLoop(new Callable<Future<DownstreamClient>>() {
+            @Override
+            public Future<DownstreamClient> call() {
+                return _pool.acquire(_server, upstream, false);
+            }
+        });
+    }
+
+    private void release(final DownstreamClient client) throws Exception {
+        onLoop(new Callable<Void>() {
+            @Override
+            public Void call() {
+                _pool.release(client);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Check how many connections the server accepted, which it counts on its own loop a little after the client connects
+     *
+     * @param expected Number of connections expected
+     */
+    private void assertAccepted(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (_accepted.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, _accepted.get());
+    }
+
+    private <T> T onLoop(Callable<T> task) throws Exception {
+        return _loop.submit(task).get();
+    }
+
+    private AtomicInteger _accepted;
+
+    private EventLoopGroup _serverGroup;
+
+    private Channel _serverChannel;
+
+    private ServerInfo _server;
+
+    private EventLoopGroup _clientGroup;
+
+    private EventLoop _loop;
+
+    private DownstreamConnectionPool _pool;
+}
@@ -0,0 +1,146 @@
+package org.rahmanj.sandshrew;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the credit accounting of {@link FlowWindow}
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class FlowWindowTest {
+
+    @Before
+    public void setUp() {
+        _source = new StubProxyChannel();
+        _channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        _window = new FlowWindow(_source, 100);
+    }
+
+    @Test
+    public void consumesPayloadOnly() {
+        assertNull(_window.consume(_channel, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"), null));
+        assertEquals(100, _window.getCredit());
+
+        assertNotNull(_window.consume(_channel, content(30), null));
+        assertEquals(70, _window.getCredit());
+        assertNotNull(_window.consume(_channel, Unpooled.wrappedBuffer(new byte[20]), null));
+        assertEquals(50, _window.getCredit());
+    }
+
+    @Test
+    public void keepsCallersPromise() {
+        ChannelPromise promise = _channel.newPromise();
+        assertSame(promise, _window.consume(_channel, content(30), promise));
+
+        promise.setSuccess();
+        assertEquals(100, _window.getCredit());
+    }
+
+    @Test
+    public void throttlesWhenCreditRunsOut() {
+        ChannelPromise first = _window.consume(_channel, content(60), null);
+        assertEquals(0, _source.throttles);
+
+        // Exactly at zero credit counts as exhausted
+        ChannelPromise second = _window.consume(_channel, content(40), null);
+        assertEquals(0, _window.getCredit());
+        assertEquals(1, _source.throttles);
+
+        // Overdrawing further doesn't throttle again
+        _window.consume(_channel, content(10), null);
+        assertEquals(-10, _window.getCredit());
+        assertEquals(1, _source.throttles);
+
+        first.setSuccess();
+        second.setSuccess();
+    }
+
+    @Test
+    public void unthrottlesAtHalfTheWindow() {
+        ChannelPromise first = _window.consume(_channel, content(30), null);
+        ChannelPromise second = _window.consume(_channel, content(30), null);
+        ChannelPromise third = _window.consume(_channel, content(40), null);
+        assertEquals(1, _source.throttles);
+
+        second.setSuccess();
+        assertEquals(30, _window.getCredit());
+        assertEquals(0, _source.unthrottles);
+
+        // Failed writes give their credit back too
+        third.setFailure(new Exception("Write failed"));
+        assertEquals(70, _window.getCredit());
+        assertEquals(1, _source.unthrottles);
+
+        first.setSuccess();
+        assertEquals(100, _window.getCredit());
+        assertEquals(1, _source.unthrottles);
+    }
+
+    @Test
+    public void closeReleasesThrottledSource() {
+        ChannelPromise promise = _window.consume(_channel, content(150), null);
+        assertEquals(1, _source.throttles);
+
+        _window.close();
+        assertEquals(1, _source.unthrottles);
+
+        // Writes completing after the exchange no longer count, nor do new ones
+        promise.setSuccess();
+        assertEquals(-50, _window.getCredit());
+        assertNull(_window.consume(_channel, content(10), null));
+        assertEquals(-50, _window.getCredit());
+
+        _window.close();
+        assertEquals(1, _source.throttles);
+        assertEquals(1, _source.unthrottles);
+    }
+
+    @Test
+    public void closeLeavesUnthrottledSourceAlone() {
+        _window.consume(_channel, content(10), null);
+        _window.close();
+        assertEquals(0, _source.unthrottles);
+    }
+
+    @Test
+    public void throttlesAgainAfterRefill() {
+        ChannelPromise first = _window.consume(_channel, content(100), null);
+        first.setSuccess();
+        assertEquals(1, _source.unthrottles);
+
+        _window.consume(_channel, content(100), null);
+        assertEquals(2, _source.throttles);
+        assertTrue(_window.getCredit() <= 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyWindow() {
+        new FlowWindow(_source, 0);
+    }
+
+    private static HttpContent content(int bytes) {
+        return new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[bytes]));
+    }
+
+    private StubProxyChannel _source;
+
+    private EmbeddedChannel _channel;
+
+    private FlowWindow _window;
+}
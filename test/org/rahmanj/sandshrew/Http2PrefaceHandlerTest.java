@@ -0,0 +1,165 @@
+package org.rahmanj.sandshrew;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link Http2PrefaceHandler}
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class Http2PrefaceHandlerTest {
+
+    @Test
+    public void answersPrefaceWithGoaway() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2PrefaceHandler());
+        channel.writeInbound(ascii(PREFACE + "\u0000\u0000\u0000\u0004\u0000\u0000\u0000\u0000\u0000"));
+
+        assertGoaway(channel);
+        assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void answersPrefaceSplitAcrossReads() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2PrefaceHandler());
+
+        // One byte at a time, nothing is decided until the last byte of the preface arrives
+        for (int i = 0; i < PREFACE.length() - 1; i++) {
+            channel.writeInbound(ascii(PREFACE.substring(i, i + 1)));
+            assertNull(channel.readOutbound());
+            assertTrue(channel.isOpen());
+        }
+        channel.writeInbound(ascii(PREFACE.substring(PREFACE.length() - 1)));
+
+        assertGoaway(channel);
+        assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void passesHttp1Through() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2PrefaceHandler());
+        String request = "GET / HTTP/1.1\r\nHost: example.com\r\n\r\n";
+        channel.writeInbound(ascii(request));
+
+        assertEquals(request, readInboundString(channel));
+        assertNull(channel.pipeline().get(Http2PrefaceHandler.class));
+        assertNull(channel.readOutbound());
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void passesPartialPrefaceThroughOnMismatch() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2PrefaceHandler());
+
+        // Starts like the preface, so the handler waits until the bytes diverge
+        channel.writeInbound(ascii("PR"));
+        assertNull(channel.readInbound());
+
+        channel.writeInbound(ascii("OPFIND / HTTP/1.1\r\n\r\n"));
+        assertEquals("PROPFIND / HTTP/1.1\r\n\r\n", readInboundString(channel));
+        assertNull(channel.pipeline().get(Http2PrefaceHandler.class));
+
+        // Later reads go straight to the next handler
+        channel.writeInbound(ascii("PRI"));
+        assertEquals("PRI", readInboundString(channel));
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void stripsH2cUpgrade() {
+        HttpRequest req = request();
+        req.headers().set(HttpHeaders.Names.UPGRADE, "h2c");
+        req.headers().set("HTTP2-Settings", "AAMAAABkAAQAAP__");
+        req.headers().set(HttpHeaders.Names.CONNECTION, "Upgrade, HTTP2-Settings");
+
+        assertTrue(Http2PrefaceHandler.ignoreUpgrade(req));
+        assertFalse(req.headers().contains(HttpHeaders.Names.UPGRADE));
+        assertFalse(req.headers().contains("HTTP2-Settings"));
+        assertFalse(req.headers().contains(HttpHeaders.Names.CONNECTION));
+    }
+
+    @Test
+    public void keepsOtherUpgradeTokens() {
+        HttpRequest req = request();
+        req.headers().set(HttpHeaders.Names.UPGRADE, "websocket, H2C");
+        req.headers().set("HTTP2-Settings", "AAMAAABkAAQAAP__");
+        req.headers().set(HttpHeaders.Names.CONNECTION, "keep-alive, Upgrade, HTTP2-Settings");
+
+        assertTrue(Http2PrefaceHandler.ignoreUpgrade(req));
+        assertEquals("websocket", req.headers().get(HttpHeaders.Names.UPGRADE));
+        assertFalse(req.headers().contains("HTTP2-Settings"));
+        assertEquals("keep-alive, Upgrade", req.headers().get(HttpHeaders.Names.CONNECTION));
+    }
+
+    @Test
+    public void leavesOtherUpgradesAlone() {
+        HttpRequest req = request();
+        req.headers().set(HttpHeaders.Names.UPGRADE, "websocket");
+        req.headers().set(HttpHeaders.Names.CONNECTION, "Upgrade");
+
+        assertFalse(Http2PrefaceHandler.ignoreUpgrade(req));
+        assertEquals("websocket", req.headers().get(HttpHeaders.Names.UPGRADE));
+        assertEquals("Upgrade", req.headers().get(HttpHeaders.Names.CONNECTION));
+
+        assertFalse(Http2PrefaceHandler.ignoreUpgrade(request()));
+    }
+
+    /**
+     * Check that the server preface and GOAWAY were written and the channel closed
+     *
+     * @param channel {@link EmbeddedChannel} the preface was written to
+     */
+    private static void assertGoaway(EmbeddedChannel channel) {
+        ByteBuf out = (ByteBuf) channel.readOutbound();
+        try {
+            assertEquals(26, out.readableBytes());
+
+            // Empty SETTINGS frame on stream 0
+            assertEquals(0, out.getMedium(0));
+            assertEquals(0x04, out.getByte(3));
+            assertEquals(0, out.getInt(5));
+
+            // GOAWAY with last stream 0 and HTTP_1_1_REQUIRED
+            assertEquals(8, out.getMedium(9));
+            assertEquals(0x07, out.getByte(12));
+            assertEquals(0, out.getInt(18));
+            assertEquals(0x0d, out.getInt(22));
+        } finally {
+            out.release();
+        }
+        assertFalse(channel.isOpen());
+    }
+
+    private static String readInboundString(EmbeddedChannel channel) {
+        StringBuilder builder = new StringBuilder();
+        ByteBuf buf;
+        while ((buf = (ByteBuf) channel.readInbound()) != null) {
+            builder.append(buf.toString(CharsetUtil.US_ASCII));
+            buf.release();
+        }
+        return builder.toString();
+    }
+
+    private static ByteBuf ascii(String s) {
+        return Unpooled.copiedBuffer(s, CharsetUtil.ISO_8859_1);
+    }
+
+    private static HttpRequest request() {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+    }
+
+    private static final String PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n";
+}
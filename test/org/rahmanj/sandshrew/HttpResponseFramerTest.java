@@ -0,0 +1,159 @@
+package org.rahmanj.sandshrew;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link HttpResponseFramer}
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class HttpResponseFramerTest {
+
+    @Before
+    public void setUp() {
+        _events = new ArrayList<Object>();
+        _channel = new EmbeddedChannel(
+                new HttpResponseFramer(1024),
+                new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+                        _events.add(evt);
+                    }
+                }
+        );
+    }
+
+    @Test
+    public void framesContentLength() {
+        String response = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello";
+        _channel.writeInbound(ascii(response));
+
+        assertEquals(response, readInboundString());
+        assertEvents(HttpResponseFramer.ResponseCompleted.KEEP_ALIVE);
+    }
+
+    @Test
+    public void framesChunkedAcrossReads() {
+        String response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;ext=1\r\nhello\r\n1A\r\nabcdefghijklmnopqrstuvwxyz\r\n0\r\nTrailer: x\r\n\r\n";
+
+        for (int i = 0; i < response.length(); i++) {
+            assertTrue(_events.isEmpty());
+            _channel.writeInbound(ascii(response.substring(i, i + 1)));
+        }
+
+        assertEquals(response, readInboundString());
+        assertEvents(HttpResponseFramer.ResponseCompleted.KEEP_ALIVE);
+    }
+
+    @Test
+    public void framesPipelinedResponses() {
+        String first = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+        String second = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        _channel.writeInbound(ascii(first + second));
+
+        // Each response is forwarded on its own, ahead of its completion event
+        assertEquals(first, readInboundBuffer());
+        assertEquals(second, readInboundBuffer());
+        assertEvents(HttpResponseFramer.ResponseCompleted.KEEP_ALIVE, HttpResponseFramer.ResponseCompleted.CLOSE);
+    }
+
+    @Test
+    public void framesHeadResponseWithoutBody() {
+        _channel.writeOutbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.HEAD, "/"));
+        ReferenceCountUtil.release(_channel.readOutbound());
+
+        _channel.writeInbound(ascii("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n"));
+        assertEvents(HttpResponseFramer.ResponseCompleted.KEEP_ALIVE);
+    }
+
+    @Test
+    public void framesBodylessStatuses() {
+        _channel.writeInbound(ascii("HTTP/1.1 204 No Content\r\n\r\n"));
+        _channel.writeInbound(ascii("HTTP/1.1 304 Not Modified\r\nContent-Length: 10\r\n\r\n"));
+        assertEvents(HttpResponseFramer.ResponseCompleted.KEEP_ALIVE, HttpResponseFramer.ResponseCompleted.KEEP_ALIVE);
+    }
+
+    @Test
+    public void skipsInterimResponses() {
+        String response = "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nx";
+        _channel.writeInbound(ascii(response));
+
+        assertEquals(response, readInboundString());
+        assertEvents(HttpResponseFramer.ResponseCompleted.KEEP_ALIVE);
+    }
+
+    @Test
+    public void framesHttp10AsClose() {
+        _channel.writeInbound(ascii("HTTP/1.0 200 OK\r\nContent-Length: 1\r\n\r\nx"));
+        _channel.writeInbound(ascii("HTTP/1.0 200 OK\r\nConnection: keep-alive\r\nContent-Length: 1\r\n\r\nx"));
+        assertEvents(HttpResponseFramer.ResponseCompleted.CLOSE, HttpResponseFramer.ResponseCompleted.KEEP_ALIVE);
+    }
+
+    @Test
+    public void framesUntilClose() {
+        String response = "HTTP/1.1 200 OK\r\n\r\nbody without a length";
+        _channel.writeInbound(ascii(response));
+        _channel.writeInbound(ascii(" that keeps going"));
+        assertTrue(_events.isEmpty());
+
+        // The response only ends once the server closes the connection
+        _channel.finish();
+        assertEquals(response + " that keeps going", readInboundString());
+        assertEvents(HttpResponseFramer.ResponseCompleted.CLOSE);
+    }
+
+    /**
+     * Check the completion events fired so far
+     *
+     * @param expected Events in the order they should have been fired
+     */
+    private void assertEvents(Object... expected) {
+        assertEquals(Arrays.asList(expected), _events);
+    }
+
+    private String readInboundBuffer() {
+        ByteBuf buf = (ByteBuf) _channel.readInbound();
+        try {
+            return buf.toString(CharsetUtil.ISO_8859_1);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private String readInboundString() {
+        StringBuilder builder = new StringBuilder();
+        ByteBuf buf;
+        while ((buf = (ByteBuf) _channel.readInbound()) != null) {
+            builder.append(buf.toString(CharsetUtil.ISO_8859_1));
+            buf.release();
+        }
+        return builder.toString();
+    }
+
+    private static ByteBuf ascii(String s) {
+        return Unpooled.copiedBuffer(s, CharsetUtil.ISO_8859_1);
+    }
+
+    private EmbeddedChannel _channel;
+
+    private List<Object> _events;
+}
@@ -0,0 +1,82 @@
+package org.rahmanj.sandshrew;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpObject;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * {@link ProxyChannel} that ignores everything sent to it, and records being throttled and failed
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+class StubProxyChannel implements ProxyChannel {
+
+    public void throttle() {
+        throttles++;
+    }
+
+    public void unthrottle() {
+        unthrottles++;
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+        return new InetSocketAddress("127.0.0.1", 40000);
+    }
+
+    public boolean isWritable() {
+        return true;
+    }
+
+    public boolean isDraining() {
+        return false;
+    }
+
+    public BufferBudget.Account getBufferAccount() {
+        return null;
+    }
+
+    public void send(HttpObject msg) {
+    }
+
+    public void send(HttpObject msg, ChannelPromise promise) {
+    }
+
+    public void sendRaw(ByteBuf buf, boolean last) {
+    }
+
+    public void closeAfterExchange() {
+    }
+
+    public void exchangeFailed() {
+        failed.countDown();
+    }
+
+    public void flush() {
+    }
+
+    public ChannelFuture run() {
+        return null;
+    }
+
+    public void shutdown() {
+    }
+
+    /**
+     * Number of calls to {@link #throttle()}
+     */
+    int throttles;
+
+    /**
+     * Number of calls to {@link #unthrottle()}
+     */
+    int unthrottles;
+
+    /**
+     * Counted down by {@link #exchangeFailed()}
+     */
+    final CountDownLatch failed = new CountDownLatch(1);
+}
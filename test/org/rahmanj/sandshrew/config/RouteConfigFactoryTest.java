@@ -0,0 +1,84 @@
+package org.rahmanj.sandshrew.config;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rahmanj.sandshrew.policy.PolicyFactory;
+import org.rahmanj.sandshrew.policy.RoundRobinRoutePolicy;
+import org.rahmanj.sandshrew.policy.ServerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for building a {@link RouteConfig} out of a configuration file
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class RouteConfigFactoryTest {
+
+    @Test
+    public void skipsBadPoolAndItsRoutes() throws IOException {
+        RouteConfig config = factory().buildRouteConfig(write(
+                "{\"pools\": ["
+                        + "{\"name\": \"web\", \"policy\": {\"type\": \"round_robin\"}, \"servers\": [{\"server\": \"127.0.0.1:8080\"}]},"
+                        + "{\"name\": \"broken\", \"policy\": {\"type\": \"no_such_policy\"}, \"servers\": []}"
+                        + "],"
+                        + "\"routes\": ["
+                        + "{\"pool\": \"web\", \"location\": \"/\"},"
+                        + "{\"pool\": \"broken\", \"location\": \"/broken/\"}"
+                        + "]}"
+        ));
+
+        assertEquals(1, config.getPools().size());
+        assertEquals("web", config.getPools().get(0).getPoolName());
+        assertEquals(1, config.getRoutes().size());
+        assertEquals("/", config.getRoutes().get(0).getLocation());
+    }
+
+    @Test
+    public void reusesUnchangedPools() throws IOException {
+        String json = "{\"pools\": ["
+                + "{\"name\": \"web\", \"policy\": {\"type\": \"round_robin\"}, \"servers\": [{\"server\": \"127.0.0.1:8080\"}]}"
+                + "],"
+                + "\"routes\": [{\"pool\": \"web\", \"location\": \"/\"}]}";
+        RouteConfigFactory factory = factory();
+        RouteConfig first = factory.buildRouteConfig(write(json));
+        RouteConfig second = factory.buildRouteConfig(write(json), first);
+
+        assertSame(first.getPools().get(0), second.getPools().get(0));
+    }
+
+    @Test(expected = JsonProcessingException.class)
+    public void rejectsMalformedFile() throws IOException {
+        factory().buildRouteConfig(write("{\"pools\": ["));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFileWithoutRoutes() throws IOException {
+        factory().buildRouteConfig(write("{\"pools\": []}"));
+    }
+
+    private Path write(String json) throws IOException {
+        Path path = _folder.newFile().toPath();
+        Files.write(path, json.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    private static RouteConfigFactory factory() {
+        Map<String, PolicyFactory> policyFactories = new HashMap<String, PolicyFactory>();
+        policyFactories.put("round_robin", new RoundRobinRoutePolicy.RoundRobinPolicyFactory());
+        return new RouteConfigFactory(policyFactories, new ServerFactory());
+    }
+
+    @Rule
+    public final TemporaryFolder _folder = new TemporaryFolder();
+}
@@ -0,0 +1,122 @@
+package org.rahmanj.sandshrew.policy;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.rahmanj.sandshrew.policy.HashPolicyTestSupport.request;
+import static org.rahmanj.sandshrew.policy.HashPolicyTestSupport.servers;
+
+/**
+ * Tests for the hash ring of {@link BoundedLoadHashPolicy}
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class BoundedLoadHashPolicyTest {
+
+    @Test
+    public void keepsKeyOnHomeServer() {
+        BoundedLoadHashPolicy policy = policy(servers(5));
+        ServerInfo home = policy.next(request("192.168.1.10", "/images/logo.png"));
+        for (int i = 0; i < 10; i++) {
+            assertSame(home, policy.next(request("10.1.1." + i, "/images/logo.png")));
+        }
+    }
+
+    @Test
+    public void spreadsKeysAcrossServers() {
+        ServerInfo[] servers = servers(10);
+        BoundedLoadHashPolicy policy = policy(servers);
+
+        Map<ServerInfo, Integer> counts = new HashMap<ServerInfo, Integer>();
+        int keys = 20000;
+        for (int i = 0; i < keys; i++) {
+            ServerInfo server = policy.next(request("192.168.1.10", "/objects/" + i));
+            Integer count = counts.get(server);
+            counts.put(server, count == null ? 1 : count + 1);
+        }
+
+        // 100 virtual nodes each keeps every share within about a third of even
+        assertEquals(servers.length, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("Uneven share " + count, count > keys / 10 * 0.65 && count < keys / 10 * 1.35);
+        }
+    }
+
+    @Test
+    public void spillsOverFromLoadedServer() {
+        BoundedLoadHashPolicy policy = policy(servers(4));
+        ServerInfo home = policy.next(request("192.168.1.10", "/hot"));
+
+        for (int i = 0; i < 10; i++) {
+            home.stats().requestStarted();
+        }
+        ServerInfo spill = policy.next(request("192.168.1.10", "/hot"));
+        assertNotSame(home, spill);
+        assertSame(spill, policy.next(request("192.168.1.10", "/hot")));
+
+        // Back home once the load drains
+        for (int i = 0; i < 10; i++) {
+            home.stats().requestCompleted(true);
+        }
+        assertSame(home, policy.next(request("192.168.1.10", "/hot")));
+    }
+
+    @Test
+    public void movesFewKeysWhenServerAdded() {
+        ServerInfo[] servers = servers(11);
+        BoundedLoadHashPolicy before = new BoundedLoadHashPolicy(uriKey(), 0.25, 100);
+        BoundedLoadHashPolicy after = new BoundedLoadHashPolicy(uriKey(), 0.25, 100);
+        for (int i = 0; i < servers.length; i++) {
+            if (i < 10) {
+                before.addDownstreamServer(servers[i], null);
+            }
+            after.addDownstreamServer(servers[i], null);
+        }
+
+        int keys = 20000;
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            RequestContext ctx = request("192.168.1.10", "/objects/" + i);
+            if (before.next(ctx) != after.next(ctx)) {
+                moved++;
+            }
+        }
+
+        // Only the keys the new server's points take over move, about 1/11 of them
+        assertTrue("Moved " + moved, moved < keys / 11 * 1.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveEpsilon() {
+        new BoundedLoadHashPolicy(uriKey(), 0, 100);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsLookupWithoutServers() {
+        new BoundedLoadHashPolicy(uriKey(), 0.25, 100).next(request("192.168.1.10", "/"));
+    }
+
+    private static BoundedLoadHashPolicy policy(ServerInfo[] servers) {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("key", "uri");
+        BoundedLoadHashPolicy policy = (BoundedLoadHashPolicy) new BoundedLoadHashPolicy.BoundedLoadHashPolicyFactory().instantiatePolicy(node);
+        for (ServerInfo server : servers) {
+            policy.addDownstreamServer(server, node);
+        }
+        return policy;
+    }
+
+    private static RequestKeySource uriKey() {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("key", "uri");
+        return new RequestKeySource(node);
+    }
+}
@@ -0,0 +1,52 @@
+package org.rahmanj.sandshrew.policy;
+
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * Requests and servers for the {@link RoutePolicy} tests
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+final class HashPolicyTestSupport {
+
+    private HashPolicyTestSupport() {
+    }
+
+    /**
+     * Build servers with distinct addresses
+     *
+     * @param count Number of servers
+     * @return Returns the new {@link ServerInfo}s
+     */
+    static ServerInfo[] servers(int count) {
+        ServerInfo[] servers = new ServerInfo[count];
+        for (int i = 0; i < count; i++) {
+            servers[i] = new ServerInfo("10.0." + (i / 256) + "." + (i % 256), 8080);
+        }
+        return servers;
+    }
+
+    /**
+     * Build the {@link RequestContext} of a request from a given client
+     *
+     * @param clientAddress IP address of the client
+     * @param uri URI requested
+     * @return Returns the {@link RequestContext}
+     */
+    static RequestContext request(final String clientAddress, String uri) {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter()) {
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return InetSocketAddress.createUnresolved(clientAddress, 40000);
+            }
+        };
+        return new RequestContext(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri), channel);
+    }
+}
@@ -0,0 +1,114 @@
+package org.rahmanj.sandshrew.policy;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.rahmanj.sandshrew.policy.HashPolicyTestSupport.request;
+import static org.rahmanj.sandshrew.policy.HashPolicyTestSupport.servers;
+
+/**
+ * Tests for the Maglev table of {@link IpHashPolicy}
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class IpHashPolicyTest {
+
+    @Test
+    public void keepsClientOnOneServer() {
+        IpHashPolicy policy = policy(servers(5));
+        ServerInfo first = policy.next(request("192.168.1.10", "/a"));
+        for (int i = 0; i < 10; i++) {
+            assertSame(first, policy.next(request("192.168.1.10", "/b" + i)));
+        }
+    }
+
+    @Test
+    public void spreadsClientsEvenly() {
+        ServerInfo[] servers = servers(10);
+        IpHashPolicy policy = policy(servers);
+
+        Map<ServerInfo, Integer> counts = new HashMap<ServerInfo, Integer>();
+        int clients = 50000;
+        for (int i = 0; i < clients; i++) {
+            ServerInfo server = policy.next(request(client(i), "/"));
+            Integer count = counts.get(server);
+            counts.put(server, count == null ? 1 : count + 1);
+        }
+
+        assertEquals(servers.length, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("Uneven share " + count, count > clients / 10 * 0.85 && count < clients / 10 * 1.15);
+        }
+    }
+
+    @Test
+    public void movesFewClientsWhenServerAdded() {
+        ServerInfo[] servers = servers(11);
+        IpHashPolicy before = new IpHashPolicy(new RequestKeySource(null), 65537);
+        IpHashPolicy after = new IpHashPolicy(new RequestKeySource(null), 65537);
+        for (int i = 0; i < servers.length; i++) {
+            if (i < 10) {
+                before.addDownstreamServer(servers[i], null);
+            }
+            after.addDownstreamServer(servers[i], null);
+        }
+
+        int clients = 20000;
+        int moved = 0;
+        for (int i = 0; i < clients; i++) {
+            RequestContext ctx = request(client(i), "/");
+            if (before.next(ctx) != after.next(ctx)) {
+                moved++;
+            }
+        }
+
+        // Ideally 1/11 of the clients move, all of them to the new server
+        assertTrue("Moved " + moved, moved > clients / 11 * 0.8 && moved < clients / 11 * 1.3);
+    }
+
+    @Test
+    public void hashesOnUri() {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("key", "uri");
+        IpHashPolicy policy = new IpHashPolicy(new RequestKeySource(node), 65537);
+        for (ServerInfo server : servers(5)) {
+            policy.addDownstreamServer(server, node);
+        }
+
+        ServerInfo first = policy.next(request("192.168.1.10", "/images/logo.png"));
+        for (int i = 0; i < 10; i++) {
+            assertSame(first, policy.next(request(client(i), "/images/logo.png")));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCompositeTableSize() {
+        new IpHashPolicy(new RequestKeySource(null), 65536);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsLookupWithoutServers() {
+        new IpHashPolicy().next(request("192.168.1.10", "/"));
+    }
+
+    private static IpHashPolicy policy(ServerInfo[] servers) {
+        IpHashPolicy policy = new IpHashPolicy();
+        JsonNode node = JsonNodeFactory.instance.objectNode();
+        for (ServerInfo server : servers) {
+            policy.addDownstreamServer(server, node);
+        }
+        return policy;
+    }
+
+    private static String client(int i) {
+        return "172." + (16 + (i >> 16)) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff);
+    }
+}
@@ -0,0 +1,113 @@
+package org.rahmanj.sandshrew.policy;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link LatencyHistogram}
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverValuesWithinPrecision() {
+        int previous = -1;
+        for (long value = 0; value < (1L << 32); value = value < 256 ? value + 1 : value + value / 37) {
+            int idx = LatencyHistogram.bucketIndex(value);
+            long highest = LatencyHistogram.highestValueInBucket(idx);
+
+            assertTrue(idx >= previous);
+            assertTrue(highest >= value);
+            assertTrue("Bucket too wide for " + value, highest - value <= value / 16);
+            previous = idx;
+        }
+    }
+
+    @Test
+    public void reportsPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 1; micros <= 10000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.intervalSnapshot();
+        assertEquals(10000, snapshot.getTotalCount());
+        assertWithin(5000, snapshot.getValueAtPercentile(50));
+        assertWithin(9900, snapshot.getValueAtPercentile(99));
+        assertWithin(10000, snapshot.getValueAtPercentile(100));
+        assertWithin(10000, snapshot.getMaxValue());
+        assertEquals(5000.5, snapshot.getMean(), 5000.5 / 16);
+    }
+
+    @Test
+    public void snapshotsCoverIntervals() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(1, histogram.intervalSnapshot().getTotalCount());
+
+        LatencyHistogram.Snapshot empty = histogram.intervalSnapshot();
+        assertEquals(0, empty.getTotalCount());
+        assertEquals(0, empty.getValueAtPercentile(99));
+        assertEquals(0, empty.getMaxValue());
+
+        histogram.record(TimeUnit.SECONDS.toNanos(2));
+        LatencyHistogram.Snapshot next = histogram.intervalSnapshot();
+        assertEquals(1, next.getTotalCount());
+        assertWithin(2000000, next.getMaxValue());
+    }
+
+    @Test
+    public void ignoresNegativeAndClampsLarge() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        histogram.record(Long.MAX_VALUE);
+
+        LatencyHistogram.Snapshot snapshot = histogram.intervalSnapshot();
+        assertEquals(1, snapshot.getTotalCount());
+        assertEquals((1L << 32) - 1, snapshot.getMaxValue());
+    }
+
+    @Test
+    public void combinesThreads() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long micros = 100 * (t + 1);
+            threads[t] = new Thread(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int i = 0; i < 1000; i++) {
+                                histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+                            }
+                        }
+                    }
+            );
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.intervalSnapshot();
+        assertEquals(4000, snapshot.getTotalCount());
+        assertWithin(100, snapshot.getValueAtPercentile(25));
+        assertWithin(400, snapshot.getMaxValue());
+    }
+
+    /**
+     * Check a reported value is the bucket holding the expected value
+     *
+     * @param expected Value recorded, in microseconds
+     * @param actual Value reported, in microseconds
+     */
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but got " + actual,
+                actual >= expected && actual - expected <= expected / 16);
+    }
+}
@@ -0,0 +1,114 @@
+package org.rahmanj.sandshrew.policy;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH contention benchmark for {@link RoundRobinRoutePolicy}, run standalone with {@link #main(String[])}
+ *
+ * Every thread picks servers from one shared policy as fast as it can, like event loops routing requests to the
+ * same pool. The lock-free policy is measured against the deque rotation it replaced, made safe with a lock. The
+ * arguments to main are the thread counts to run, 1, 2, 4, 8, 16 and 32 by default. Other JMH options can be
+ * given by running {@code org.openjdk.jmh.Main} on the test classpath instead.
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundRobinRoutePolicyBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        String[] threadCounts = args.length > 0 ? args : new String[] {"1", "2", "4", "8", "16", "32"};
+
+        for (String threads : threadCounts) {
+            Options options = new OptionsBuilder()
+                    .include(RoundRobinRoutePolicyBenchmark.class.getName())
+                    .threads(Integer.parseInt(threads))
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        _lockFree = new RoundRobinRoutePolicy();
+        _locked = new LockedDequeRoutePolicy();
+
+        JsonNode node = JsonNodeFactory.instance.objectNode();
+        for (int i = 0; i < serverCount; i++) {
+            ServerInfo server = new ServerInfo("10.0." + (i / 256) + "." + (i % 256), 8080);
+            _lockFree.addDownstreamServer(server, node);
+            _locked.addDownstreamServer(server, node);
+        }
+    }
+
+    @Benchmark
+    public ServerInfo lockFree() {
+        return _lockFree.next(null);
+    }
+
+    @Benchmark
+    public ServerInfo locked() {
+        return _locked.next(null);
+    }
+
+    /**
+     * The round robin policy as it was before going lock-free, rotating a deque of the servers, with the lock it
+     * needed to be shared across event loops
+     */
+    private static class LockedDequeRoutePolicy implements RoutePolicy {
+
+        public synchronized void addDownstreamServer(ServerInfo server, JsonNode node) {
+            _servers.add(server);
+        }
+
+        public synchronized ServerInfo next(RequestContext ctx) {
+            ServerInfo server = _servers.remove();
+            _servers.add(server);
+            return server;
+        }
+
+        public void markAsFailed(ServerInfo server) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void markAsLive(ServerInfo server) {
+            throw new UnsupportedOperationException();
+        }
+
+        private final Deque<ServerInfo> _servers = new ArrayDeque<ServerInfo>();
+    }
+
+    /**
+     * Number of servers in the pool
+     */
+    @Param({"16"})
+    public int serverCount;
+
+    private RoutePolicy _lockFree;
+
+    private RoutePolicy _locked;
+}
@@ -0,0 +1,77 @@
+package org.rahmanj.sandshrew.policy;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.rahmanj.sandshrew.policy.HashPolicyTestSupport.servers;
+
+/**
+ * Tests for {@link TwoRandomChoices} and the load aware policies built on it
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class TwoRandomChoicesTest {
+
+    @Test
+    public void picksCheaperOfTwo() {
+        ServerInfo[] servers = servers(2);
+        servers[1].stats().requestStarted();
+        for (int i = 0; i < 100; i++) {
+            assertSame(servers[0], TwoRandomChoices.pick(servers, PENDING));
+        }
+    }
+
+    @Test
+    public void neverPicksMostExpensive() {
+        ServerInfo[] servers = servers(3);
+        servers[2].stats().requestStarted();
+
+        // Whichever pair is sampled, the busy server always has a cheaper rival, and the others both win sometimes
+        Set<ServerInfo> picked = new HashSet<ServerInfo>();
+        for (int i = 0; i < 1000; i++) {
+            ServerInfo server = TwoRandomChoices.pick(servers, PENDING);
+            assertNotSame(servers[2], server);
+            picked.add(server);
+        }
+        assertEquals(2, picked.size());
+    }
+
+    @Test
+    public void returnsOnlyServer() {
+        ServerInfo[] servers = servers(1);
+        servers[0].stats().requestStarted();
+        assertSame(servers[0], TwoRandomChoices.pick(servers, PENDING));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsEmptyPool() {
+        TwoRandomChoices.pick(new ServerInfo[0], PENDING);
+    }
+
+    @Test
+    public void peakEwmaAvoidsSlowServer() {
+        ServerInfo[] servers = servers(2);
+        PeakEwmaPolicy policy = new PeakEwmaPolicy();
+        for (ServerInfo server : servers) {
+            policy.addDownstreamServer(server, null);
+        }
+        servers[0].stats().recordLatency(1000000);
+        servers[1].stats().recordLatency(50000000);
+
+        for (int i = 0; i < 100; i++) {
+            assertSame(servers[0], policy.next(HashPolicyTestSupport.request("192.168.1.10", "/")));
+        }
+    }
+
+    private static final TwoRandomChoices.Cost PENDING = new TwoRandomChoices.Cost() {
+        @Override
+        public double of(ServerStats stats) {
+            return stats.getPendingRequests();
+        }
+    };
+}
@@ -0,0 +1,67 @@
+package org.rahmanj.sandshrew.routes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link PerfectHash}
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class PerfectHashTest {
+
+    @Test
+    public void findsEveryKey() {
+        String[] keys = new String[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "host" + i + ".example.com";
+        }
+
+        PerfectHash hash = new PerfectHash(keys);
+        assertEquals(keys.length, hash.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i, lookup(hash, keys[i]));
+        }
+    }
+
+    @Test
+    public void ignoresCase() {
+        PerfectHash hash = new PerfectHash(new String[] { "Example.com", "api.example.com" });
+        assertEquals(0, lookup(hash, "EXAMPLE.COM"));
+        assertEquals(1, lookup(hash, "Api.Example.Com"));
+    }
+
+    @Test
+    public void missesUnknownKeys() {
+        PerfectHash hash = new PerfectHash(new String[] { "a.example.com", "b.example.com", "c.example.com" });
+        assertEquals(-1, lookup(hash, "d.example.com"));
+        assertEquals(-1, lookup(hash, "a.example.co"));
+        assertEquals(-1, lookup(hash, "a.example.com."));
+        assertEquals(-1, lookup(hash, ""));
+    }
+
+    @Test
+    public void findsKeyInsideLargerSequence() {
+        PerfectHash hash = new PerfectHash(new String[] { "example.com", "other.com" });
+        String header = "Host: example.com:8080";
+        assertEquals(0, hash.lookup(header, 6, 17));
+        assertEquals(-1, hash.lookup(header, 6, 18));
+    }
+
+    @Test
+    public void handlesNoKeys() {
+        PerfectHash hash = new PerfectHash(new String[0]);
+        assertEquals(0, hash.size());
+        assertEquals(-1, lookup(hash, "example.com"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateKeys() {
+        new PerfectHash(new String[] { "example.com", "EXAMPLE.com" });
+    }
+
+    private static int lookup(PerfectHash hash, String key) {
+        return hash.lookup(key, 0, key.length());
+    }
+}
@@ -0,0 +1,274 @@
+package org.rahmanj.sandshrew.routes;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+import org.rahmanj.sandshrew.config.Pool;
+import org.rahmanj.sandshrew.config.Route;
+import org.rahmanj.sandshrew.config.RouteConfig;
+import org.rahmanj.sandshrew.policy.PolicyFactory;
+import org.rahmanj.sandshrew.policy.RoundRobinRoutePolicy;
+import org.rahmanj.sandshrew.policy.ServerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for the path and host matching of {@link RouteResolver}
+ *
+ * @author Jason P. Rahman (jprahman93@gmail.com, rahmanj@purdue.edu)
+ */
+public class RouteResolverTest {
+
+    @Test
+    public void matchesExactPath() {
+        ProxyRoute api = route(null, "/api");
+        RouteResolver resolver = new RouteResolver(Arrays.asList(api));
+
+        assertSame(api, resolver.resolve("/api"));
+        assertSame(api, resolver.resolve("/api?page=2"));
+    }
+
+    @Test
+    public void matchesPrefixOnRawCharacters() {
+        ProxyRoute api = route(null, "/api");
+        RouteResolver resolver = new RouteResolver(Arrays.asList(api));
+
+        // Like nginx prefix locations, the prefix doesn't have to end on a segment
+        assertSame(api, resolver.resolve("/api/users/7"));
+        assertSame(api, resolver.resolve("/apis"));
+        assertNull(resolver.resolve("/ap"));
+    }
+
+    @Test
+    public void prefersLongestMatch() {
+        ProxyRoute root = route(null, "/");
+        ProxyRoute images = route(null, "/images/");
+        ProxyRoute icons = route(null, "/images/icons/");
+        ProxyRoute imagesOld = route(null, "/images-old");
+        RouteResolver resolver = new RouteResolver(Arrays.asList(icons, root, imagesOld, images));
+
+        assertSame(icons, resolver.resolve("/images/icons/home.png"));
+        assertSame(images, resolver.resolve("/images/logo.png"));
+        assertSame(imagesOld, resolver.resolve("/images-old/logo.png"));
+        assertSame(root, resolver.resolve("/images"));
+        assertSame(root, resolver.resolve("/videos/intro.mp4"));
+    }
+
+    @Test
+    public void trailingSlashBoundsPrefix() {
+        ProxyRoute api = route(null, "/api/");
+        RouteResolver resolver = new RouteResolver(Arrays.asList(api));
+
+        assertSame(api, resolver.resolve("/api/"));
+        assertSame(api, resolver.resolve("/api/users"));
+        assertNull(resolver.resolve("/api"));
+        assertNull(resolver.resolve("/apis/"));
+    }
+
+    @Test
+    public void rootRouteMatchesEverything() {
+        ProxyRoute root = route(null, "/");
+        RouteResolver resolver = new RouteResolver(Arrays.asList(root));
+
+        assertSame(root, resolver.resolve("/"));
+        assertSame(root, resolver.resolve("/index.html"));
+        assertSame(root, resolver.resolve("/?q=1"));
+    }
+
+    @Test
+    public void queryNeverMatchesPrefix() {
+        ProxyRoute search = route(null, "/search/");
+        RouteResolver resolver = new RouteResolver(Arrays.asList(search));
+
+        assertNull(resolver.resolve("/search?q=/search/"));
+        assertSame(search, resolver.resolve("/search/?q=1"));
+    }
+
+    @Test
+    public void returnsNullWithoutMatch() {
+        RouteResolver resolver = new RouteResolver(Arrays.asList(route(null, "/api/"), route(null, "/static/")));
+
+        assertNull(resolver.resolve("/"));
+        assertNull(resolver.resolve("/other"));
+        assertNull(new RouteResolver(new ArrayList<ProxyRoute>()).resolve("/api/"));
+    }
+
+    @Test
+    public void splitsSharedPrefixes() {
+        List<ProxyRoute> routes = new ArrayList<ProxyRoute>();
+        String[] prefixes = {"/a", "/ab", "/abc", "/abd", "/b", "/abcdef"};
+        for (String prefix : prefixes) {
+            routes.add(route(null, prefix));
+        }
+        RouteResolver resolver = new RouteResolver(routes);
+
+        for (int i = 0; i < prefixes.length; i++) {
+            assertSame(routes.get(i), resolver.resolve(prefixes[i]));
+        }
+        assertSame(routes.get(2), resolver.resolve("/abcde"));
+        assertSame(routes.get(1), resolver.resolve("/abe"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicatePrefix() {
+        new RouteResolver(Arrays.asList(route(null, "/api"), route(null, "/api")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsQueryInPrefix() {
+        new RouteResolver(Arrays.asList(route(null, "/api?v=1")));
+    }
+
+    @Test
+    public void matchesExactHost() {
+        ProxyRoute shop = route("shop.example.com", "/");
+        ProxyRoute blog = route("blog.example.com", "/");
+        ProxyRoute any = route(null, "/");
+        RouteResolver resolver = new RouteResolver(Arrays.asList(shop, blog, any));
+
+        assertSame(shop, resolver.resolve("shop.example.com", "/cart"));
+        assertSame(blog, resolver.resolve("blog.example.com", "/"));
+        assertSame(any, resolver.resolve("news.example.com", "/"));
+        assertSame(any, resolver.resolve(null, "/"));
+    }
+
+    @Test
+    public void matchesWildcardHostOnReversedLabels() {
+        ProxyRoute wildcard = route("*.example.com", "/");
+        ProxyRoute deeper = route("*.eu.example.com", "/");
+        ProxyRoute exact = route("www.example.com", "/");
+        RouteResolver resolver = new RouteResolver(Arrays.asList(wildcard, deeper, exact));
+
+        assertSame(exact, resolver.resolve("www.example.com", "/"));
+        assertSame(wildcard, resolver.resolve("shop.example.com", "/"));
+        assertSame(wildcard, resolver.resolve("a.b.example.com", "/"));
+        assertSame(deeper, resolver.resolve("shop.eu.example.com", "/"));
+
+        // The '*' stands for at least one label
+        assertNull(resolver.resolve("example.com", "/"));
+        assertNull(resolver.resolve("example.org", "/"));
+        assertNull(resolver.resolve("shop.notexample.com", "/"));
+    }
+
+    @Test
+    public void neverFallsBackFromPickedHost() {
+        ProxyRoute shopApi = route("shop.example.com", "/api/");
+        ProxyRoute any = route(null, "/");
+        RouteResolver resolver = new RouteResolver(Arrays.asList(shopApi, any));
+
+        assertSame(shopApi, resolver.resolve("shop.example.com", "/api/cart"));
+        assertNull(resolver.resolve("shop.example.com", "/index.html"));
+    }
+
+    @Test
+    public void ignoresPortAndTrailingDot() {
+        ProxyRoute shop = route("shop.example.com", "/");
+        ProxyRoute wildcard = route("*.example.com", "/");
+        ProxyRoute v6 = route("[::1]", "/");
+        RouteResolver resolver = new RouteResolver(Arrays.asList(shop, wildcard, v6));
+
+        assertSame(shop, resolver.resolve("shop.example.com:8080", "/"));
+        assertSame(shop, resolver.resolve("shop.example.com.", "/"));
+        assertSame(wildcard, resolver.resolve("blog.example.com:443", "/"));
+        assertSame(v6, resolver.resolve("[::1]:8080", "/"));
+        assertSame(v6, resolver.resolve("[::1]", "/"));
+    }
+
+    @Test
+    public void foldsHostCase() {
+        ProxyRoute shop = route("Shop.Example.com", "/");
+        ProxyRoute wildcard = route("*.Example.org", "/");
+        RouteResolver resolver = new RouteResolver(Arrays.asList(shop, wildcard));
+
+        assertSame(shop, resolver.resolve("SHOP.example.COM", "/"));
+        assertSame(wildcard, resolver.resolve("Blog.EXAMPLE.org", "/"));
+    }
+
+    @Test
+    public void routesAbsoluteFormOnItsAuthority() {
+        ProxyRoute shop = route("shop.example.com", "/cart/");
+        ProxyRoute shopRoot = route("shop.example.com", "/");
+        ProxyRoute any = route(null, "/");
+        RouteResolver resolver = new RouteResolver(Arrays.asList(shop, shopRoot, any));
+
+        // The URI's authority wins over the Host header
+        assertSame(shop, resolver.resolve("other.example.com", "http://shop.example.com/cart/1"));
+        assertSame(shop, resolver.resolve(null, "http://user@SHOP.example.com:8080/cart/?q=1"));
+
+        // An empty path is "/"
+        assertSame(shopRoot, resolver.resolve(null, "http://shop.example.com"));
+        assertSame(shopRoot, resolver.resolve(null, "http://shop.example.com?q=1"));
+        assertSame(any, resolver.resolve(null, "https://other.example.com/cart/"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWildcardInsideHost() {
+        new RouteResolver(Arrays.asList(route("shop.*.com", "/")));
+    }
+
+    @Test
+    public void fallsBackToWildcardListener() {
+        ObjectNode policy = JsonNodeFactory.instance.objectNode();
+        policy.put("type", "round_robin");
+        ObjectNode server = JsonNodeFactory.instance.objectNode();
+        server.put("server", "127.0.0.1:8080");
+        ObjectNode poolNode = JsonNodeFactory.instance.objectNode();
+        poolNode.put("name", "web");
+        poolNode.set("policy", policy);
+        poolNode.putArray("servers").add(server);
+
+        Map<String, PolicyFactory> policyFactories = new HashMap<String, PolicyFactory>();
+        policyFactories.put("round_robin", new RoundRobinRoutePolicy.RoundRobinPolicyFactory());
+        Pool pool = new Pool(poolNode, policyFactories, new ServerFactory());
+        Map<String, Pool> pools = new HashMap<String, Pool>();
+        pools.put("web", pool);
+
+        ObjectNode anyAddress = JsonNodeFactory.instance.objectNode();
+        anyAddress.put("pool", "web");
+        anyAddress.put("location", "/");
+        anyAddress.put("host", "shop.example.com");
+        anyAddress.put("listen", 8000);
+        ObjectNode oneAddress = JsonNodeFactory.instance.objectNode();
+        oneAddress.put("pool", "web");
+        oneAddress.put("location", "/admin/");
+        oneAddress.put("listen", "127.0.0.2:8000");
+        RouteConfig config = new RouteConfig(
+                Arrays.asList(new Route(anyAddress, pools), new Route(oneAddress, pools)),
+                Arrays.asList(pool)
+        );
+
+        // Accepted on an address no route names, so the routes listening on every address apply
+        ProxyRoute found = config.lookupRoute(request("shop.example.com", "/"), new InetSocketAddress("127.0.0.1", 8000));
+        assertEquals("/", found.getPublicEndpoint().getPathPrefix());
+        assertNull(config.lookupRoute(request("shop.example.com", "/"), new InetSocketAddress("127.0.0.1", 8001)));
+
+        // A route for a specific address shadows the wildcard listener there
+        found = config.lookupRoute(request("shop.example.com", "/admin/"), new InetSocketAddress("127.0.0.2", 8000));
+        assertEquals("/admin/", found.getPublicEndpoint().getPathPrefix());
+        assertNull(config.lookupRoute(request("shop.example.com", "/"), new InetSocketAddress("127.0.0.2", 8000)));
+    }
+
+    private static HttpRequest request(String host, String uri) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        HttpHeaders.setHost(request, host);
+        return request;
+    }
+
+    private static ProxyRoute route(String host, String prefix) {
+        return new ProxyRoute(new ProxyEndpoint(host, prefix), null);
+    }
+}